@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the insertion of new subscriptions in an already populated tree. Every invocation adds a batch
+ * of subscriptions of new clients, that are removed (outside the measurement) once the invocation completes,
+ * so that the tree doesn't grow along the iterations.
+ */
+public class CTrieAddToTreeBenchmark extends AbstractSubscriptionsBenchmark {
+
+    static final int BATCH = 1_000;
+
+    private CTrie ctrie;
+    private List<Subscription> batch;
+
+    @Setup(Level.Trial)
+    public void populateTree() {
+        ctrie = new CTrie();
+        for (Subscription subscription : subscriptions) {
+            ctrie.addToTree(subscription);
+        }
+        batch = shape.subscriptions("churn-", BATCH, new Random(size));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addToTree() {
+        for (Subscription subscription : batch) {
+            ctrie.addToTree(subscription);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeBatch() {
+        for (Subscription subscription : batch) {
+            ctrie.removeFromTree(subscription.getTopicFilter(), subscription.getClientId());
+        }
+    }
+}
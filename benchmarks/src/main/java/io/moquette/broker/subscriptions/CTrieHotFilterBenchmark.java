@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures subscribe and unsubscribe on a single filter shared by many clients, like alerts/#,
+ * where every change copies the node that holds all the subscribers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class CTrieHotFilterBenchmark {
+
+    private static final Topic HOT_FILTER = Topic.asTopic("alerts/#");
+
+    @Param({"1000", "50000"})
+    int subscribers;
+
+    private CTrie ctrie;
+    private Subscription churn;
+
+    @Setup(Level.Trial)
+    public void populateFilter() {
+        ctrie = new CTrie();
+        for (int i = 0; i < subscribers; i++) {
+            ctrie.addToTree(new Subscription("client-" + i, HOT_FILTER, MqttQoS.AT_LEAST_ONCE));
+        }
+        churn = new Subscription("churn", HOT_FILTER, MqttQoS.AT_LEAST_ONCE);
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribe() {
+        ctrie.addToTree(churn);
+        ctrie.removeFromTree(HOT_FILTER, churn.getClientId());
+    }
+}
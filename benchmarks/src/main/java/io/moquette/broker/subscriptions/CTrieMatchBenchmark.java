@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+
+/**
+ * Measures the lookup of the subscriptions matching a publish topic, the hot path of every PUBLISH.
+ */
+public class CTrieMatchBenchmark extends AbstractSubscriptionsBenchmark {
+
+    private static final int TOPICS = 4096; // power of 2, to cycle with a mask
+
+    private CTrie ctrie;
+    private Topic[] topics;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void populateTree() {
+        ctrie = new CTrie();
+        for (Subscription subscription : subscriptions) {
+            ctrie.addToTree(subscription);
+        }
+        topics = shape.topics(size, TOPICS);
+    }
+
+    @Benchmark
+    public Set<Subscription> recursiveMatch() {
+        final Topic topic = topics[next++ & (TOPICS - 1)];
+        return ctrie.recursiveMatch(topic);
+    }
+
+    @Benchmark
+    public void recursiveMatchWithVisitor(Blackhole blackhole) {
+        final Topic topic = topics[next++ & (TOPICS - 1)];
+        ctrie.recursiveMatch(topic, blackhole::consume);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a gateway that connects and subscribes all its filters with a single SUBSCRIBE, in a tree that
+ * already contains the filters of many other gateways. Every invocation subscribes a new gateway, so that
+ * its nodes have to be created like on a real connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class CTrieSubscribeBatchBenchmark {
+
+    private static final int GATEWAYS = 1_000;
+    private static final int FILTERS = 200;
+
+    private CTrie ctrie;
+    private int nextGateway;
+    private List<Subscription> connecting;
+
+    @Setup(Level.Iteration)
+    public void populateTree() {
+        ctrie = new CTrie();
+        for (int gateway = 0; gateway < GATEWAYS; gateway++) {
+            ctrie.addAllToTree(gatewayFilters(gateway));
+        }
+        nextGateway = GATEWAYS;
+    }
+
+    @Setup(Level.Invocation)
+    public void nextGateway() {
+        connecting = gatewayFilters(nextGateway++);
+    }
+
+    private static List<Subscription> gatewayFilters(int gateway) {
+        final List<Subscription> filters = new ArrayList<>(FILTERS);
+        for (int i = 0; i < FILTERS; i++) {
+            final Topic filter = Topic.asTopic("gw/" + gateway + "/dev/" + (i / 2) + (i % 2 == 0 ? "/cmd" : "/config/#"));
+            filters.add(new Subscription("gateway-" + gateway, filter, MqttQoS.AT_LEAST_ONCE));
+        }
+        return filters;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILTERS)
+    public void addToTree() {
+        for (Subscription subscription : connecting) {
+            ctrie.addToTree(subscription);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILTERS)
+    public void addAllToTree() {
+        ctrie.addAllToTree(connecting);
+    }
+}
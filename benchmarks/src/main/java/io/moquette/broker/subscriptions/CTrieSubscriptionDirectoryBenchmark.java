@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.MatchedSubscriptions;
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Set;
+
+/**
+ * Measures the matching done by the directory on behalf of the PostOffice, QoS sharpening included.
+ */
+public class CTrieSubscriptionDirectoryBenchmark extends AbstractSubscriptionsBenchmark {
+
+    private static final int TOPICS = 4096; // power of 2, to cycle with a mask
+
+    /**
+     * Size of the match cache, 0 to disable it. The published topics fit in the cache when enabled.
+     */
+    @Param({"0", "4096"})
+    public int matchCacheSize;
+
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] topics;
+    private int next;
+    private final MatchedSubscriptions matched = new MatchedSubscriptions();
+
+    @Setup(Level.Trial)
+    public void populateDirectory() {
+        final MemorySubscriptionsRepository repository = new MemorySubscriptionsRepository();
+        for (Subscription subscription : subscriptions) {
+            repository.addNewSubscription(subscription);
+        }
+        directory = new CTrieSubscriptionDirectory(matchCacheSize);
+        directory.init(repository);
+        topics = shape.topics(size, TOPICS);
+    }
+
+    @Benchmark
+    public Set<Subscription> matchQosSharpening() {
+        final Topic topic = topics[next++ & (TOPICS - 1)];
+        return directory.matchQosSharpening(topic);
+    }
+
+    @Benchmark
+    public int matchQosSharpeningIntoAccumulator() {
+        final Topic topic = topics[next++ & (TOPICS - 1)];
+        matched.clear();
+        directory.matchQosSharpening(topic, matched);
+        return matched.size();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.util.Set;
+
+/**
+ * Compares the matching engines selectable with the subscriptions.matcher setting, without the match cache.
+ */
+public class SubscriptionsMatcherBenchmark extends AbstractSubscriptionsBenchmark {
+
+    private static final int TOPICS = 4096; // power of 2, to cycle with a mask
+
+    @Param({"ctrie", "bitmap"})
+    public String matcher;
+
+    private ISubscriptionsDirectory directory;
+    private Topic[] topics;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void populateDirectory() {
+        final MemorySubscriptionsRepository repository = new MemorySubscriptionsRepository();
+        for (Subscription subscription : subscriptions) {
+            repository.addNewSubscription(subscription);
+        }
+        directory = "bitmap".equals(matcher)
+            ? new BitmapSubscriptionDirectory()
+            : new CTrieSubscriptionDirectory();
+        directory.init(repository);
+        topics = shape.topics(size, TOPICS);
+    }
+
+    @Benchmark
+    public Set<Subscription> matchWithoutQosSharpening() {
+        final Topic topic = topics[next++ & (TOPICS - 1)];
+        return directory.matchWithoutQosSharpening(topic);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generators of topic filters and publish topics used to populate the subscriptions tree with
+ * different shapes. Every generator is deterministic for a given seed so that runs are comparable.
+ */
+public enum TreeShape {
+
+    /**
+     * 12 levels with a fan-out of 4 on every level, no wildcards.
+     */
+    DEEP {
+        @Override
+        String filter(int index, int size, Random random) {
+            return deepPath(index);
+        }
+
+        @Override
+        String topic(int size, Random random) {
+            return deepPath(random.nextInt(size));
+        }
+    },
+
+    /**
+     * 3 levels with all the subscriptions spread on the middle one, like devices/&lt;deviceId&gt;/telemetry.
+     */
+    WIDE {
+        @Override
+        String filter(int index, int size, Random random) {
+            return "devices/dev-" + index + "/telemetry";
+        }
+
+        @Override
+        String topic(int size, Random random) {
+            return "devices/dev-" + random.nextInt(size) + "/telemetry";
+        }
+    },
+
+    /**
+     * site/area/line/sensor filters where every level has 30% of chance to be a single level wildcard.
+     */
+    SINGLE_WILDCARD {
+        @Override
+        String filter(int index, int size, Random random) {
+            final int[] levels = siteLevels(index, size);
+            final StringBuilder sb = new StringBuilder("site");
+            for (int level : levels) {
+                sb.append('/');
+                if (random.nextInt(10) < 3) {
+                    sb.append('+');
+                } else {
+                    sb.append(level);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        String topic(int size, Random random) {
+            return siteTopic(size, random);
+        }
+    },
+
+    /**
+     * site/area/line/sensor filters truncated at a random level and terminated by a multi level wildcard.
+     */
+    MULTI_WILDCARD {
+        @Override
+        String filter(int index, int size, Random random) {
+            final int[] levels = siteLevels(index, size);
+            final int depth = random.nextInt(levels.length);
+            final StringBuilder sb = new StringBuilder("site");
+            for (int i = 0; i < depth; i++) {
+                sb.append('/').append(levels[i]);
+            }
+            return sb.append("/#").toString();
+        }
+
+        @Override
+        String topic(int size, Random random) {
+            return siteTopic(size, random);
+        }
+    },
+
+    /**
+     * org/acme/region/eu/site/&lt;siteId&gt;/line/7/sensor/temp, long chains of levels with a single child.
+     */
+    CHAIN {
+        @Override
+        String filter(int index, int size, Random random) {
+            return chainPath(index);
+        }
+
+        @Override
+        String topic(int size, Random random) {
+            return chainPath(random.nextInt(size));
+        }
+    };
+
+    private static final int DEEP_LEVELS = 12;
+    private static final int DEEP_FANOUT = 4;
+    private static final int SITE_AREAS = 10;
+    private static final int SITE_LINES = 10;
+    private static final int SITE_SENSORS = 100;
+    private static final long SEED = 42L;
+
+    /**
+     * @param index the progressive number of the subscription, in range [0, size).
+     * @param size total number of subscriptions that compose the tree.
+     * @param random source of randomness for the shapes that need it.
+     * @return the topic filter of the index-th subscription.
+     */
+    abstract String filter(int index, int size, Random random);
+
+    /**
+     * @return a publish topic (no wildcards) that hits the populated area of the tree.
+     */
+    abstract String topic(int size, Random random);
+
+    /**
+     * Create the subscriptions that populate a tree of the given size, each one owned by a different client.
+     */
+    List<Subscription> subscriptions(int size) {
+        return subscriptions("client-", size, new Random(SEED));
+    }
+
+    List<Subscription> subscriptions(String clientPrefix, int count, Random random) {
+        final MqttQoS[] qos = {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE};
+        final List<Subscription> subscriptions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Topic filter = Topic.asTopic(filter(i, count, random));
+            subscriptions.add(new Subscription(clientPrefix + i, filter, qos[random.nextInt(qos.length)]));
+        }
+        return subscriptions;
+    }
+
+    Topic[] topics(int size, int count) {
+        final Random random = new Random(SEED + 1);
+        final Topic[] topics = new Topic[count];
+        for (int i = 0; i < count; i++) {
+            topics[i] = Topic.asTopic(topic(size, random));
+        }
+        return topics;
+    }
+
+    private static String deepPath(int index) {
+        final StringBuilder sb = new StringBuilder("deep");
+        int remaining = index;
+        for (int level = 0; level < DEEP_LEVELS; level++) {
+            sb.append("/l").append(level).append('-').append(remaining % DEEP_FANOUT);
+            remaining /= DEEP_FANOUT;
+        }
+        return sb.toString();
+    }
+
+    private static String chainPath(int index) {
+        return "org/acme/region/eu/site/" + index + "/line/7/sensor/temp";
+    }
+
+    private static int sites(int size) {
+        return Math.max(1, size / (SITE_AREAS * SITE_LINES * SITE_SENSORS));
+    }
+
+    private static int[] siteLevels(int index, int size) {
+        int remaining = index;
+        final int sensor = remaining % SITE_SENSORS;
+        remaining /= SITE_SENSORS;
+        final int line = remaining % SITE_LINES;
+        remaining /= SITE_LINES;
+        final int area = remaining % SITE_AREAS;
+        remaining /= SITE_AREAS;
+        final int site = remaining % sites(size);
+        return new int[] {site, area, line, sensor};
+    }
+
+    private static String siteTopic(int size, Random random) {
+        return "site/" + random.nextInt(sites(size)) + "/" + random.nextInt(SITE_AREAS) + "/" +
+            random.nextInt(SITE_LINES) + "/" + random.nextInt(SITE_SENSORS);
+    }
+}
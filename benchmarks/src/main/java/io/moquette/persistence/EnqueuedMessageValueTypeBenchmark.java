@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.PublishedMessage;
+import io.moquette.api.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.WriteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of the messages stored in the session queues, with the payload as it comes
+ * from the network: in a pooled direct buffer, or a composite of them when received in many reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class EnqueuedMessageValueTypeBenchmark {
+
+    @Param({"64", "4096"})
+    int payloadSize;
+
+    @Param({"false", "true"})
+    boolean composite;
+
+    private final EnqueuedMessageValueType valueType = new EnqueuedMessageValueType();
+    private final WriteBuffer writeBuffer = new WriteBuffer();
+    private PublishedMessage message;
+    private ByteBuffer serialized;
+
+    @Setup(Level.Trial)
+    public void createMessage() {
+        final ByteBuf payload;
+        if (composite) {
+            final CompositeByteBuf parts = PooledByteBufAllocator.DEFAULT.compositeDirectBuffer();
+            for (int i = 0; i < 4; i++) {
+                parts.addComponent(true, PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize / 4)
+                    .writeZero(payloadSize / 4));
+            }
+            payload = parts;
+        } else {
+            payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeZero(payloadSize);
+        }
+        message = new PublishedMessage(Topic.asTopic("sensors/temp/1"), MqttQoS.AT_LEAST_ONCE, payload);
+
+        valueType.write(writeBuffer.clear(), message);
+        // H2 pages are read in heap buffers
+        final ByteBuffer written = writeBuffer.getBuffer();
+        serialized = ByteBuffer.allocate(written.position());
+        ((Buffer) written).flip();
+        ((Buffer) serialized.put(written)).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void releaseMessage() {
+        message.release();
+    }
+
+    @Benchmark
+    public WriteBuffer write() {
+        valueType.write(writeBuffer.clear(), message);
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public Object read() {
+        return valueType.read(serialized.duplicate());
+    }
+}
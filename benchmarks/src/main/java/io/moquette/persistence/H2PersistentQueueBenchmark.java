@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+import io.moquette.api.PublishedMessage;
+import io.moquette.api.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the QoS1 queue of an offline client: every enqueued message is later dequeued, with a backlog
+ * of messages already waiting in the queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class H2PersistentQueueBenchmark {
+
+    @Param({"0", "1000"})
+    int backlog;
+
+    private File storeFile;
+    private MVStore store;
+    private H2PersistentQueue queue;
+    private EnqueuedMessage message;
+
+    @Setup(Level.Trial)
+    public void openQueue() throws IOException {
+        storeFile = File.createTempFile("moquette_queue", ".mv.db");
+        store = new MVStore.Builder()
+            .fileName(storeFile.getAbsolutePath())
+            .autoCommitDisabled()
+            .open();
+        queue = new H2PersistentQueue(store, "offline-client");
+        message = new PublishedMessage(Topic.asTopic("sensors/temp/1"), MqttQoS.AT_LEAST_ONCE,
+                                       Unpooled.wrappedBuffer(new byte[64]));
+        for (int i = 0; i < backlog; i++) {
+            queue.offer(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeQueue() {
+        store.close();
+        storeFile.delete();
+    }
+
+    @Benchmark
+    public EnqueuedMessage offerAndPoll() {
+        queue.offer(message);
+        return queue.poll();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+import io.moquette.api.PublishedMessage;
+import io.moquette.api.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the queue stores of the persistent sessions: the QoS1 queues of many offline clients, every
+ * enqueued message is later dequeued, with a backlog of messages already waiting in each queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class QueueRepositoryBenchmark {
+
+    private static final int CLIENTS = 100;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @Param({"h2", "segments"})
+    String store;
+
+    @Param({"0", "1000"})
+    int backlog;
+
+    private File storeDir;
+    private MVStore mvStore;
+    private SegmentedQueueRepository segmentedRepository;
+    private Queue<EnqueuedMessage>[] queues;
+    private EnqueuedMessage message;
+    private int next;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void openQueues() throws IOException {
+        storeDir = Files.createTempDirectory("moquette_queues").toFile();
+        final QueueFactory factory;
+        if ("h2".equals(store)) {
+            mvStore = new MVStore.Builder()
+                .fileName(new File(storeDir, "moquette_store.h2").getAbsolutePath())
+                .autoCommitDisabled()
+                .open();
+            factory = clientId -> new H2PersistentQueue(mvStore, clientId);
+        } else {
+            segmentedRepository = new SegmentedQueueRepository(storeDir, SEGMENT_SIZE);
+            factory = clientId -> segmentedRepository.createQueue(clientId, false);
+        }
+        message = new PublishedMessage(Topic.asTopic("sensors/temp/1"), MqttQoS.AT_LEAST_ONCE,
+                                       Unpooled.wrappedBuffer(new byte[64]));
+        queues = new Queue[CLIENTS];
+        for (int client = 0; client < CLIENTS; client++) {
+            queues[client] = factory.create("offline-client-" + client);
+            for (int i = 0; i < backlog; i++) {
+                queues[client].offer(message);
+            }
+        }
+    }
+
+    private interface QueueFactory {
+        Queue<EnqueuedMessage> create(String clientId);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeQueues() {
+        if (mvStore != null) {
+            mvStore.close();
+        }
+        if (segmentedRepository != null) {
+            segmentedRepository.close();
+        }
+        final File[] files = storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        storeDir.delete();
+    }
+
+    @Benchmark
+    public EnqueuedMessage offerAndPoll() {
+        final Queue<EnqueuedMessage> queue = queues[next++ % CLIENTS];
+        queue.offer(message);
+        return queue.poll();
+    }
+
+    /**
+     * Like {@link #offerAndPoll()}, but each message reaches the file before the next one, as with the
+     * sync durability: H2 commits, the segments are already written to the mapped file.
+     */
+    @Benchmark
+    public EnqueuedMessage offerAndPollPersisted() {
+        final EnqueuedMessage polled = offerAndPoll();
+        if (mvStore != null) {
+            mvStore.commit();
+        }
+        return polled;
+    }
+}
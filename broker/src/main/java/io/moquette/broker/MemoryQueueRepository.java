@@ -16,7 +16,9 @@ public class MemoryQueueRepository implements IQueueRepository {
     @Override
     public Queue<EnqueuedMessage> createQueue(String cli, boolean clean) {
         final ConcurrentLinkedQueue<EnqueuedMessage> queue = new ConcurrentLinkedQueue<>();
-        queues.put(cli, queue);
+        if (!clean) {
+            queues.put(cli, queue);
+        }
         return queue;
     }
 
@@ -24,4 +26,9 @@ public class MemoryQueueRepository implements IQueueRepository {
     public Map<String, Queue<EnqueuedMessage>> listAllQueues() {
         return Collections.unmodifiableMap(queues);
     }
+
+    @Override
+    public void dropQueue(String cli) {
+        queues.remove(cli);
+    }
 }
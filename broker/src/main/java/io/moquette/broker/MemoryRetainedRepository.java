@@ -18,21 +18,18 @@ package io.moquette.broker;
 import io.moquette.api.IRetainedRepository;
 import io.moquette.api.RetainedMessage;
 import io.moquette.api.Topic;
+import io.moquette.broker.subscriptions.TopicIndex;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /*
 * In memory retained messages store
 * */
 final class MemoryRetainedRepository implements IRetainedRepository {
 
-    private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
+    private final TopicIndex<RetainedMessage> storage = new TopicIndex<>();
 
     @Override
     public void cleanRetained(Topic topic) {
@@ -55,14 +52,6 @@ final class MemoryRetainedRepository implements IRetainedRepository {
 
     @Override
     public List<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : storage.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
-            }
-        }
-        return matchingMessages;
+        return storage.match(new Topic(topic));
     }
 }
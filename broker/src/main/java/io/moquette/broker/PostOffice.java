@@ -17,15 +17,20 @@ package io.moquette.broker;
 
 import io.moquette.api.*;
 import io.moquette.interception.BrokerInterceptor;
+import io.moquette.persistence.StoreCommitter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.mqtt.*;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static io.moquette.broker.Utils.messageId;
@@ -36,14 +41,48 @@ class PostOffice {
 
     private static final Logger LOG = LoggerFactory.getLogger(PostOffice.class);
 
+    // reused by each thread across publishes, to not allocate on every fan-out
+    private static final FastThreadLocal<MatchedSubscriptions> MATCHED_SUBSCRIPTIONS =
+        new FastThreadLocal<MatchedSubscriptions>() {
+            @Override
+            protected MatchedSubscriptions initialValue() {
+                return new MatchedSubscriptions();
+            }
+        };
+
     private final Authorizator authorizator;
     private final ISubscriptionsDirectory subscriptions;
     private final IRetainedRepository retainedRepository;
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
+    private final int parallelFanOutThreshold;
+    private final StoreCommitter committer;
 
     PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
                SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, 0);
+    }
+
+    /**
+     * @param parallelFanOutThreshold number of matched subscribers from which a publish is delivered by the
+     *                                event loops of the subscribers instead of the one of the publisher, 0
+     *                                to always deliver from the publisher's thread.
+     */
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               int parallelFanOutThreshold) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, parallelFanOutThreshold,
+             StoreCommitter.NO_WAIT);
+    }
+
+    /**
+     * @param committer makes the PUBACK of a QoS1 publish wait until the store is durable.
+     */
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               int parallelFanOutThreshold, StoreCommitter committer) {
+        this.committer = committer;
+        this.parallelFanOutThreshold = parallelFanOutThreshold;
         this.authorizator = authorizator;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
@@ -68,19 +107,17 @@ class PostOffice {
         MqttSubAckMessage ackMessage = doAckMessageFromValidateFilters(ackTopics, messageID);
 
         // store topics subscriptions in session
+        Session session = sessionRegistry.retrieve(clientID);
         List<Subscription> newSubscriptions = ackTopics.stream()
             .filter(req -> req.qualityOfService() != FAILURE)
             .map(req -> {
                 final Topic topic = new Topic(req.topicName());
-                return new Subscription(clientID, topic, req.qualityOfService());
+                return new Subscription(clientID, topic, req.qualityOfService(), session.handle());
             }).collect(Collectors.toList());
 
-        for (Subscription subscription : newSubscriptions) {
-            subscriptions.add(subscription);
-        }
+        subscriptions.addAll(newSubscriptions);
 
         // add the subscriptions to Session
-        Session session = sessionRegistry.retrieve(clientID);
         session.addSubscriptions(newSubscriptions);
 
         // send ack message
@@ -96,6 +133,10 @@ class PostOffice {
     private void publishRetainedMessagesForSubscriptions(String clientID, List<Subscription> newSubscriptions) {
         Session targetSession = this.sessionRegistry.retrieve(clientID);
         for (Subscription subscription : newSubscriptions) {
+            if (subscription.getTopicFilter().isShared()) {
+                // retained messages are not sent to the members of a shared group
+                continue;
+            }
             final String topicFilter = subscription.getTopicFilter().toString();
             final List<RetainedMessage> retainedMsgs = retainedRepository.retainedOnTopic(topicFilter);
 
@@ -187,9 +228,10 @@ class PostOffice {
         }
 
         ByteBuf payload = msg.payload();
-        publish2Subscribers(payload, topic, AT_LEAST_ONCE);
-
-        connection.sendPubAck(messageID);
+        // the message could be in the queues of offline subscribers, acknowledge once they are stored, also
+        // by the batches of a parallel fan out
+        publish2Subscribers(payload, topic, AT_LEAST_ONCE,
+                            () -> committer.afterCommit(() -> connection.sendPubAck(messageID)));
 
         if (msg.fixedHeader().isRetain()) {
             if (!payload.isReadable()) {
@@ -203,20 +245,154 @@ class PostOffice {
     }
 
     private void publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos) {
-        Set<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
+        publish2Subscribers(payload, topic, publishingQos, null);
+    }
+
+    /**
+     * @param delivered run once the message has been handed to all the sessions of the subscribers, also the
+     *                  ones served by other event loops, null if nothing waits for it.
+     */
+    private void publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos, Runnable delivered) {
+        if (!subscriptions.mayMatch(topic)) {
+            runIfPresent(delivered);
+            return;
+        }
+        MatchedSubscriptions topicMatchingSubscriptions = MATCHED_SUBSCRIPTIONS.get();
+        if (!topicMatchingSubscriptions.isEmpty()) {
+            // a publish triggered while this thread is dispatching another one, can't reuse the accumulator
+            topicMatchingSubscriptions = new MatchedSubscriptions();
+        }
+        try {
+            subscriptions.matchQosSharpening(topic, topicMatchingSubscriptions);
+
+            if (parallelFanOutThreshold > 0 && topicMatchingSubscriptions.size() >= parallelFanOutThreshold) {
+                publish2SubscribersByEventLoop(payload, topic, publishingQos, topicMatchingSubscriptions,
+                                               delivered);
+                return;
+            }
+            for (int i = 0; i < topicMatchingSubscriptions.size(); i++) {
+                publish2Subscriber(payload, topic, publishingQos, topicMatchingSubscriptions.get(i));
+            }
+        } finally {
+            topicMatchingSubscriptions.clear();
+        }
+        runIfPresent(delivered);
+    }
+
+    private static void runIfPresent(Runnable action) {
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Split a big fan out in a batch for every event loop of the subscribers, so that the publisher's loop
+     * doesn't stall its other channels while serving all of them. Subscribers served by the current loop and
+     * the ones not connected, whose messages are just queued, are served inline after the others have been
+     * handed over. The delivered action is run by the last batch to complete.
+     */
+    private void publish2SubscribersByEventLoop(ByteBuf payload, Topic topic, MqttQoS publishingQos,
+                                                MatchedSubscriptions matched, Runnable delivered) {
+        final FanOutBatch inline = new FanOutBatch(topic, publishingQos, payload);
+        final Map<EventLoop, FanOutBatch> batches = new IdentityHashMap<>();
+        for (int i = 0; i < matched.size(); i++) {
+            final Subscription sub = matched.get(i);
+            final Session targetSession = this.sessionRegistry.retrieve(sub);
+            if (targetSession == null) {
+                LOG.debug("PUBLISH to not yet present session. CId: {}, topicFilter: {}", sub.getClientId(),
+                          sub.getTopicFilter());
+                continue;
+            }
+            final EventLoop eventLoop = targetSession.eventLoop();
+            final FanOutBatch batch = eventLoop == null || eventLoop.inEventLoop()
+                ? inline
+                : batches.computeIfAbsent(eventLoop, loop -> new FanOutBatch(topic, publishingQos, payload));
+            batch.add(sub, targetSession);
+        }
+        final Runnable batchDone = delivered == null ? null : countDown(batches.size() + 1, delivered);
+        for (Map.Entry<EventLoop, FanOutBatch> entry : batches.entrySet()) {
+            final FanOutBatch batch = entry.getValue();
+            // the payload is released by the publisher's handler, each batch needs its own reference
+            batch.retainPayload();
+            batch.whenDone(batchDone);
+            entry.getKey().execute(batch);
+        }
+        inline.whenDone(batchDone);
+        inline.run();
+    }
+
+    private static Runnable countDown(int count, Runnable action) {
+        final AtomicInteger remaining = new AtomicInteger(count);
+        return () -> {
+            if (remaining.decrementAndGet() == 0) {
+                action.run();
+            }
+        };
+    }
+
+    /**
+     * The subscribers of a publish served by the same event loop.
+     */
+    private static final class FanOutBatch implements Runnable {
+        private final Topic topic;
+        private final MqttQoS publishingQos;
+        private ByteBuf payload;
+        private boolean retained;
+        private Runnable done;
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private final List<Session> sessions = new ArrayList<>();
+
+        FanOutBatch(Topic topic, MqttQoS publishingQos, ByteBuf payload) {
+            this.topic = topic;
+            this.publishingQos = publishingQos;
+            this.payload = payload;
+        }
+
+        void add(Subscription subscription, Session session) {
+            subscriptions.add(subscription);
+            sessions.add(session);
+        }
+
+        void retainPayload() {
+            payload = payload.retainedDuplicate();
+            retained = true;
+        }
 
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
+        void whenDone(Runnable done) {
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < sessions.size(); i++) {
+                    final MqttQoS qos = lowerQosToTheSubscriptionDesired(subscriptions.get(i), publishingQos);
+                    sessions.get(i).sendPublishOnSessionAtQos(topic, qos, payload);
+                }
+            } finally {
+                if (retained) {
+                    payload.release();
+                }
+            }
+            runIfPresent(done);
+        }
+    }
+
+    private void publish2Subscriber(ByteBuf payload, Topic topic, MqttQoS publishingQos, Subscription sub) {
+        MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+        Session targetSession = this.sessionRegistry.retrieve(sub);
 
-            boolean isSessionPresent = targetSession != null;
-            if (isSessionPresent) {
+        boolean isSessionPresent = targetSession != null;
+        if (isSessionPresent) {
+            if (LOG.isDebugEnabled()) {
                 LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
                           sub.getClientId(), sub.getTopicFilter(), qos);
-                targetSession.sendPublishOnSessionAtQos(topic, qos, payload);
-            } else {
-                // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
-                // destination.
+            }
+            targetSession.sendPublishOnSessionAtQos(topic, qos, payload);
+        } else {
+            // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
+            // destination.
+            if (LOG.isDebugEnabled()) {
                 LOG.debug("PUBLISH to not yet present session. CId: {}, topicFilter: {}, qos: {}", sub.getClientId(),
                           sub.getTopicFilter(), qos);
             }
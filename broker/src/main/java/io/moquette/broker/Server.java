@@ -15,15 +15,23 @@
  */
 package io.moquette.broker;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import io.moquette.BrokerConstants;
 import io.moquette.api.*;
 import io.moquette.broker.config.*;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
+import io.moquette.persistence.SegmentedQueueRepository;
 import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.StoreCommitter;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.security.*;
+import io.moquette.broker.subscriptions.BitmapSubscriptionDirectory;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ISharedSubscriptionSelector;
+import io.moquette.broker.subscriptions.SharedSubscriptionSelectors;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -37,6 +45,7 @@ import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongSupplier;
 
 import static io.moquette.logging.LoggingUtils.getInterceptorIds;
 
@@ -44,13 +53,18 @@ public class Server {
 
     private static final Logger LOG = LoggerFactory.getLogger(io.moquette.broker.Server.class);
 
+    public static final String MATCH_CACHE_HITS_METRIC = "subscriptions.match_cache.hits";
+    public static final String MATCH_CACHE_MISSES_METRIC = "subscriptions.match_cache.misses";
+
     private ScheduledExecutorService scheduler;
     private NewNettyAcceptor acceptor;
     private volatile boolean initialized;
     private PostOffice dispatcher;
     private BrokerInterceptor interceptor;
     private H2Builder h2Builder;
+    private SegmentedQueueRepository segmentedQueueRepository;
     private SessionRegistry sessions;
+    private ISubscriptionsDirectory subscriptions;
 
     public static void main(String[] args) throws IOException {
         final Server server = new Server();
@@ -161,24 +175,56 @@ public class Server {
         final ISubscriptionsRepository subscriptionsRepository;
         final IQueueRepository queueRepository;
         final IRetainedRepository retainedRepository;
+        final StoreCommitter committer;
         if (persistencePath != null && !persistencePath.isEmpty()) {
             LOG.trace("Configuring H2 subscriptions store to {}", persistencePath);
             h2Builder = new H2Builder(config, scheduler).initStore();
             subscriptionsRepository = h2Builder.subscriptionsRepository();
-            queueRepository = h2Builder.queueRepository();
+            queueRepository = initQueueRepository(config, persistencePath, h2Builder);
             retainedRepository = h2Builder.retainedRepository();
+            committer = h2Builder.committer();
         } else {
             LOG.trace("Configuring in-memory subscriptions store");
             subscriptionsRepository = new MemorySubscriptionsRepository();
             queueRepository = new MemoryQueueRepository();
             retainedRepository = new MemoryRetainedRepository();
+            committer = StoreCommitter.NO_WAIT;
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final int matchCacheSize = config.intProp(BrokerConstants.MATCH_CACHE_SIZE_PROPERTY_NAME, 0);
+        final int noMatchFilterSize = config.intProp(BrokerConstants.NO_MATCH_FILTER_SIZE_PROPERTY_NAME,
+                                                     BrokerConstants.DEFAULT_NO_MATCH_FILTER_SIZE);
+        final String sharedPolicy = config.getProperty(BrokerConstants.SHARED_SUBSCRIPTION_POLICY_PROPERTY_NAME,
+                                                       SharedSubscriptionSelectors.ROUND_ROBIN);
+        final ISharedSubscriptionSelector sharedSelector =
+            SharedSubscriptionSelectors.forPolicy(sharedPolicy, this::inflightCount);
+        final String matcher = config.getProperty(BrokerConstants.SUBSCRIPTIONS_MATCHER_PROPERTY_NAME,
+                                                  BrokerConstants.CTRIE_SUBSCRIPTIONS_MATCHER);
+        if (BrokerConstants.BITMAP_SUBSCRIPTIONS_MATCHER.equals(matcher)) {
+            LOG.info("Matching subscriptions with bitmap index");
+            final BitmapSubscriptionDirectory bitmapSubscriptions =
+                new BitmapSubscriptionDirectory(matchCacheSize, sharedSelector);
+            registerMatchCacheMetrics(bitmapSubscriptions::matchCacheHits, bitmapSubscriptions::matchCacheMisses);
+            subscriptions = bitmapSubscriptions;
+        } else {
+            final String partitioning = config.getProperty(BrokerConstants.SUBSCRIPTIONS_PARTITIONING_PROPERTY_NAME,
+                                                           BrokerConstants.NO_SUBSCRIPTIONS_PARTITIONING);
+            final boolean partitioned =
+                BrokerConstants.FIRST_LEVEL_SUBSCRIPTIONS_PARTITIONING.equals(partitioning);
+            if (partitioned) {
+                LOG.info("Partitioning subscriptions by first level of the topic filters");
+            }
+            final CTrieSubscriptionDirectory ctrieSubscriptions =
+                new CTrieSubscriptionDirectory(matchCacheSize, noMatchFilterSize, partitioned, sharedSelector);
+            registerMatchCacheMetrics(ctrieSubscriptions::matchCacheHits, ctrieSubscriptions::matchCacheMisses);
+            subscriptions = ctrieSubscriptions;
+        }
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
         sessions = new SessionRegistry(subscriptions, queueRepository, authorizator);
-        dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator);
+        final int parallelFanOutThreshold = config.intProp(BrokerConstants.PARALLEL_FAN_OUT_THRESHOLD_PROPERTY_NAME, 0);
+        dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
+                                    parallelFanOutThreshold, committer);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
                                                                             dispatcher);
@@ -192,6 +238,41 @@ public class Server {
         initialized = true;
     }
 
+    /**
+     * Expose the counters of the match cache as gauges of the shared metrics registry, replacing the ones of a
+     * previous start.
+     */
+    private static void registerMatchCacheMetrics(LongSupplier hits, LongSupplier misses) {
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME);
+        metrics.remove(MATCH_CACHE_HITS_METRIC);
+        metrics.register(MATCH_CACHE_HITS_METRIC, (Gauge<Long>) hits::getAsLong);
+        metrics.remove(MATCH_CACHE_MISSES_METRIC);
+        metrics.register(MATCH_CACHE_MISSES_METRIC, (Gauge<Long>) misses::getAsLong);
+    }
+
+    private IQueueRepository initQueueRepository(IConfig config, String persistencePath, H2Builder h2Builder) {
+        final String queuesStore = config.getProperty(BrokerConstants.QUEUES_STORE_PROPERTY_NAME,
+                                                      BrokerConstants.H2_QUEUES_STORE);
+        if (!BrokerConstants.SEGMENTS_QUEUES_STORE.equals(queuesStore)) {
+            return h2Builder.queueRepository();
+        }
+        final String segmentsPath = config.getProperty(BrokerConstants.SEGMENTS_PATH_PROPERTY_NAME,
+                                                       persistencePath + ".segments");
+        final int segmentSizeMb = config.intProp(BrokerConstants.SEGMENT_SIZE_PROPERTY_NAME,
+                                                 BrokerConstants.DEFAULT_SEGMENT_SIZE_MB);
+        // a segment is mapped in a single buffer, that can't reach 2 GB
+        final long segmentSize = segmentSizeMb * 1024L * 1024L;
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(BrokerConstants.SEGMENT_SIZE_PROPERTY_NAME
+                + " must be between 1 and 2047 MB, found: " + segmentSizeMb);
+        }
+        LOG.info("Storing the queues in segments of {} MB, path: {}", segmentSizeMb, segmentsPath);
+        segmentedQueueRepository = new SegmentedQueueRepository(new File(segmentsPath), (int) segmentSize);
+        // the queued messages are part of what a PUBACK waits for
+        h2Builder.alsoSync(segmentedQueueRepository::force);
+        return segmentedQueueRepository;
+    }
+
     private IAuthorizatorPolicy initializeAuthorizatorPolicy(IAuthorizatorPolicy authorizatorPolicy, IConfig props) {
         LOG.debug("Configuring MQTT authorizator policy");
         String authorizatorClassName = props.getProperty(BrokerConstants.AUTHORIZATOR_CLASS_NAME, "");
@@ -311,6 +392,11 @@ public class Server {
         msg.payload().release();
     }
 
+    private int inflightCount(String clientId) {
+        final Session session = sessions.retrieve(clientId);
+        return session == null ? 0 : session.inflightCount();
+    }
+
     public void stopServer() {
         LOG.info("Unbinding integration from the configured ports");
         acceptor.close();
@@ -325,8 +411,20 @@ public class Server {
             LOG.trace("Shutting down H2 persistence {}");
             h2Builder.closeStore();
         }
+        if (segmentedQueueRepository != null) {
+            LOG.trace("Shutting down segmented queues");
+            segmentedQueueRepository.close();
+        }
 
         interceptor.stop();
+        if (subscriptions instanceof CTrieSubscriptionDirectory) {
+            final CTrieSubscriptionDirectory ctrieSubscriptions = (CTrieSubscriptionDirectory) subscriptions;
+            LOG.info("Metrics match cache[hits={}, misses={}]", ctrieSubscriptions.matchCacheHits(),
+                     ctrieSubscriptions.matchCacheMisses());
+            LOG.info("Metrics subscriptions[exact={}, wildcard={}, clients={}]",
+                     ctrieSubscriptions.exactSubscriptionsCount(), ctrieSubscriptions.wildcardSubscriptionsCount(),
+                     ctrieSubscriptions.clientsCount());
+        }
         LOG.info("Moquette integration has been stopped.");
     }
 
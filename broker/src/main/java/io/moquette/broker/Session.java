@@ -17,6 +17,7 @@ package io.moquette.broker;
 
 import io.moquette.api.*;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
@@ -86,9 +87,11 @@ class Session {
     }
 
     private final String clientId;
+    // index of the session in the registry, carried by its subscriptions
+    private volatile int handle = Subscription.NO_CLIENT_HANDLE;
     private boolean clean;
     private Will will;
-    private final Queue<EnqueuedMessage> sessionQueue;
+    private Queue<EnqueuedMessage> sessionQueue;
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
     private final Set<Subscription> subscriptions = new HashSet<>();
@@ -111,9 +114,18 @@ class Session {
         this.sessionQueue = sessionQueue;
     }
 
-    void update(boolean clean, Will will) {
+    int handle() {
+        return handle;
+    }
+
+    void bindHandle(int handle) {
+        this.handle = handle;
+    }
+
+    void update(boolean clean, Will will, Queue<EnqueuedMessage> sessionQueue) {
         this.clean = clean;
         this.will = will;
+        this.sessionQueue = sessionQueue;
     }
 
     void markConnecting() {
@@ -128,6 +140,14 @@ class Session {
         this.mqttConnection = mqttConnection;
     }
 
+    /**
+     * @return the event loop that serves the connection of the session, null when not connected.
+     */
+    EventLoop eventLoop() {
+        final MQTTConnection connection = mqttConnection;
+        return connected() && connection != null ? connection.channel.eventLoop() : null;
+    }
+
     public boolean disconnected() {
         return status.get() == SessionStatus.DISCONNECTED;
     }
@@ -308,6 +328,13 @@ class Session {
         }
     }
 
+    /**
+     * @return number of messages sent and not yet acknowledged by the client.
+     */
+    int inflightCount() {
+        return INFLIGHT_WINDOW_SIZE - inflightSlots.get();
+    }
+
     private boolean canSkipQueue() {
         return sessionQueue.isEmpty() &&
             inflightSlots.get() > 0 &&
@@ -19,6 +19,7 @@ import io.moquette.api.EnqueuedMessage;
 import io.moquette.api.IQueueRepository;
 import io.moquette.api.ISubscriptionsDirectory;
 import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
 import io.moquette.broker.Session.SessionStatus;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -28,7 +29,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -58,6 +61,7 @@ public class SessionRegistry {
     private static final Logger LOG = LoggerFactory.getLogger(SessionRegistry.class);
 
     private final ConcurrentMap<String, Session> pool = new ConcurrentHashMap<>();
+    private final SessionsByHandle sessionsByHandle = new SessionsByHandle();
     private final ISubscriptionsDirectory subscriptionsDirectory;
     private final IQueueRepository queueRepository;
     private final Authorizator authorizator;
@@ -85,6 +89,7 @@ public class SessionRegistry {
             if (persistentQueue != null) {
                 Session rehydrated = new Session(clientId, false, persistentQueue);
                 pool.put(clientId, rehydrated);
+                sessionsByHandle.register(rehydrated);
             }
         }
     }
@@ -102,6 +107,7 @@ public class SessionRegistry {
             final boolean success = previous == null;
 
             if (success) {
+                sessionsByHandle.register(newSession);
                 LOG.trace("case 1, not existing session with CId {}", clientId);
             } else {
                 postConnectAction = reopenExistingSession(msg, clientId, previous, newSession, username);
@@ -127,7 +133,10 @@ public class SessionRegistry {
                 // publish new session
                 dropQueuesForClient(clientId);
                 unsubscribe(oldSession);
-                copySessionConfig(msg, oldSession);
+                // the stored queue was just dropped, the clean session mustn't keep enqueuing in it
+                final Queue<EnqueuedMessage> cleanQueue =
+                    queues.computeIfAbsent(clientId, (String cli) -> queueRepository.createQueue(cli, true));
+                copySessionConfig(msg, oldSession, cleanQueue);
 
                 LOG.trace("case 2, oldSession with same CId {} disconnected", clientId);
                 creationResult = new SessionCreationResult(oldSession, CreationModeEnum.CREATED_CLEAN_NEW, true);
@@ -152,9 +161,16 @@ public class SessionRegistry {
 
         if (creationResult.mode == CreationModeEnum.DROP_EXISTING) {
             LOG.debug("Drop session of already connected client with same id");
-            if (!pool.replace(clientId, oldSession, newSession)) {
+            if (pool.replace(clientId, oldSession, newSession)) {
+                sessionsByHandle.replace(oldSession, newSession);
+            } else {
                 //the other client was disconnecting and removed it's own session
-                pool.put(clientId, newSession);
+                final Session previous = pool.put(clientId, newSession);
+                if (previous != null) {
+                    sessionsByHandle.replace(previous, newSession);
+                } else {
+                    sessionsByHandle.register(newSession);
+                }
             }
         } else {
             LOG.debug("Replace session of client with same id");
@@ -169,21 +185,31 @@ public class SessionRegistry {
 
     private void reactivateSubscriptions(Session session, String username) {
         //verify if subscription still satisfy read ACL permissions
+        final List<Topic> notReadableFilters = new ArrayList<>();
         for (Subscription existingSub : session.getSubscriptions()) {
             final boolean topicReadable = authorizator.canRead(existingSub.getTopicFilter(), username,
                                                                session.getClientID());
             if (!topicReadable) {
-                subscriptionsDirectory.removeSubscription(existingSub.getTopicFilter(), session.getClientID());
+                notReadableFilters.add(existingSub.getTopicFilter());
             }
             // TODO
 //            subscriptionsDirectory.reactivate(existingSub.getTopicFilter(), session.getClientID());
         }
+        if (!notReadableFilters.isEmpty()) {
+            subscriptionsDirectory.removeAllForClient(session.getClientID(), notReadableFilters);
+        }
     }
 
     private void unsubscribe(Session session) {
-        for (Subscription existingSub : session.getSubscriptions()) {
-            subscriptionsDirectory.removeSubscription(existingSub.getTopicFilter(), session.getClientID());
+        final List<Subscription> subscriptions = session.getSubscriptions();
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        final List<Topic> topicFilters = new ArrayList<>(subscriptions.size());
+        for (Subscription existingSub : subscriptions) {
+            topicFilters.add(existingSub.getTopicFilter());
         }
+        subscriptionsDirectory.removeAllForClient(session.getClientID(), topicFilters);
     }
 
     private Session createNewSession(MqttConnectMessage msg, String clientId) {
@@ -202,7 +228,7 @@ public class SessionRegistry {
         return newSession;
     }
 
-    private void copySessionConfig(MqttConnectMessage msg, Session session) {
+    private void copySessionConfig(MqttConnectMessage msg, Session session, Queue<EnqueuedMessage> sessionQueue) {
         final boolean clean = msg.variableHeader().isCleanSession();
         final Session.Will will;
         if (msg.variableHeader().isWillFlag()) {
@@ -210,7 +236,7 @@ public class SessionRegistry {
         } else {
             will = null;
         }
-        session.update(clean, will);
+        session.update(clean, will, sessionQueue);
     }
 
     private Session.Will createWill(MqttConnectMessage msg) {
@@ -225,12 +251,27 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * @return the session of the subscriber, looked up by handle when the subscription has a valid one.
+     */
+    Session retrieve(Subscription subscription) {
+        final Session session = sessionsByHandle.get(subscription.getClientHandle());
+        // a handle could have been recycled after the subscription was created
+        if (session != null && session.getClientID().equals(subscription.getClientId())) {
+            return session;
+        }
+        return pool.get(subscription.getClientId());
+    }
+
     public void remove(Session session) {
-        pool.remove(session.getClientID(), session);
+        if (pool.remove(session.getClientID(), session)) {
+            sessionsByHandle.release(session);
+        }
     }
 
     private void dropQueuesForClient(String clientId) {
         queues.remove(clientId);
+        queueRepository.dropQueue(clientId);
     }
 
     Collection<ClientDescriptor> listConnectedClients() {
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.api.Subscription;
+
+import java.util.Arrays;
+
+/**
+ * Sessions of the pool indexed by a dense integer handle, assigned when a session enters the pool and
+ * recycled when it leaves. Subscriptions carry the handle of the subscribing session, so that dispatching
+ * a publish to thousands of subscribers is an array access per subscriber instead of a lookup by client id.
+ * <p>
+ * Reads don't lock, the updates, that happen only on connect and disconnect, are serialized.
+ */
+final class SessionsByHandle {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile Session[] sessions = new Session[INITIAL_CAPACITY];
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+    // 0 is Subscription.NO_CLIENT_HANDLE
+    private int nextHandle = 1;
+
+    /**
+     * @return the session bound to the handle, or null.
+     */
+    Session get(int handle) {
+        final Session[] current = sessions;
+        return handle > 0 && handle < current.length ? current[handle] : null;
+    }
+
+    /**
+     * Assign a new handle to the session that just entered the pool.
+     */
+    synchronized void register(Session session) {
+        final int handle = freeCount > 0 ? freeHandles[--freeCount] : nextHandle++;
+        session.bindHandle(handle);
+        Session[] current = sessions;
+        if (handle >= current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[handle] = session;
+        // volatile write, publishes the slot to the readers
+        sessions = current;
+    }
+
+    /**
+     * The new session takes the place of the old one in the pool and inherits its handle, so that the
+     * subscriptions already in the tree keep pointing to the right session.
+     */
+    synchronized void replace(Session oldSession, Session newSession) {
+        final int handle = oldSession.handle();
+        final Session[] current = sessions;
+        if (handle == Subscription.NO_CLIENT_HANDLE || current[handle] != oldSession) {
+            register(newSession);
+            return;
+        }
+        newSession.bindHandle(handle);
+        current[handle] = newSession;
+        sessions = current;
+    }
+
+    /**
+     * Free the handle of the session that left the pool, if it's still bound to it.
+     */
+    synchronized void release(Session session) {
+        final int handle = session.handle();
+        final Session[] current = sessions;
+        if (handle == Subscription.NO_CLIENT_HANDLE || current[handle] != session) {
+            return;
+        }
+        current[handle] = null;
+        sessions = current;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = handle;
+    }
+}
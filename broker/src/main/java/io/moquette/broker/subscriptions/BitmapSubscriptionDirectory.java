@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+import io.moquette.api.ISubscriptionsRepository;
+import io.moquette.api.MatchedSubscriptions;
+import io.moquette.api.Subscription;
+import io.moquette.api.Token;
+import io.moquette.api.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Subscriptions directory that indexes the topic filters by (level, token) in compressed bitmaps, instead of
+ * navigating a tree. Every distinct filter has an int id, a publish topic intersects, level by level, the
+ * filters with its token or a + on that level, so that filters full of + like +/+/alarm/# are resolved by
+ * a few bitmap operations instead of exploring every + branch.
+ * <p>
+ * Matching holds a read lock, changes to the subscriptions hold the write lock.
+ */
+public class BitmapSubscriptionDirectory implements ISubscriptionsDirectory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BitmapSubscriptionDirectory.class);
+
+    /**
+     * The subscriptions on a topic filter, shared ones are grouped by share name.
+     */
+    private static final class FilterEntry {
+        final int id;
+        final Topic filter;
+        final Map<String, Subscription> subscriptions = new HashMap<>();
+        final Map<String, SharedGroup> sharedGroups = new HashMap<>();
+
+        FilterEntry(int id, Topic filter) {
+            this.id = id;
+            this.filter = filter;
+        }
+
+        boolean isEmpty() {
+            return subscriptions.isEmpty() && sharedGroups.isEmpty();
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Topic, FilterEntry> filters = new HashMap<>();
+    private FilterEntry[] filtersById = new FilterEntry[1024];
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private int nextId;
+    // filters with the token on the level
+    private final List<Map<Token, CompressedBitmap>> exactByLevel = new ArrayList<>();
+    // filters with a + on the level
+    private final List<CompressedBitmap> singleWildcardByLevel = new ArrayList<>();
+    // filters that end with a # on the level
+    private final List<CompressedBitmap> multiWildcardByLevel = new ArrayList<>();
+    // filters without # by number of levels
+    private final List<CompressedBitmap> byLength = new ArrayList<>();
+    private volatile int subscriptionsCount;
+
+    private volatile ISubscriptionsRepository subscriptionsRepository;
+    private final TopicMatchCache matchCache;
+    private final ISharedSubscriptionSelector sharedSelector;
+
+    public BitmapSubscriptionDirectory() {
+        this(0, SharedSubscriptionSelectors.roundRobin());
+    }
+
+    /**
+     * @param matchCacheSize max number of publish topics whose matching subscriptions are cached, 0 disables
+     *                       the cache.
+     * @param sharedSelector chooses the member of a shared subscription group that receives a message.
+     */
+    public BitmapSubscriptionDirectory(int matchCacheSize, ISharedSubscriptionSelector sharedSelector) {
+        this.matchCache = matchCacheSize > 0 ? new TopicMatchCache(matchCacheSize) : null;
+        this.sharedSelector = sharedSelector;
+    }
+
+    @Override
+    public void init(ISubscriptionsRepository subscriptionsRepository) {
+        LOG.info("Initializing subscriptions bitmap index");
+        this.subscriptionsRepository = subscriptionsRepository;
+        this.subscriptionsRepository.forEachSubscription(subscription -> {
+            LOG.debug("Re-subscribing {}", subscription);
+            addToIndex(subscription);
+        });
+    }
+
+    /**
+     * @return the list of client ids that has a subscription stored.
+     */
+    @Override
+    public Set<String> listAllSessionIds() {
+        final Set<String> clientIds = new HashSet<>();
+        subscriptionsRepository.forEachClientId(clientIds::add);
+        return clientIds;
+    }
+
+    @Override
+    public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        match(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    @Override
+    public Set<Subscription> matchQosSharpening(Topic topic) {
+        final MatchedSubscriptions matched = new MatchedSubscriptions();
+        matchQosSharpening(topic, matched);
+        final Set<Subscription> subscriptions = new HashSet<>(matched.size());
+        for (int i = 0; i < matched.size(); i++) {
+            subscriptions.add(matched.get(i));
+        }
+        return subscriptions;
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, MatchedSubscriptions matched) {
+        if (matchCache == null || !matched.isEmpty()) {
+            // a partially filled accumulator can't be stored as the result of this topic
+            match(topic, matched);
+            return;
+        }
+        if (matchCache.matchInto(topic, matched)) {
+            return;
+        }
+        final long generation = matchCache.generation();
+        final boolean shared = match(topic, matched);
+        if (!shared) {
+            // the members of the shared groups are chosen at every publish, it can't be cached
+            matchCache.put(topic, matched, generation);
+        }
+    }
+
+    @Override
+    public void matchWithoutQosSharpening(Topic topic, Consumer<Subscription> visitor) {
+        match(topic, visitor);
+    }
+
+    /**
+     * @return true if some of the subscriptions have been chosen from a shared group.
+     */
+    private boolean match(Topic topic, Consumer<Subscription> visitor) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            boolean shared = false;
+            // the filters that match all the levels before the current one, null before the first level
+            CompressedBitmap matching = null;
+            for (int level = 0; level < tokens.size(); level++) {
+                // # matches also the parent level
+                shared |= visit(intersect(matching, at(multiWildcardByLevel, level)), topic, visitor);
+
+                final CompressedBitmap exact = level < exactByLevel.size()
+                    ? exactByLevel.get(level).get(tokens.get(level))
+                    : null;
+                final CompressedBitmap single = at(singleWildcardByLevel, level);
+                final CompressedBitmap levelMatching = exact == null ? single
+                    : single == null ? exact : CompressedBitmap.or(exact, single);
+                matching = intersect(matching, levelMatching);
+                if (matching == null || matching.isEmpty()) {
+                    return shared;
+                }
+            }
+            shared |= visit(CompressedBitmap.and(matching, at(multiWildcardByLevel, tokens.size())), topic, visitor);
+            shared |= visit(CompressedBitmap.and(matching, at(byLength, tokens.size())), topic, visitor);
+            return shared;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param matching null stands for all the filters.
+     */
+    private static CompressedBitmap intersect(CompressedBitmap matching, CompressedBitmap other) {
+        return matching == null ? other : CompressedBitmap.and(matching, other);
+    }
+
+    private static CompressedBitmap at(List<CompressedBitmap> bitmaps, int level) {
+        return level < bitmaps.size() ? bitmaps.get(level) : null;
+    }
+
+    private boolean visit(CompressedBitmap matching, Topic topic, Consumer<Subscription> visitor) {
+        if (matching == null || matching.isEmpty()) {
+            return false;
+        }
+        final boolean[] shared = {false};
+        matching.forEach(id -> {
+            final FilterEntry entry = filtersById[id];
+            entry.subscriptions.values().forEach(visitor);
+            for (SharedGroup group : entry.sharedGroups.values()) {
+                visitor.accept(sharedSelector.select(group, topic));
+                shared[0] = true;
+            }
+        });
+        return shared[0];
+    }
+
+    @Override
+    public void add(Subscription newSubscription) {
+        addToIndex(newSubscription);
+        invalidateMatchCache(newSubscription.getTopicFilter());
+        subscriptionsRepository.addNewSubscription(newSubscription);
+    }
+
+    private void addToIndex(Subscription newSubscription) {
+        final Topic topicFilter = newSubscription.getTopicFilter();
+        final boolean isShared = topicFilter.isShared();
+        final Topic filter = isShared ? topicFilter.sharedFilter() : topicFilter;
+        lock.writeLock().lock();
+        try {
+            FilterEntry entry = filters.get(filter);
+            if (entry == null) {
+                entry = new FilterEntry(allocateId(), filter);
+                filters.put(filter, entry);
+                filtersById[entry.id] = entry;
+                index(entry);
+            }
+            final Subscription subscription = new Subscription(newSubscription);
+            final String clientId = subscription.getClientId();
+            if (isShared) {
+                final SharedGroup group = entry.sharedGroups.get(topicFilter.shareName());
+                final SharedGroup updated = group == null ? SharedGroup.of(subscription) : group.add(subscription);
+                entry.sharedGroups.put(topicFilter.shareName(), updated);
+                subscriptionsCount += updated.size() - (group == null ? 0 : group.size());
+            } else {
+                // if already contains one with same topic and same client, keep that with higher QoS
+                final Subscription existing = entry.subscriptions.get(clientId);
+                if (existing == null) {
+                    entry.subscriptions.put(clientId, subscription);
+                    subscriptionsCount++;
+                } else if (existing.qosLessThan(subscription)) {
+                    entry.subscriptions.put(clientId, subscription);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeSubscription(Topic topic, String clientID) {
+        removeFromIndex(topic, clientID);
+        invalidateMatchCache(topic);
+        this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
+    }
+
+    private void removeFromIndex(Topic topicFilter, String clientId) {
+        final boolean isShared = topicFilter.isShared();
+        final Topic filter = isShared ? topicFilter.sharedFilter() : topicFilter;
+        lock.writeLock().lock();
+        try {
+            final FilterEntry entry = filters.get(filter);
+            if (entry == null) {
+                return;
+            }
+            if (isShared) {
+                final SharedGroup group = entry.sharedGroups.get(topicFilter.shareName());
+                if (group != null) {
+                    final SharedGroup updated = group.remove(clientId);
+                    if (updated == null) {
+                        entry.sharedGroups.remove(topicFilter.shareName());
+                    } else {
+                        entry.sharedGroups.put(topicFilter.shareName(), updated);
+                    }
+                    subscriptionsCount -= group.size() - (updated == null ? 0 : updated.size());
+                }
+            } else if (entry.subscriptions.remove(clientId) != null) {
+                subscriptionsCount--;
+            }
+            if (entry.isEmpty()) {
+                unindex(entry);
+                filters.remove(filter);
+                filtersById[entry.id] = null;
+                freeIds.push(entry.id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int allocateId() {
+        final Integer free = freeIds.poll();
+        if (free != null) {
+            return free;
+        }
+        if (nextId == filtersById.length) {
+            filtersById = Arrays.copyOf(filtersById, filtersById.length * 2);
+        }
+        return nextId++;
+    }
+
+    private void index(FilterEntry entry) {
+        final List<Token> tokens = tokensOf(entry.filter);
+        for (int level = 0; level < tokens.size(); level++) {
+            final Token token = tokens.get(level);
+            if (Token.MULTI.equals(token)) {
+                bitmapAt(multiWildcardByLevel, level).add(entry.id);
+                return;
+            }
+            if (Token.SINGLE.equals(token)) {
+                bitmapAt(singleWildcardByLevel, level).add(entry.id);
+            } else {
+                while (exactByLevel.size() <= level) {
+                    exactByLevel.add(new HashMap<>());
+                }
+                exactByLevel.get(level).computeIfAbsent(token, t -> new CompressedBitmap()).add(entry.id);
+            }
+        }
+        bitmapAt(byLength, tokens.size()).add(entry.id);
+    }
+
+    private void unindex(FilterEntry entry) {
+        final List<Token> tokens = tokensOf(entry.filter);
+        for (int level = 0; level < tokens.size(); level++) {
+            final Token token = tokens.get(level);
+            if (Token.MULTI.equals(token)) {
+                multiWildcardByLevel.get(level).remove(entry.id);
+                return;
+            }
+            if (Token.SINGLE.equals(token)) {
+                singleWildcardByLevel.get(level).remove(entry.id);
+            } else {
+                final Map<Token, CompressedBitmap> exact = exactByLevel.get(level);
+                final CompressedBitmap bitmap = exact.get(token);
+                bitmap.remove(entry.id);
+                if (bitmap.isEmpty()) {
+                    exact.remove(token);
+                }
+            }
+        }
+        byLength.get(tokens.size()).remove(entry.id);
+    }
+
+    private static CompressedBitmap bitmapAt(List<CompressedBitmap> bitmaps, int level) {
+        while (bitmaps.size() <= level) {
+            bitmaps.add(new CompressedBitmap());
+        }
+        return bitmaps.get(level);
+    }
+
+    private static List<Token> tokensOf(Topic filter) {
+        final List<Token> tokens = filter.getTokens();
+        // not valid filters are indexed with no levels, like the CTrie they are never matched
+        return tokens == null ? new ArrayList<>() : tokens;
+    }
+
+    private void invalidateMatchCache(Topic filter) {
+        if (matchCache != null) {
+            matchCache.invalidate(filter);
+        }
+    }
+
+    /**
+     * @return number of publish topics served by the match cache, 0 when the cache is disabled.
+     */
+    public long matchCacheHits() {
+        return matchCache == null ? 0 : matchCache.hits();
+    }
+
+    /**
+     * @return number of publish topics that had to be matched against the index because not cached, 0 when
+     * the cache is disabled.
+     */
+    public long matchCacheMisses() {
+        return matchCache == null ? 0 : matchCache.misses();
+    }
+
+    @Override
+    public int size() {
+        return subscriptionsCount;
+    }
+
+    /**
+     * @return a line for each topic filter, sorted by filter, with its subscriptions.
+     */
+    @Override
+    public String dumpTree() {
+        final Map<String, List<Subscription>> sorted = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            for (FilterEntry entry : filters.values()) {
+                final List<Subscription> subscriptions = new ArrayList<>(entry.subscriptions.values());
+                for (SharedGroup group : entry.sharedGroups.values()) {
+                    subscriptions.addAll(group.members());
+                }
+                sorted.put(entry.filter.toString(), subscriptions);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        final StringBuilder dump = new StringBuilder();
+        for (Map.Entry<String, List<Subscription>> entry : sorted.entrySet()) {
+            dump.append(entry.getKey()).append(" ~~").append(entry.getValue()).append('\n');
+        }
+        return dump.toString();
+    }
+}
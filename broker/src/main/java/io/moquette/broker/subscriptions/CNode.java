@@ -17,126 +17,198 @@ package io.moquette.broker.subscriptions;
 
 import io.moquette.api.Subscription;
 import io.moquette.api.Token;
+import io.moquette.api.Topic;
 
 import java.util.*;
 
 class CNode {
 
-    private Token token;
-    private List<INode> children;
-    Set<Subscription> subscriptions;
+    // children indexed by the first token of the edge, the wildcard ones are kept apart so that matching
+    // doesn't need a scan
+    private HashTrieMap<Token, Edge> children;
+    private Edge singleWildcardChild;
+    private Edge multiWildcardChild;
+    // all the subscriptions of a node share the same topic filter, so the client identifies them
+    private HashTrieMap<String, Subscription> subscriptions;
+    // shared subscriptions on the filter of this node, indexed by share name
+    private HashTrieMap<String, SharedGroup> sharedGroups;
+    // members of all the shared groups, kept up to date so that counting doesn't visit the groups
+    private int sharedMembers;
 
     CNode() {
-        this.children = new ArrayList<>();
-        this.subscriptions = new HashSet<>();
+        this.children = HashTrieMap.empty();
+        this.subscriptions = HashTrieMap.empty();
+        this.sharedGroups = HashTrieMap.empty();
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
-        this.token = token; // keep reference, root comparison in directory logic relies on it for now.
-        this.subscriptions = new HashSet<>(subscriptions);
-        this.children = new ArrayList<>(children);
+    private CNode(CNode orig) {
+        // children and subscriptions are persistent maps, a copy shares them and updates build new versions
+        this.subscriptions = orig.subscriptions;
+        this.sharedGroups = orig.sharedGroups;
+        this.sharedMembers = orig.sharedMembers;
+        this.children = orig.children;
+        this.singleWildcardChild = orig.singleWildcardChild;
+        this.multiWildcardChild = orig.multiWildcardChild;
     }
 
-    public Token getToken() {
-        return token;
+    /**
+     * @return all the children edges of this node, exact ones before the wildcards.
+     * */
+    List<Edge> allChildren() {
+        final List<Edge> all = new ArrayList<>(childrenCount());
+        all.addAll(this.children.values());
+        if (singleWildcardChild != null) {
+            all.add(singleWildcardChild);
+        }
+        if (multiWildcardChild != null) {
+            all.add(multiWildcardChild);
+        }
+        return all;
     }
 
-    public void setToken(Token token) {
-        this.token = token;
+    boolean hasChildren() {
+        return childrenCount() > 0;
     }
 
-    boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
+    private int childrenCount() {
+        int count = this.children.size();
+        if (singleWildcardChild != null) {
+            count++;
         }
-        return false;
-    }
-
-    List<INode> allChildren() {
-        return this.children;
+        if (multiWildcardChild != null) {
+            count++;
+        }
+        return count;
     }
 
-    INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return iNode;
-            }
+    /**
+     * @return the edge that starts with exactly the token, wildcards are compared as plain tokens, or null.
+     * */
+    Edge childOrNull(Token token) {
+        if (Token.SINGLE.equals(token)) {
+            return singleWildcardChild;
+        }
+        if (Token.MULTI.equals(token)) {
+            return multiWildcardChild;
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        return this.children.get(token);
     }
 
-    private boolean equalsToken(Token token) {
-        return token != null && this.token != null && this.token.equals(token);
+    Edge singleWildcardChild() {
+        return singleWildcardChild;
     }
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(token);
+    Edge multiWildcardChild() {
+        return multiWildcardChild;
     }
 
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this);
     }
 
-    public void add(INode newINode) {
-        this.children.add(newINode);
+    /**
+     * Add a child edge, replaces any other edge (usually to a tomb, or the one being split) with the same first token.
+     * */
+    public void add(Edge edge) {
+        final Token childToken = edge.first();
+        if (Token.SINGLE.equals(childToken)) {
+            singleWildcardChild = edge;
+        } else if (Token.MULTI.equals(childToken)) {
+            multiWildcardChild = edge;
+        } else {
+            this.children = this.children.put(childToken, edge);
+        }
     }
 
-    public void remove(INode node) {
-        this.children.remove(node);
+    /**
+     * Remove the edge starting with the token, only if it still leads to the node.
+     * */
+    public void remove(Token childToken, INode node) {
+        if (Token.SINGLE.equals(childToken)) {
+            if (singleWildcardChild != null && singleWildcardChild.node() == node) {
+                singleWildcardChild = null;
+            }
+        } else if (Token.MULTI.equals(childToken)) {
+            if (multiWildcardChild != null && multiWildcardChild.node() == node) {
+                multiWildcardChild = null;
+            }
+        } else {
+            final Edge edge = this.children.get(childToken);
+            if (edge != null && edge.node() == node) {
+                this.children = this.children.remove(childToken);
+            }
+        }
     }
 
     CNode addSubscription(Subscription newSubscription) {
+        final Topic topicFilter = newSubscription.getTopicFilter();
+        if (topicFilter.isShared()) {
+            final SharedGroup group = sharedGroups.get(topicFilter.shareName());
+            final Subscription member = new Subscription(newSubscription);
+            final SharedGroup updated = group == null ? SharedGroup.of(member) : group.add(member);
+            sharedGroups = sharedGroups.put(topicFilter.shareName(), updated);
+            sharedMembers += updated.size() - (group == null ? 0 : group.size());
+            return this;
+        }
         // if already contains one with same topic and same client, keep that with higher QoS
-        if (subscriptions.contains(newSubscription)) {
-            final Subscription existing = subscriptions.stream()
-                .filter(s -> s.equals(newSubscription))
-                .findFirst().get();
-            if (existing.getRequestedQos().value() < newSubscription.getRequestedQos().value()) {
-                subscriptions.remove(existing);
-                subscriptions.add(new Subscription(newSubscription));
-            }
-        } else {
-            this.subscriptions.add(new Subscription(newSubscription));
+        final Subscription existing = subscriptions.get(newSubscription.getClientId());
+        if (existing == null || existing.qosLessThan(newSubscription)) {
+            subscriptions = subscriptions.put(newSubscription.getClientId(), new Subscription(newSubscription));
         }
         return this;
     }
 
     /**
-     * @return true iff the subscriptions contained in this node are owned by clientId
-     *   AND at least one subscription is actually present for that clientId
+     * @return the subscriptions of this node, at most one per client, shared ones excluded.
      * */
-    boolean containsOnly(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (!sub.getClientId().equals(clientId)) {
-                return false;
-            }
-        }
-        return !this.subscriptions.isEmpty();
+    Collection<Subscription> subscriptions() {
+        return subscriptions.values();
     }
 
-    //TODO this is equivalent to negate(containsOnly(clientId))
-    public boolean contains(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (sub.getClientId().equals(clientId)) {
-                return true;
-            }
+    Collection<SharedGroup> sharedGroups() {
+        return sharedGroups.values();
+    }
+
+    /**
+     * @return number of subscriptions of this node, counting every member of the shared groups.
+     * */
+    int subscriptionsCount() {
+        return subscriptions.size() + sharedMembers;
+    }
+
+    /**
+     * @return true iff there isn't any subscription, shared or not, on this node.
+     * */
+    boolean hasNoSubscriptions() {
+        return subscriptions.isEmpty() && sharedGroups.isEmpty();
+    }
+
+    /**
+     * @param shareName the name of the shared group or null for a not shared subscription.
+     * */
+    boolean contains(String shareName, String clientId) {
+        if (shareName == null) {
+            return subscriptions.containsKey(clientId);
         }
-        return false;
+        final SharedGroup group = sharedGroups.get(shareName);
+        return group != null && group.contains(clientId);
     }
 
-    void removeSubscriptionsFor(String clientId) {
-        Set<Subscription> toRemove = new HashSet<>();
-        for (Subscription sub : this.subscriptions) {
-            if (sub.getClientId().equals(clientId)) {
-                toRemove.add(sub);
-            }
+    /**
+     * @param shareName the name of the shared group or null for a not shared subscription.
+     * */
+    void removeSubscriptionsFor(String shareName, String clientId) {
+        if (shareName == null) {
+            subscriptions = subscriptions.remove(clientId);
+            return;
+        }
+        final SharedGroup group = sharedGroups.get(shareName);
+        if (group == null) {
+            return;
         }
-        this.subscriptions.removeAll(toRemove);
+        final SharedGroup updated = group.remove(clientId);
+        sharedGroups = updated == null ? sharedGroups.remove(shareName) : sharedGroups.put(shareName, updated);
+        sharedMembers -= group.size() - (updated == null ? 0 : updated.size());
     }
 }
@@ -4,16 +4,33 @@ import io.moquette.api.Subscription;
 import io.moquette.api.Token;
 import io.moquette.api.Topic;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class CTrie {
 
     interface IVisitor<T> {
 
-        void visit(CNode node, int deep);
+        void visit(Edge edge, CNode node, int deep);
+
+        /**
+         * @return true when the visitor doesn't need the remaining nodes.
+         * */
+        default boolean isDone() {
+            return false;
+        }
 
         T getResult();
     }
@@ -26,171 +43,757 @@ public class CTrie {
     }
 
     INode root;
+    private final ISharedSubscriptionSelector sharedSelector;
+    // statistics updated after every successful CAS, so that reading them doesn't need to visit the tree
+    private final LongAdder exactSubscriptions = new LongAdder();
+    private final LongAdder wildcardSubscriptions = new LongAdder();
+    private final ConcurrentMap<String, Integer> subscriptionsPerClient = new ConcurrentHashMap<>();
+    private final NoMatchFilter noMatchFilter;
 
     CTrie() {
-        final CNode mainNode = new CNode();
-        mainNode.setToken(ROOT);
-        this.root = new INode(mainNode);
+        this(SharedSubscriptionSelectors.roundRobin());
+    }
+
+    CTrie(ISharedSubscriptionSelector sharedSelector) {
+        this(sharedSelector, null);
+    }
+
+    /**
+     * @param noMatchFilter the filter that recognizes the topics without subscribers, kept up to date with the
+     *                      filters of this tree, null to not use it. It can be shared by many trees.
+     */
+    CTrie(ISharedSubscriptionSelector sharedSelector, NoMatchFilter noMatchFilter) {
+        this.root = new INode(new CNode());
+        this.sharedSelector = sharedSelector;
+        this.noMatchFilter = noMatchFilter;
     }
 
+    /**
+     * @return the node of the topic, empty if the topic ends in the middle of an edge.
+     * */
     Optional<CNode> lookup(Topic topic) {
+        final List<Token> tokens = tokensOf(topic);
         INode inode = this.root;
-        Token token = topic.headToken();
-        while (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            topic = topic.exceptHeadToken();
-            inode = inode.mainNode().childOf(token);
-            token = topic.headToken();
-        }
-        if (inode == null || !topic.isEmpty()) {
-            return Optional.empty();
+        int level = 0;
+        while (level < tokens.size()) {
+            final Edge edge = liveChild(inode.mainNode(), tokens, level);
+            if (edge == null) {
+                return Optional.empty();
+            }
+            inode = edge.node();
+            level += edge.length();
         }
         return Optional.of(inode.mainNode());
     }
 
-    enum NavigationAction {
-        MATCH, GODEEP, STOP
+    /**
+     * @return the edge whose tokens are all equal to the ones starting at level and that doesn't lead to a tomb,
+     * or null.
+     * */
+    private static Edge liveChild(CNode cnode, List<Token> tokens, int level) {
+        final Edge edge = cnode.childOrNull(tokens.get(level));
+        if (edge == null || edge.node().isTombed() || !edge.isPrefixOf(tokens, level)) {
+            return null;
+        }
+        return edge;
     }
 
-    private NavigationAction evaluate(Topic topic, CNode cnode) {
-        if (Token.MULTI.equals(cnode.getToken())) {
-            return NavigationAction.MATCH;
-        }
-        if (topic.isEmpty()) {
-            return NavigationAction.STOP;
-        }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken()))) {
-            return NavigationAction.STOP;
-        }
-        return NavigationAction.GODEEP;
+    /**
+     * The tries navigates the tokens of the topics by level index, to not create a sub topic for
+     * every level.
+     * */
+    private static List<Token> tokensOf(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        // not valid topic are considered empty
+        return tokens == null ? Collections.emptyList() : tokens;
+    }
+
+    /**
+     * Shared subscriptions are stored in the node of the filter they are applied to.
+     * */
+    private static List<Token> filterTokensOf(Topic topicFilter) {
+        return tokensOf(topicFilter.isShared() ? topicFilter.sharedFilter() : topicFilter);
+    }
+
+    /**
+     * The tokens of a filter that is stored in the tree are interned, so that the publishes that look them up
+     * while parsing compare by reference.
+     * */
+    private static List<Token> storedFilterTokensOf(Topic topicFilter) {
+        final List<Token> tokens = (topicFilter.isShared() ? topicFilter.sharedFilter() : topicFilter).internedTokens();
+        return tokens == null ? Collections.emptyList() : tokens;
     }
 
     public Set<Subscription> recursiveMatch(Topic topic) {
-        return recursiveMatch(topic, this.root);
+        final Set<Subscription> subscriptions = new HashSet<>();
+        recursiveMatch(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    /**
+     * Push all the subscriptions matching the topic to the visitor. For every matching shared subscription
+     * group only the member chosen by the selector is pushed.
+     * */
+    public void recursiveMatch(Topic topic, Consumer<Subscription> visitor) {
+        match(topic, visitor);
+    }
+
+    /**
+     * Same as {@link #recursiveMatch(Topic, Consumer)}.
+     *
+     * @return true if some of the subscriptions have been chosen from a shared group, so that matching again
+     * the same topic could give a different result.
+     * */
+    boolean match(Topic topic, Consumer<Subscription> visitor) {
+        final List<Token> tokens = tokensOf(topic);
+        if (tokens.isEmpty()) {
+            return false;
+        }
+        return recursiveMatch(tokens, 0, this.root.mainNode(), topic, visitor);
     }
 
-    private Set<Subscription> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
+    /**
+     * @param level the number of tokens consumed to reach the node.
+     * */
+    private boolean recursiveMatch(List<Token> tokens, int level, CNode cnode, Topic topic,
+                                   Consumer<Subscription> visitor) {
         if (cnode instanceof TNode) {
-            return Collections.emptySet();
+            return false;
+        }
+        boolean shared = false;
+        if (level == tokens.size()) {
+            shared = visitSubscriptions(cnode, topic, visitor);
+        } else {
+            final Token token = tokens.get(level);
+            if (!Token.SINGLE.equals(token) && !Token.MULTI.equals(token)) {
+                final Edge exactChild = cnode.childOrNull(token);
+                if (exactChild != null && exactChild.matchesAfterFirst(tokens, level)) {
+                    shared = recursiveMatch(tokens, level + exactChild.length(), exactChild.node().mainNode(),
+                        topic, visitor);
+                }
+            }
+            final Edge singleWildcardChild = cnode.singleWildcardChild();
+            if (singleWildcardChild != null && singleWildcardChild.matchesAfterFirst(tokens, level)) {
+                shared |= recursiveMatch(tokens, level + singleWildcardChild.length(),
+                    singleWildcardChild.node().mainNode(), topic, visitor);
+            }
         }
-        NavigationAction action = evaluate(topic, cnode);
-        if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
+        // # matches also the parent level
+        final Edge multiWildcardChild = cnode.multiWildcardChild();
+        if (multiWildcardChild != null) {
+            final CNode multiWildcardNode = multiWildcardChild.node().mainNode();
+            if (!(multiWildcardNode instanceof TNode)) {
+                shared |= visitSubscriptions(multiWildcardNode, topic, visitor);
+            }
         }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptySet();
+        return shared;
+    }
+
+    /**
+     * Cheap check done before matching, it never answers false for a topic that has subscribers, but can
+     * answer true for a topic that has none. A subscription is seen by this check just after it becomes
+     * visible to the match, before the subscribe completes.
+     *
+     * @return false if no subscription matches the topic.
+     * */
+    boolean mayMatch(Topic topic) {
+        return noMatchFilter == null || noMatchFilter.mayMatch(tokensOf(topic));
+    }
+
+    /**
+     * @return true if a shared subscription group has been visited.
+     * */
+    private boolean visitSubscriptions(CNode cnode, Topic topic, Consumer<Subscription> visitor) {
+        for (Subscription subscription : cnode.subscriptions()) {
+            visitor.accept(subscription);
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        final Collection<SharedGroup> groups = cnode.sharedGroups();
+        if (groups.isEmpty()) {
+            return false;
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        for (SharedGroup group : groups) {
+            visitor.accept(sharedSelector.select(group, topic));
         }
-        return subscriptions;
+        return true;
     }
 
     public void addToTree(Subscription newSubscription) {
-        Action res;
+        final List<Token> tokens = storedFilterTokensOf(newSubscription.getTopicFilter());
+        Insertion res;
         do {
-            res = insert(newSubscription.getTopicFilter(), this.root, newSubscription);
-        } while (res == Action.REPEAT);
+            res = insert(tokens, 0, this.root, newSubscription);
+        } while (res == Insertion.REPEAT);
+        if (res == Insertion.ADDED) {
+            subscriptionAdded(newSubscription.getClientId(), tokens);
+        }
     }
 
-    private Action insert(Topic topic, final INode inode, Subscription newSubscription) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return insert(remainingTopic, nextInode, newSubscription);
-        } else {
-            if (topic.isEmpty()) {
-                return insertSubscription(inode, newSubscription);
-            } else {
-                return createNodeAndInsertSubscription(topic, inode, newSubscription);
+    private enum Insertion {
+        ADDED, REPLACED, REPEAT
+    }
+
+    /**
+     * A filter of a batch, with its tokens.
+     * */
+    private abstract static class PendingFilter implements Comparable<PendingFilter> {
+        final List<Token> tokens;
+        // the tokens joined by U+0000, that is forbidden in topic names, so that sorting by key sorts by tokens
+        private final String sortKey;
+
+        PendingFilter(List<Token> tokens) {
+            this.tokens = tokens;
+            final StringBuilder key = new StringBuilder();
+            for (Token token : tokens) {
+                key.append(token.toString()).append('\u0000');
             }
+            this.sortKey = key.toString();
+        }
+
+        /**
+         * Order by tokens, so that the filters with a common prefix are next to each other.
+         * */
+        @Override
+        public int compareTo(PendingFilter other) {
+            return sortKey.compareTo(other.sortKey);
         }
     }
 
-    private Action insertSubscription(INode inode, Subscription newSubscription) {
-        CNode cnode = inode.mainNode();
+    /**
+     * A subscription of a batch, with the tokens of its filter.
+     * */
+    private static final class PendingSubscription extends PendingFilter {
+        final Subscription subscription;
+
+        PendingSubscription(Subscription subscription) {
+            super(storedFilterTokensOf(subscription.getTopicFilter()));
+            this.subscription = subscription;
+        }
+
+        String shareName() {
+            final Topic topicFilter = subscription.getTopicFilter();
+            return topicFilter.isShared() ? topicFilter.shareName() : null;
+        }
+    }
+
+    /**
+     * A filter of a batch of removals, with the name of its shared group or null.
+     * */
+    private static final class PendingRemoval extends PendingFilter {
+        final String shareName;
+
+        PendingRemoval(Topic topicFilter) {
+            super(filterTokensOf(topicFilter));
+            this.shareName = topicFilter.isShared() ? topicFilter.shareName() : null;
+        }
+    }
+
+    /**
+     * Add many subscriptions, grouped by the levels that their filters share. Every node of the tree is updated
+     * with a single CAS that adds all the subscriptions that end there and all the new branches below it, so
+     * that filters with a common prefix don't walk and copy the same nodes again and again. The subscriptions
+     * that need to split an existing edge, or that find a node removed meanwhile, are added one by one.
+     * */
+    public void addAllToTree(Collection<Subscription> newSubscriptions) {
+        final PendingSubscription[] sorted = new PendingSubscription[newSubscriptions.size()];
+        int i = 0;
+        for (Subscription subscription : newSubscriptions) {
+            sorted[i++] = new PendingSubscription(subscription);
+        }
+        // stable, the subscriptions to the same filter keep the order of the request
+        Arrays.sort(sorted);
+        final List<PendingSubscription> leftovers = new ArrayList<>();
+        insertAll(sorted, 0, sorted.length, 0, this.root, leftovers);
+        for (PendingSubscription leftover : leftovers) {
+            addToTree(leftover.subscription);
+        }
+    }
+
+    /**
+     * @param from first of the sorted subscriptions to insert below the node.
+     * @param to end, excluded, of the sorted subscriptions to insert below the node.
+     * @param level the number of tokens consumed to reach the node, shared by all the filters in the range.
+     * @param leftovers collects the subscriptions that have to be added one by one.
+     * */
+    private void insertAll(PendingSubscription[] sorted, int from, int to, int level, INode inode,
+                           List<PendingSubscription> leftovers) {
+        if (to - from == 1) {
+            // nothing to share with other filters, the plain insertion continues from here
+            final PendingSubscription pending = sorted[from];
+            final Insertion res = insert(pending.tokens, level, inode, pending.subscription);
+            if (res == Insertion.REPEAT) {
+                leftovers.add(pending);
+            } else if (res == Insertion.ADDED) {
+                subscriptionAdded(pending.subscription.getClientId(), pending.tokens);
+            }
+            return;
+        }
+        // the filters ending at this node come first
+        final int endingHere = endOfFiltersEndingAt(sorted, from, to, level);
+        final List<PendingSubscription> added = new ArrayList<>();
+        final List<PendingSubscription> skipped = new ArrayList<>();
+        // the edges to descend, each with the range of the filters that continue below it
+        final List<Edge> descendingEdges = new ArrayList<>();
+        final List<int[]> descendingRanges = new ArrayList<>();
+        while (true) {
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                // buried after we reached it
+                leftovers.addAll(Arrays.asList(sorted).subList(from, to));
+                return;
+            }
+            added.clear();
+            skipped.clear();
+            descendingEdges.clear();
+            descendingRanges.clear();
+            final CNode updatedCnode = cnode.copy();
+            addSubscriptions(updatedCnode, sorted, from, endingHere, added);
+            boolean changed = endingHere > from;
+            int runStart = endingHere;
+            while (runStart < to) {
+                final int runEnd = endOfRun(sorted, runStart, to, level);
+                final Edge edge = cnode.childOrNull(sorted[runStart].tokens.get(level));
+                if (edge == null || edge.node().isTombed()) {
+                    updatedCnode.add(createPath(sorted, runStart, runEnd, level, added));
+                    changed = true;
+                } else {
+                    // the filters that contain the whole edge are contiguous, being sorted
+                    int followStart = -1;
+                    int followEnd = -1;
+                    for (int i = runStart; i < runEnd; i++) {
+                        if (edge.commonPrefix(sorted[i].tokens, level) == edge.length()) {
+                            if (followStart < 0) {
+                                followStart = i;
+                            }
+                            followEnd = i + 1;
+                        } else {
+                            skipped.add(sorted[i]);
+                        }
+                    }
+                    if (followStart >= 0) {
+                        descendingEdges.add(edge);
+                        descendingRanges.add(new int[] {followStart, followEnd});
+                    }
+                }
+                runStart = runEnd;
+            }
+            if (!changed || inode.compareAndSet(cnode, updatedCnode)) {
+                break;
+            }
+        }
+        for (PendingSubscription pending : added) {
+            subscriptionAdded(pending.subscription.getClientId(), pending.tokens);
+        }
+        leftovers.addAll(skipped);
+        for (int i = 0; i < descendingEdges.size(); i++) {
+            final Edge edge = descendingEdges.get(i);
+            final int[] range = descendingRanges.get(i);
+            insertAll(sorted, range[0], range[1], level + edge.length(), edge.node(), leftovers);
+        }
+    }
+
+    /**
+     * @return the end, excluded, of the filters that have the same token at level of the one at start.
+     * */
+    private static int endOfRun(PendingFilter[] sorted, int start, int to, int level) {
+        final Token token = sorted[start].tokens.get(level);
+        int end = start + 1;
+        while (end < to && token.equals(sorted[end].tokens.get(level))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @param added collects the subscriptions that are new for the node, not replacing one of the same client.
+     * */
+    private static void addSubscriptions(CNode cnode, PendingSubscription[] sorted, int from, int to,
+                                         List<PendingSubscription> added) {
+        for (int i = from; i < to; i++) {
+            final PendingSubscription pending = sorted[i];
+            if (!cnode.contains(pending.shareName(), pending.subscription.getClientId())) {
+                added.add(pending);
+            }
+            cnode.addSubscription(pending.subscription);
+        }
+    }
+
+    /**
+     * Create the nodes of a range of filters that share the token at level, like
+     * {@link #createPath(List, int, Subscription)} does for a single filter.
+     * */
+    private static Edge createPath(PendingSubscription[] sorted, int from, int to, int level,
+                                   List<PendingSubscription> added) {
+        final int end = edgeEnd(sorted, from, to, level);
+        final CNode cnode = new CNode();
+        fillNode(cnode, sorted, from, to, end, added);
+        return new Edge(sorted[from].tokens.subList(level, end).toArray(new Token[0]), new INode(cnode));
+    }
+
+    /**
+     * @return the level where the edge of a range of filters that share the token at level ends. The edge extends
+     * as long as all the filters continue with the same token that isn't a wildcard.
+     * */
+    private static int edgeEnd(PendingSubscription[] sorted, int from, int to, int level) {
+        final List<Token> firstTokens = sorted[from].tokens;
+        final List<Token> lastTokens = sorted[to - 1].tokens;
+        int end = level + 1;
+        // sorted, the first and the last filter share a token only if all the others in between do
+        while (end < firstTokens.size() && !isWildcard(firstTokens.get(end))
+               && end < lastTokens.size() && firstTokens.get(end).equals(lastTokens.get(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Add to a new node the range of filters that reach it at level: the ones that end there and the paths of
+     * the ones that continue.
+     * */
+    private static void fillNode(CNode cnode, PendingSubscription[] sorted, int from, int to, int level,
+                                 List<PendingSubscription> added) {
+        final int endingHere = endOfFiltersEndingAt(sorted, from, to, level);
+        addSubscriptions(cnode, sorted, from, endingHere, added);
+        int runStart = endingHere;
+        while (runStart < to) {
+            final int runEnd = endOfRun(sorted, runStart, to, level);
+            cnode.add(createPath(sorted, runStart, runEnd, level, added));
+            runStart = runEnd;
+        }
+    }
+
+    /**
+     * @return the end, excluded, of the filters at the start of the sorted range that have no tokens past level.
+     * */
+    private static int endOfFiltersEndingAt(PendingFilter[] sorted, int from, int to, int level) {
+        int end = from;
+        while (end < to && sorted[end].tokens.size() == level) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Load the subscriptions in an empty tree, like on startup. The filters are sorted and the tree is built
+     * bottom-up without any CAS, the subtrees with many filters are built in parallel in the common fork/join
+     * pool. The new root is then published with a single CAS, if the tree got some subscription meanwhile the
+     * subscriptions are added as a batch instead.
+     * */
+    public void bulkLoad(Collection<Subscription> subscriptions) {
+        final CNode emptyRoot = root.mainNode();
+        if (emptyRoot.hasChildren() || !emptyRoot.hasNoSubscriptions()) {
+            addAllToTree(subscriptions);
+            return;
+        }
+        final List<Subscription> loading = new ArrayList<>(subscriptions);
+        final PendingSubscription[] sorted = new PendingSubscription[loading.size()];
+        Arrays.parallelSetAll(sorted, i -> new PendingSubscription(loading.get(i)));
+        // stable, like in addAllToTree
+        Arrays.parallelSort(sorted);
+
+        final CNode loadedRoot = new CNode();
+        final NodeBuilder builder = new NodeBuilder(loadedRoot, sorted, 0, sorted.length, 0);
+        ForkJoinPool.commonPool().invoke(builder);
+        if (!root.compareAndSet(emptyRoot, loadedRoot)) {
+            addAllToTree(subscriptions);
+            return;
+        }
+        builder.forEachAdded(pending -> subscriptionAdded(pending.subscription.getClientId(), pending.tokens));
+    }
+
+    /**
+     * Fill a new node like {@link #fillNode(CNode, PendingSubscription[], int, int, int, List)}, forking a task
+     * for every child with enough filters to be worth it.
+     * */
+    private static final class NodeBuilder extends RecursiveAction {
+
+        private static final int FORK_THRESHOLD = 1024;
+
+        private final CNode cnode;
+        private final PendingSubscription[] sorted;
+        private final int from;
+        private final int to;
+        private final int level;
+        private final List<PendingSubscription> added = new ArrayList<>();
+        private final List<NodeBuilder> children = new ArrayList<>();
+
+        NodeBuilder(CNode cnode, PendingSubscription[] sorted, int from, int to, int level) {
+            this.cnode = cnode;
+            this.sorted = sorted;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < FORK_THRESHOLD) {
+                fillNode(cnode, sorted, from, to, level, added);
+                return;
+            }
+            final int endingHere = endOfFiltersEndingAt(sorted, from, to, level);
+            addSubscriptions(cnode, sorted, from, endingHere, added);
+            final List<Edge> edges = new ArrayList<>();
+            int runStart = endingHere;
+            while (runStart < to) {
+                final int runEnd = endOfRun(sorted, runStart, to, level);
+                final int end = edgeEnd(sorted, runStart, runEnd, level);
+                final CNode child = new CNode();
+                edges.add(new Edge(sorted[runStart].tokens.subList(level, end).toArray(new Token[0]),
+                                   new INode(child)));
+                children.add(new NodeBuilder(child, sorted, runStart, runEnd, end));
+                runStart = runEnd;
+            }
+            invokeAll(children);
+            // a node is never shared before it's complete, the children are linked by this task only
+            for (Edge edge : edges) {
+                cnode.add(edge);
+            }
+        }
+
+        void forEachAdded(Consumer<PendingSubscription> action) {
+            added.forEach(action);
+            for (NodeBuilder child : children) {
+                child.forEachAdded(action);
+            }
+        }
+    }
+
+    private Insertion insert(List<Token> tokens, int level, final INode inode, Subscription newSubscription) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // buried after we reached it, start again from the root where its parent replaces it
+            return Insertion.REPEAT;
+        }
+        if (level == tokens.size()) {
+            return insertSubscription(inode, cnode, newSubscription);
+        }
+        final Edge edge = cnode.childOrNull(tokens.get(level));
+        if (edge == null || edge.node().isTombed()) {
+            return createNodeAndInsertSubscription(tokens, level, inode, cnode, newSubscription);
+        }
+        final int common = edge.commonPrefix(tokens, level);
+        if (common == edge.length()) {
+            return insert(tokens, level + common, edge.node(), newSubscription);
+        }
+        return splitAndInsertSubscription(tokens, level, inode, cnode, edge, common, newSubscription);
+    }
+
+    private Insertion insertSubscription(INode inode, CNode cnode, Subscription newSubscription) {
+        final Topic topicFilter = newSubscription.getTopicFilter();
+        final boolean replacing = cnode.contains(topicFilter.isShared() ? topicFilter.shareName() : null,
+            newSubscription.getClientId());
         CNode updatedCnode = cnode.copy().addSubscription(newSubscription);
         if (inode.compareAndSet(cnode, updatedCnode)) {
-            return Action.OK;
+            return replacing ? Insertion.REPLACED : Insertion.ADDED;
         } else {
-            return Action.REPEAT;
+            return Insertion.REPEAT;
         }
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, Subscription newSubscription) {
-        INode newInode = createPathRec(topic, newSubscription);
-        CNode cnode = inode.mainNode();
+    private Insertion createNodeAndInsertSubscription(List<Token> tokens, int level, INode inode, CNode cnode,
+                                                   Subscription newSubscription) {
+        final Edge newEdge = createPath(tokens, level, newSubscription);
         CNode updatedCnode = cnode.copy();
-        updatedCnode.add(newInode);
+        updatedCnode.add(newEdge);
 
-        return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+        return inode.compareAndSet(cnode, updatedCnode) ? Insertion.ADDED : Insertion.REPEAT;
     }
 
-    private INode createPathRec(Topic topic, Subscription newSubscription) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, newSubscription);
-            CNode cnode = new CNode();
-            cnode.setToken(topic.headToken());
-            cnode.add(inode);
-            return new INode(cnode);
+    /**
+     * The filter diverges from the edge, or ends, after the first common tokens: a new node is placed there, with
+     * the rest of the edge and the new subscription. The node at the end of the edge isn't touched, so a single CAS
+     * on the parent is enough.
+     * */
+    private Insertion splitAndInsertSubscription(List<Token> tokens, int level, INode inode, CNode cnode, Edge edge,
+                                              int common, Subscription newSubscription) {
+        final CNode splitCnode = new CNode();
+        splitCnode.add(edge.suffix(common));
+        if (level + common == tokens.size()) {
+            splitCnode.addSubscription(newSubscription);
         } else {
-            return createLeafNodes(topic.headToken(), newSubscription);
+            splitCnode.add(createPath(tokens, level + common, newSubscription));
         }
+        CNode updatedCnode = cnode.copy();
+        updatedCnode.add(edge.prefix(common, new INode(splitCnode)));
+
+        return inode.compareAndSet(cnode, updatedCnode) ? Insertion.ADDED : Insertion.REPEAT;
     }
 
-    private INode createLeafNodes(Token token, Subscription newSubscription) {
-        CNode newLeafCnode = new CNode();
-        newLeafCnode.setToken(token);
-        newLeafCnode.addSubscription(newSubscription);
+    /**
+     * Create the nodes of the filter from level on, every run of not wildcard tokens collapses in a single edge.
+     * */
+    private Edge createPath(List<Token> tokens, int level, Subscription newSubscription) {
+        int end = level + 1;
+        while (end < tokens.size() && !isWildcard(tokens.get(end))) {
+            end++;
+        }
+        final CNode cnode = new CNode();
+        if (end == tokens.size()) {
+            cnode.addSubscription(newSubscription);
+        } else {
+            cnode.add(createPath(tokens, end, newSubscription));
+        }
+        return new Edge(tokens.subList(level, end).toArray(new Token[0]), new INode(cnode));
+    }
 
-        return new INode(newLeafCnode);
+    private static boolean isWildcard(Token token) {
+        return Token.SINGLE.equals(token) || Token.MULTI.equals(token);
     }
 
     public void removeFromTree(Topic topic, String clientID) {
+        final List<Token> tokens = filterTokensOf(topic);
+        final String shareName = topic.isShared() ? topic.shareName() : null;
         Action res;
         do {
-            res = remove(clientID, topic, this.root, NO_PARENT);
+            res = remove(shareName, clientID, tokens, 0, this.root, NO_PARENT, 0);
         } while (res == Action.REPEAT);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return remove(clientId, remainingTopic, nextInode, inode);
-        } else {
-            final CNode cnode = inode.mainNode();
-            if (cnode instanceof TNode) {
-                // this inode is a tomb, has no clients and should be cleaned up
-                // Because we implemented cleanTomb below, this should be rare, but possible
-                // Consider calling cleanTomb here too
-                return Action.OK;
-            }
-            if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
-                // last client to leave this node, AND there are no downstream children, remove via TNode tomb
-                if (inode == this.root) {
-                    return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
+    /**
+     * Remove all the subscriptions of a client, one for each of the filters, in a single walk of the tree like
+     * {@link #addAllToTree(Collection)}: the filters with a common prefix descend it once, and every node loses
+     * all the subscriptions of the client that end there, plain and shared, with a single CAS.
+     */
+    public void removeFromTree(String clientID, Collection<Topic> topicFilters) {
+        final PendingRemoval[] sorted = new PendingRemoval[topicFilters.size()];
+        int i = 0;
+        for (Topic topicFilter : topicFilters) {
+            sorted[i++] = new PendingRemoval(topicFilter);
+        }
+        Arrays.sort(sorted);
+        removeAll(clientID, sorted, 0, sorted.length, 0, this.root, NO_PARENT, 0);
+    }
+
+    /**
+     * @param from first of the sorted filters to remove below the node.
+     * @param to end, excluded, of the sorted filters to remove below the node.
+     * @param level the number of tokens consumed to reach the node, shared by all the filters in the range.
+     * @param parentLevel the number of tokens consumed to reach the parent.
+     * */
+    private void removeAll(String clientId, PendingRemoval[] sorted, int from, int to, int level, INode inode,
+                           INode iParent, int parentLevel) {
+        // the filters ending at this node come first
+        final int endingHere = endOfFiltersEndingAt(sorted, from, to, level);
+        final CNode cnode = inode.mainNode();
+        int runStart = endingHere;
+        while (runStart < to) {
+            final int runEnd = endOfRun(sorted, runStart, to, level);
+            final Edge edge = cnode.childOrNull(sorted[runStart].tokens.get(level));
+            if (edge != null && !edge.node().isTombed()) {
+                // the filters that contain the whole edge are contiguous, being sorted, the others were
+                // already removed
+                int followStart = runStart;
+                while (followStart < runEnd && !edge.isPrefixOf(sorted[followStart].tokens, level)) {
+                    followStart++;
                 }
-                TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-            } else if (cnode.contains(clientId) && topic.isEmpty()) {
-                CNode updatedCnode = cnode.copy();
-                updatedCnode.removeSubscriptionsFor(clientId);
-                return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
-            } else {
+                int followEnd = followStart;
+                while (followEnd < runEnd && edge.isPrefixOf(sorted[followEnd].tokens, level)) {
+                    followEnd++;
+                }
+                if (followStart < followEnd) {
+                    removeAll(clientId, sorted, followStart, followEnd, level + edge.length(), edge.node(), inode,
+                              level);
+                }
+            }
+            runStart = runEnd;
+        }
+        // after the children, so that a node left without them and without subscriptions is buried
+        if (endingHere > from) {
+            Action res;
+            do {
+                res = removeSubscriptions(clientId, sorted, from, endingHere, inode, iParent, parentLevel);
+            } while (res == Action.REPEAT);
+        }
+    }
+
+    /**
+     * Remove the subscriptions of the client to the range of filters that end at the node.
+     * */
+    private Action removeSubscriptions(String clientId, PendingRemoval[] sorted, int from, int to, INode inode,
+                                       INode iParent, int parentLevel) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // buried by someone else, that already removed its subscriptions
+            return Action.OK;
+        }
+        final CNode updatedCnode = cnode.copy();
+        int removed = 0;
+        for (int i = from; i < to; i++) {
+            if (updatedCnode.contains(sorted[i].shareName, clientId)) {
+                updatedCnode.removeSubscriptionsFor(sorted[i].shareName, clientId);
+                removed++;
+            }
+        }
+        if (removed == 0) {
+            //someone else already removed
+            return Action.OK;
+        }
+        final List<Token> tokens = sorted[from].tokens;
+        final boolean bury = updatedCnode.hasNoSubscriptions() && !updatedCnode.hasChildren() && inode != this.root;
+        if (!inode.compareAndSet(cnode, bury ? new TNode() : updatedCnode)) {
+            return Action.REPEAT;
+        }
+        for (int i = 0; i < removed; i++) {
+            subscriptionRemoved(clientId, tokens);
+        }
+        if (bury) {
+            cleanTomb(inode, tokens, iParent, parentLevel);
+        }
+        return Action.OK;
+    }
+
+    /**
+     * @param parentLevel the number of tokens consumed to reach the parent.
+     * */
+    private Action remove(String shareName, String clientId, List<Token> tokens, int level, INode inode,
+                          INode iParent, int parentLevel) {
+        if (level < tokens.size()) {
+            final Edge edge = liveChild(inode.mainNode(), tokens, level);
+            if (edge == null) {
                 //someone else already removed
                 return Action.OK;
             }
+            return remove(shareName, clientId, tokens, level + edge.length(), edge.node(), inode, level);
+        }
+        // an inode that isn't a tomb is still linked to its parent, so a failed CAS is retried on it
+        // instead of navigating again the whole path from the root
+        Action res;
+        do {
+            res = removeSubscription(shareName, clientId, tokens, inode, iParent, parentLevel);
+        } while (res == Action.REPEAT);
+        return Action.OK;
+    }
+
+    private Action removeSubscription(String shareName, String clientId, List<Token> tokens, INode inode,
+                                      INode iParent, int parentLevel) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // this inode is a tomb, has no clients and should be cleaned up
+            // Because we implemented cleanTomb below, this should be rare, but possible
+            // Consider calling cleanTomb here too
+            return Action.OK;
+        }
+        if (!cnode.contains(shareName, clientId)) {
+            //someone else already removed
+            return Action.OK;
+        }
+        CNode updatedCnode = cnode.copy();
+        updatedCnode.removeSubscriptionsFor(shareName, clientId);
+        if (updatedCnode.hasNoSubscriptions() && !updatedCnode.hasChildren() && inode != this.root) {
+            // last client to leave this node, AND there are no downstream children, remove via TNode tomb
+            TNode tnode = new TNode();
+            if (!inode.compareAndSet(cnode, tnode)) {
+                return Action.REPEAT;
+            }
+            subscriptionRemoved(clientId, tokens);
+            cleanTomb(inode, tokens, iParent, parentLevel);
+            return Action.OK;
+        }
+        if (!inode.compareAndSet(cnode, updatedCnode)) {
+            return Action.REPEAT;
         }
+        subscriptionRemoved(clientId, tokens);
+        return Action.OK;
     }
 
     /**
@@ -199,38 +802,167 @@ public class CTrie {
      * http://bravenewgeek.com/breaking-and-entering-lose-the-lock-while-embracing-concurrency/
      *
      * We roughly follow this theory above, but we allow CNode with no Subscriptions to linger (for now).
+     * Nodes left with a single child aren't merged back in the edge of their parent.
      *
-     *
-     * @param inode inode that handle to the tomb node.
+     * @param inode inode that handle to the tomb node, at the end of the tokens.
+     * @param tokens the tokens of the topic filter of the tomb node.
      * @param iParent inode parent.
-     * @return REPEAT if the this methods wasn't successful or OK.
+     * @param parentLevel the number of tokens consumed to reach the parent.
      */
-    private Action cleanTomb(INode inode, INode iParent) {
-        CNode updatedCnode = iParent.mainNode().copy();
-        updatedCnode.remove(inode);
-        return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
+    private void cleanTomb(INode inode, List<Token> tokens, INode iParent, int parentLevel) {
+        INode parentInode = iParent;
+        int level = parentLevel;
+        while (true) {
+            final CNode parent = parentInode.mainNode();
+            if (parent instanceof TNode) {
+                // the parent lost all its children and has been buried too
+                return;
+            }
+            final Edge edge = parent.childOrNull(tokens.get(level));
+            if (edge == null) {
+                return;
+            }
+            if (edge.node() != inode) {
+                if (!edge.isPrefixOf(tokens, level) || level + edge.length() == tokens.size()) {
+                    // already replaced by a new node
+                    return;
+                }
+                // the edge has been split meanwhile, the tomb is now below the new node
+                parentInode = edge.node();
+                level += edge.length();
+                continue;
+            }
+            CNode updatedCnode = parent.copy();
+            updatedCnode.remove(edge.first(), inode);
+            if (parentInode.compareAndSet(parent, updatedCnode)) {
+                return;
+            }
+        }
+    }
+
+    private void subscriptionAdded(String clientId, List<Token> tokens) {
+        (hasWildcard(tokens) ? wildcardSubscriptions : exactSubscriptions).increment();
+        countClientSubscriptions(clientId, 1);
+        if (noMatchFilter != null) {
+            noMatchFilter.add(tokens);
+        }
+    }
+
+    private void subscriptionRemoved(String clientId, List<Token> tokens) {
+        (hasWildcard(tokens) ? wildcardSubscriptions : exactSubscriptions).decrement();
+        countClientSubscriptions(clientId, -1);
+        if (noMatchFilter != null) {
+            noMatchFilter.remove(tokens);
+        }
+    }
+
+    /**
+     * A concurrent add and remove of the same client can update the count in reverse order, so it can be
+     * negative for a while; the client is dropped only when the count goes back to zero.
+     * */
+    private void countClientSubscriptions(String clientId, int delta) {
+        subscriptionsPerClient.merge(clientId, delta, (count, change) -> count + change == 0 ? null : count + change);
     }
 
+    private static boolean hasWildcard(List<Token> tokens) {
+        for (Token token : tokens) {
+            if (isWildcard(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of subscriptions, every member of a shared group counts as one.
+     * */
     public int size() {
+        return (int) (exactSubscriptions.sum() + wildcardSubscriptions.sum());
+    }
+
+    /**
+     * @return number of subscriptions with a + or # in the topic filter.
+     * */
+    long wildcardSubscriptionsCount() {
+        return wildcardSubscriptions.sum();
+    }
+
+    long exactSubscriptionsCount() {
+        return exactSubscriptions.sum();
+    }
+
+    /**
+     * @return number of distinct clients that have at least a subscription.
+     * */
+    int clientsCount() {
+        return clientIds().size();
+    }
+
+    /**
+     * @return the clients that have at least a subscription.
+     * */
+    Set<String> clientIds() {
+        final Set<String> clientIds = new HashSet<>();
+        subscriptionsPerClient.forEach((clientId, count) -> {
+            if (count > 0) {
+                clientIds.add(clientId);
+            }
+        });
+        return clientIds;
+    }
+
+    /**
+     * Count the subscriptions visiting the whole tree, unlike {@link #size()} that reads the counters.
+     * */
+    int countSubscriptions() {
         SubscriptionCounterVisitor visitor = new SubscriptionCounterVisitor();
-        dfsVisit(this.root, visitor, 0);
+        dfsVisit(new Edge(new Token[] {ROOT}, this.root), visitor, 0);
         return visitor.getResult();
     }
 
     public String dumpTree() {
-        DumpTreeVisitor visitor = new DumpTreeVisitor();
-        dfsVisit(this.root, visitor, 0);
+        final StringBuilder dump = new StringBuilder();
+        dumpTree(0, Integer.MAX_VALUE, line -> dump.append(line).append('\n'));
+        return dump.toString();
+    }
+
+    /**
+     * Stream a page of the dump of the tree, a line for each node in depth first order. Nodes are visited
+     * until the page is complete, so the first pages don't cost a visit of the whole tree.
+     *
+     * @param offset the number of lines to skip.
+     * @param limit the maximum number of lines to push.
+     * @param lines the receiver of the lines.
+     * @return the number of lines pushed, less than limit if the end of the tree has been reached.
+     * */
+    public int dumpTree(int offset, int limit, Consumer<String> lines) {
+        DumpTreeVisitor visitor = new DumpTreeVisitor(offset, limit, lines);
+        dfsVisit(visitor);
         return visitor.getResult();
     }
 
-    private void dfsVisit(INode node, IVisitor<?> visitor, int deep) {
-        if (node == null) {
-            return;
+    /**
+     * Visit the nodes below the root as if they were children of the root of another tree, so that the dump of
+     * many trees looks like the dump of one.
+     * */
+    void dfsVisitBelowRoot(IVisitor<?> visitor) {
+        for (Edge child : this.root.mainNode().allChildren()) {
+            dfsVisit(child, visitor, 1);
         }
+    }
 
-        visitor.visit(node.mainNode(), deep);
+    void dfsVisit(IVisitor<?> visitor) {
+        dfsVisit(new Edge(new Token[] {ROOT}, this.root), visitor, 0);
+    }
+
+    private void dfsVisit(Edge edge, IVisitor<?> visitor, int deep) {
+        if (visitor.isDone()) {
+            return;
+        }
+        final CNode cnode = edge.node().mainNode();
+        visitor.visit(edge, cnode, deep);
         ++deep;
-        for (INode child : node.mainNode().allChildren()) {
+        for (Edge child : cnode.allChildren()) {
             dfsVisit(child, visitor, deep);
         }
     }
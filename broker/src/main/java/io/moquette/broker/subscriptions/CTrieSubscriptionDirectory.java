@@ -17,24 +17,89 @@ package io.moquette.broker.subscriptions;
 
 import io.moquette.api.ISubscriptionsDirectory;
 import io.moquette.api.ISubscriptionsRepository;
+import io.moquette.api.MatchedSubscriptions;
 import io.moquette.api.Subscription;
+import io.moquette.api.Token;
 import io.moquette.api.Topic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
+    // when partitioned, contains only the filters that start with a wildcard, that match topics of every tenant
     private CTrie ctrie;
+    // tries of the filters that start with a given level, one per tenant
+    private final ConcurrentMap<String, CTrie> partitions = new ConcurrentHashMap<>();
     private volatile ISubscriptionsRepository subscriptionsRepository;
+    private final TopicMatchCache matchCache;
+    private final ISharedSubscriptionSelector sharedSelector;
+    private final int noMatchFilterSize;
+    private final boolean partitioned;
+    private NoMatchFilter noMatchFilter;
+
+    public CTrieSubscriptionDirectory() {
+        this(0);
+    }
+
+    /**
+     * @param matchCacheSize max number of publish topics whose matching subscriptions are cached, 0 disables
+     *                       the cache.
+     */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this(matchCacheSize, SharedSubscriptionSelectors.roundRobin());
+    }
+
+    /**
+     * @param matchCacheSize max number of publish topics whose matching subscriptions are cached, 0 disables
+     *                       the cache.
+     * @param sharedSelector chooses the member of a shared subscription group that receives a message.
+     */
+    public CTrieSubscriptionDirectory(int matchCacheSize, ISharedSubscriptionSelector sharedSelector) {
+        this(matchCacheSize, 0, sharedSelector);
+    }
+
+    /**
+     * @param matchCacheSize max number of publish topics whose matching subscriptions are cached, 0 disables
+     *                       the cache.
+     * @param noMatchFilterSize number of counters of the filter that recognizes the publish topics without
+     *                          subscribers, 0 disables it.
+     * @param sharedSelector chooses the member of a shared subscription group that receives a message.
+     */
+    public CTrieSubscriptionDirectory(int matchCacheSize, int noMatchFilterSize,
+                                      ISharedSubscriptionSelector sharedSelector) {
+        this(matchCacheSize, noMatchFilterSize, false, sharedSelector);
+    }
+
+    /**
+     * @param matchCacheSize max number of publish topics whose matching subscriptions are cached, 0 disables
+     *                       the cache.
+     * @param noMatchFilterSize number of counters of the filter that recognizes the publish topics without
+     *                          subscribers, 0 disables it.
+     * @param partitioned true to keep a separate tree for every first level of the topic filters, so that
+     *                    tenants with their own top level prefix don't contend on the same root.
+     * @param sharedSelector chooses the member of a shared subscription group that receives a message.
+     */
+    public CTrieSubscriptionDirectory(int matchCacheSize, int noMatchFilterSize, boolean partitioned,
+                                      ISharedSubscriptionSelector sharedSelector) {
+        this.matchCache = matchCacheSize > 0 ? new TopicMatchCache(matchCacheSize) : null;
+        this.noMatchFilterSize = noMatchFilterSize;
+        this.partitioned = partitioned;
+        this.sharedSelector = sharedSelector;
+    }
 
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
-        ctrie = new CTrie();
+        noMatchFilter = noMatchFilterSize > 0 ? new NoMatchFilter(noMatchFilterSize) : null;
+        partitions.clear();
+        ctrie = new CTrie(sharedSelector, noMatchFilter);
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -43,30 +108,105 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
         }
 
-        for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
-            LOG.debug("Re-subscribing {}", subscription);
-            ctrie.addToTree(subscription);
+        final long start = System.currentTimeMillis();
+        // only the references are collected, to sort them, the subscriptions end in the tree anyway
+        final Map<CTrie, List<Subscription>> storedByTrie = new IdentityHashMap<>();
+        this.subscriptionsRepository.forEachSubscription(subscription -> addToTrieGroup(storedByTrie, subscription));
+        int reloaded = 0;
+        for (Map.Entry<CTrie, List<Subscription>> entry : storedByTrie.entrySet()) {
+            entry.getKey().bulkLoad(entry.getValue());
+            reloaded += entry.getValue().size();
         }
+        LOG.info("Reloaded {} stored subscriptions in {} ms", reloaded, System.currentTimeMillis() - start);
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
         }
     }
 
     /**
-     * @return the list of client ids that has a subscription stored.
+     * @return the list of client ids that has a subscription stored. The tree contains all the stored
+     * subscriptions, so the repository isn't read again.
      */
     @Override
     public Set<String> listAllSessionIds() {
-        final Set<Subscription> subscriptions = subscriptionsRepository.listAllSubscriptions();
-        final Set<String> clientIds = new HashSet<>(subscriptions.size());
+        return clientIds();
+    }
+
+    Optional<CNode> lookup(Topic topic) {
+        final CTrie trie = existingTrieOfFilter(topic);
+        return trie == null ? Optional.empty() : trie.lookup(topic);
+    }
+
+    /**
+     * @return the subscriptions grouped by the tree that contains their topic filter, creating the missing
+     * partitions.
+     */
+    private Map<CTrie, List<Subscription>> groupByTrie(List<Subscription> subscriptions) {
+        if (!partitioned) {
+            return Collections.singletonMap(ctrie, subscriptions);
+        }
+        final Map<CTrie, List<Subscription>> byTrie = new IdentityHashMap<>();
         for (Subscription subscription : subscriptions) {
-            clientIds.add(subscription.getClientId());
+            addToTrieGroup(byTrie, subscription);
         }
-        return clientIds;
+        return byTrie;
     }
 
-    Optional<CNode> lookup(Topic topic) {
-        return ctrie.lookup(topic);
+    private void addToTrieGroup(Map<CTrie, List<Subscription>> byTrie, Subscription subscription) {
+        byTrie.computeIfAbsent(trieOfFilter(subscription.getTopicFilter()), t -> new ArrayList<>()).add(subscription);
+    }
+
+    /**
+     * @return the tree that contains the topic filter, created if it's the first filter of the partition.
+     */
+    private CTrie trieOfFilter(Topic topicFilter) {
+        final String partition = partitionOf(topicFilter);
+        if (partition == null) {
+            return ctrie;
+        }
+        return partitions.computeIfAbsent(partition, k -> new CTrie(sharedSelector, noMatchFilter));
+    }
+
+    /**
+     * @return the tree that contains the topic filter, null if its partition doesn't exist.
+     */
+    private CTrie existingTrieOfFilter(Topic topicFilter) {
+        final String partition = partitionOf(topicFilter);
+        return partition == null ? ctrie : partitions.get(partition);
+    }
+
+    /**
+     * @return the first level of the filter, null if it's a wildcard or the directory isn't partitioned.
+     */
+    private String partitionOf(Topic topicFilter) {
+        if (!partitioned) {
+            return null;
+        }
+        final List<Token> tokens = (topicFilter.isShared() ? topicFilter.sharedFilter() : topicFilter).getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return null;
+        }
+        final Token first = tokens.get(0);
+        return Token.SINGLE.equals(first) || Token.MULTI.equals(first) ? null : first.toString();
+    }
+
+    /**
+     * Match the topic in the tree of the filters starting with a wildcard and in the tree of its partition.
+     *
+     * @return true if some of the subscriptions have been chosen from a shared group.
+     */
+    private boolean match(Topic topic, Consumer<Subscription> visitor) {
+        boolean shared = ctrie.match(topic, visitor);
+        if (partitioned) {
+            final List<Token> tokens = topic.getTokens();
+            if (tokens != null && !tokens.isEmpty()) {
+                final CTrie partition = partitions.get(tokens.get(0).toString());
+                if (partition != null) {
+                    shared |= partition.match(topic, visitor);
+                }
+            }
+        }
+        return shared;
     }
 
     /**
@@ -80,30 +220,76 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
-        return ctrie.recursiveMatch(topic);
+        final Set<Subscription> subscriptions = new HashSet<>();
+        match(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    @Override
+    public boolean mayMatch(Topic topic) {
+        return ctrie.mayMatch(topic);
     }
 
     @Override
     public Set<Subscription> matchQosSharpening(Topic topic) {
-        final Set<Subscription> subscriptions = matchWithoutQosSharpening(topic);
-
-        Map<String, Subscription> subsGroupedByClient = new HashMap<>();
-        for (Subscription sub : subscriptions) {
-            Subscription existingSub = subsGroupedByClient.get(sub.getClientId());
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsGroupedByClient.put(sub.getClientId(), sub);
-            }
+        final MatchedSubscriptions matched = new MatchedSubscriptions();
+        matchQosSharpening(topic, matched);
+        final Set<Subscription> subscriptions = new HashSet<>(matched.size());
+        for (int i = 0; i < matched.size(); i++) {
+            subscriptions.add(matched.get(i));
         }
-        return new HashSet<>(subsGroupedByClient.values());
+        return subscriptions;
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, MatchedSubscriptions matched) {
+        if (matchCache == null || !matched.isEmpty()) {
+            // a partially filled accumulator can't be stored as the result of this topic
+            matchWithoutQosSharpening(topic, matched);
+            return;
+        }
+        if (matchCache.matchInto(topic, matched)) {
+            return;
+        }
+        final long generation = matchCache.generation();
+        final boolean shared = match(topic, matched);
+        if (!shared) {
+            // the members of the shared groups are chosen at every publish, it can't be cached
+            matchCache.put(topic, matched, generation);
+        }
+    }
+
+    @Override
+    public void matchWithoutQosSharpening(Topic topic, Consumer<Subscription> visitor) {
+        match(topic, visitor);
     }
 
     @Override
     public void add(Subscription newSubscription) {
-        ctrie.addToTree(newSubscription);
+        trieOfFilter(newSubscription.getTopicFilter()).addToTree(newSubscription);
+        invalidateMatchCache(newSubscription.getTopicFilter());
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
+    /**
+     * Add the subscriptions with a single visit of the nodes shared by their filters, and store them in a
+     * single batch.
+     */
+    @Override
+    public void addAll(List<Subscription> newSubscriptions) {
+        for (Map.Entry<CTrie, List<Subscription>> entry : groupByTrie(newSubscriptions).entrySet()) {
+            entry.getKey().addAllToTree(entry.getValue());
+        }
+        if (matchCache != null) {
+            final List<Topic> topicFilters = new ArrayList<>(newSubscriptions.size());
+            for (Subscription subscription : newSubscriptions) {
+                topicFilters.add(subscription.getTopicFilter());
+            }
+            matchCache.invalidate(topicFilters);
+        }
+        subscriptionsRepository.addNewSubscriptions(newSubscriptions);
+    }
+
     /**
      * Removes subscription from CTrie, adds TNode when the last client unsubscribes, then calls for cleanTomb in a
      * separate atomic CAS operation.
@@ -113,17 +299,143 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public void removeSubscription(Topic topic, String clientID) {
-        ctrie.removeFromTree(topic, clientID);
+        final CTrie trie = existingTrieOfFilter(topic);
+        if (trie != null) {
+            trie.removeFromTree(topic, clientID);
+        }
+        invalidateMatchCache(topic);
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
+    private void invalidateMatchCache(Topic filter) {
+        if (matchCache != null) {
+            matchCache.invalidate(filter);
+        }
+    }
+
+    /**
+     * @return number of publish topics served by the match cache, 0 when the cache is disabled.
+     */
+    public long matchCacheHits() {
+        return matchCache == null ? 0 : matchCache.hits();
+    }
+
+    /**
+     * @return number of publish topics that had to be matched against the tree because not cached, 0 when the
+     * cache is disabled.
+     */
+    public long matchCacheMisses() {
+        return matchCache == null ? 0 : matchCache.misses();
+    }
+
+    @Override
+    public void removeAllForClient(String clientID, Collection<Topic> topicFilters) {
+        if (partitioned) {
+            final Map<CTrie, List<Topic>> byTrie = new IdentityHashMap<>();
+            for (Topic topicFilter : topicFilters) {
+                final CTrie trie = existingTrieOfFilter(topicFilter);
+                if (trie != null) {
+                    byTrie.computeIfAbsent(trie, t -> new ArrayList<>()).add(topicFilter);
+                }
+            }
+            byTrie.forEach((trie, trieFilters) -> trie.removeFromTree(clientID, trieFilters));
+        } else {
+            ctrie.removeFromTree(clientID, topicFilters);
+        }
+        if (matchCache != null) {
+            matchCache.invalidate(topicFilters);
+        }
+        for (Topic topicFilter : topicFilters) {
+            this.subscriptionsRepository.removeSubscription(topicFilter.toString(), clientID);
+        }
+    }
+
+    /**
+     * @return number of subscriptions, read from counters kept up to date by every change of the tree.
+     */
     @Override
     public int size() {
-        return ctrie.size();
+        int size = ctrie.size();
+        for (CTrie partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of subscriptions with a + or # in the topic filter.
+     */
+    public long wildcardSubscriptionsCount() {
+        long count = ctrie.wildcardSubscriptionsCount();
+        for (CTrie partition : partitions.values()) {
+            count += partition.wildcardSubscriptionsCount();
+        }
+        return count;
+    }
+
+    public long exactSubscriptionsCount() {
+        long count = ctrie.exactSubscriptionsCount();
+        for (CTrie partition : partitions.values()) {
+            count += partition.exactSubscriptionsCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of distinct clients that have at least a subscription.
+     */
+    public int clientsCount() {
+        if (partitions.isEmpty()) {
+            return ctrie.clientsCount();
+        }
+        return clientIds().size();
+    }
+
+    private Set<String> clientIds() {
+        final Set<String> clientIds = new HashSet<>(ctrie.clientIds());
+        // a client can subscribe in many partitions
+        for (CTrie partition : partitions.values()) {
+            clientIds.addAll(partition.clientIds());
+        }
+        return clientIds;
+    }
+
+    /**
+     * @return number of subscriptions of every partition, by the first level of their topic filters. Empty if
+     * the directory isn't partitioned.
+     */
+    public SortedMap<String, Integer> partitionsSizes() {
+        final SortedMap<String, Integer> sizes = new TreeMap<>();
+        for (Map.Entry<String, CTrie> partition : partitions.entrySet()) {
+            sizes.put(partition.getKey(), partition.getValue().size());
+        }
+        return sizes;
     }
 
     @Override
     public String dumpTree() {
-        return ctrie.dumpTree();
+        final StringBuilder dump = new StringBuilder();
+        dumpTree(0, Integer.MAX_VALUE, line -> dump.append(line).append('\n'));
+        return dump.toString();
+    }
+
+    /**
+     * When partitioned, the partitions are dumped sorted by first level below the root of the filters that
+     * start with a wildcard, as if they were a single tree.
+     */
+    @Override
+    public int dumpTree(int offset, int limit, Consumer<String> lines) {
+        if (partitions.isEmpty()) {
+            return ctrie.dumpTree(offset, limit, lines);
+        }
+        final DumpTreeVisitor visitor = new DumpTreeVisitor(offset, limit, lines);
+        ctrie.dfsVisit(visitor);
+        for (CTrie partition : new TreeMap<>(partitions).values()) {
+            if (visitor.isDone()) {
+                break;
+            }
+            partition.dfsVisitBelowRoot(visitor);
+        }
+        return visitor.getResult();
     }
 }
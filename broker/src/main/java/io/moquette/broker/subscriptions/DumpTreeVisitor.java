@@ -18,32 +18,61 @@ package io.moquette.broker.subscriptions;
 import io.moquette.api.Subscription;
 import io.netty.util.internal.StringUtil;
 
-class DumpTreeVisitor implements CTrie.IVisitor<String> {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
-    String s = "";
+/**
+ * Push a line for each visited node, skipping the first offset ones and stopping after limit lines.
+ */
+class DumpTreeVisitor implements CTrie.IVisitor<Integer> {
+
+    private final int offset;
+    private final int limit;
+    private final Consumer<String> lines;
+    private int visited;
+    private int pushed;
+
+    DumpTreeVisitor(int offset, int limit, Consumer<String> lines) {
+        this.offset = offset;
+        this.limit = limit;
+        this.lines = lines;
+    }
 
     @Override
-    public void visit(CNode node, int deep) {
-        String indentTabs = indentTabs(deep);
-        s += indentTabs + (node.getToken() == null ? "''" : node.getToken().toString()) + prettySubscriptions(node) + "\n";
+    public void visit(Edge edge, CNode node, int deep) {
+        if (visited++ < offset) {
+            return;
+        }
+        lines.accept(indentTabs(deep) + edge + prettySubscriptions(node));
+        pushed++;
+    }
+
+    @Override
+    public boolean isDone() {
+        return pushed >= limit;
     }
 
     private String prettySubscriptions(CNode node) {
         if (node instanceof TNode) {
             return "TNode";
         }
-        if (node.subscriptions.isEmpty()) {
+        if (node.hasNoSubscriptions()) {
             return StringUtil.EMPTY_STRING;
         }
+        final List<Subscription> subscriptions = new ArrayList<>(node.subscriptions());
+        for (SharedGroup group : node.sharedGroups()) {
+            subscriptions.addAll(group.members());
+        }
         StringBuilder subScriptionsStr = new StringBuilder(" ~~[");
         int counter = 0;
-        for (Subscription couple : node.subscriptions) {
+        for (Subscription couple : subscriptions) {
             subScriptionsStr
                 .append("{filter=").append(couple.getTopicFilter()).append(", ")
                 .append("qos=").append(couple.getRequestedQos()).append(", ")
                 .append("client='").append(couple.getClientId()).append("'}");
             counter++;
-            if (counter < node.subscriptions.size()) {
+            if (counter < subscriptions.size()) {
                 subScriptionsStr.append(";");
             }
         }
@@ -63,7 +92,7 @@ class DumpTreeVisitor implements CTrie.IVisitor<String> {
     }
 
     @Override
-    public String getResult() {
-        return s;
+    public Integer getResult() {
+        return pushed;
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Link from a CNode to a child, labelled with the tokens of one or more levels. Chains of levels with
+ * a single child, like org/acme/region/eu, are collapsed in one edge instead of a node per level.
+ * <p>
+ * The label belongs to the parent, so an edge is split by replacing it in the parent with a single CAS,
+ * while the child INode, with all the updates concurrently applied to it, is kept as is.
+ * Only the first token of a label can be a wildcard.
+ */
+final class Edge {
+
+    private final Token[] tokens;
+    private final INode node;
+
+    Edge(Token[] tokens, INode node) {
+        this.tokens = tokens;
+        this.node = node;
+    }
+
+    Token first() {
+        return tokens[0];
+    }
+
+    int length() {
+        return tokens.length;
+    }
+
+    INode node() {
+        return node;
+    }
+
+    /**
+     * @return the number of leading tokens of the label equal to the topic tokens starting at level.
+     */
+    int commonPrefix(List<Token> topicTokens, int level) {
+        final int max = Math.min(tokens.length, topicTokens.size() - level);
+        int i = 0;
+        while (i < max && tokens[i].equals(topicTokens.get(level + i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return true iff the label is entirely equal to the topic tokens starting at level.
+     */
+    boolean isPrefixOf(List<Token> topicTokens, int level) {
+        return commonPrefix(topicTokens, level) == tokens.length;
+    }
+
+    /**
+     * Used by matching, where the first token has already been matched by the parent, also by a wildcard.
+     *
+     * @return true iff the tokens after the first are equal to the topic tokens following level.
+     */
+    boolean matchesAfterFirst(List<Token> topicTokens, int level) {
+        if (level + tokens.length > topicTokens.size()) {
+            return false;
+        }
+        for (int i = 1; i < tokens.length; i++) {
+            if (!tokens[i].equals(topicTokens.get(level + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the edge with the first length tokens of this label, pointing to the node.
+     */
+    Edge prefix(int length, INode node) {
+        return new Edge(Arrays.copyOf(tokens, length), node);
+    }
+
+    /**
+     * @return the edge with the tokens of this label starting at from, pointing to the same node.
+     */
+    Edge suffix(int from) {
+        return new Edge(Arrays.copyOfRange(tokens, from, tokens.length), node);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(tokens[0].toString());
+        for (int i = 1; i < tokens.length; i++) {
+            sb.append('/').append(tokens[i]);
+        }
+        return sb.toString();
+    }
+}
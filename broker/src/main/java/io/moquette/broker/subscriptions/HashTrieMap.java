@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Immutable hash array mapped trie. Every update returns a new map that shares all the untouched
+ * nodes with the original one, so it costs O(log32 n) instead of the O(n) of copying a HashMap.
+ * <p>
+ * This is what lets a CNode be copied for every CAS without copying its children and its
+ * subscriptions, however many they are. Null keys and values are not supported.
+ */
+final class HashTrieMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(new Node(0, new Object[0]), 0);
+
+    /**
+     * Slots of a node, sorted by hash fragment, contain an Entry, a Collision or a nested Node.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class Entry {
+        final int hash;
+        final Object key;
+        final Object value;
+
+        Entry(int hash, Object key, Object value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Entries with different keys but the same hash.
+     */
+    private static final class Collision {
+        final int hash;
+        final Entry[] entries;
+
+        Collision(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private HashTrieMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrieMap<K, V> empty() {
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        final int hash = key.hashCode();
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            final int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = node.slots[index(node.bitmap, bit)];
+            if (slot instanceof Node) {
+                node = (Node) slot;
+            } else if (slot instanceof Entry) {
+                final Entry entry = (Entry) slot;
+                return entry.hash == hash && entry.key.equals(key) ? (V) entry.value : null;
+            } else {
+                final Collision collision = (Collision) slot;
+                if (collision.hash != hash) {
+                    return null;
+                }
+                for (Entry entry : collision.entries) {
+                    if (entry.key.equals(key)) {
+                        return (V) entry.value;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return a map with the key bound to the value, this same map if the key was already bound to it.
+     */
+    HashTrieMap<K, V> put(K key, V value) {
+        final V previous = get(key);
+        if (previous == value) {
+            return this;
+        }
+        final Node newRoot = put(root, 0, new Entry(key.hashCode(), key, value));
+        return new HashTrieMap<>(newRoot, previous == null ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the key, this same map if the key wasn't present.
+     */
+    HashTrieMap<K, V> remove(K key) {
+        if (get(key) == null) {
+            return this;
+        }
+        if (size == 1) {
+            return empty();
+        }
+        final Node newRoot = remove(root, 0, key.hashCode(), key);
+        return new HashTrieMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> action) {
+        forEachValue(root, (Consumer<Object>) action);
+    }
+
+    /**
+     * @return a read only view of the values.
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValuesIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void forEach(Consumer<? super V> action) {
+                forEachValue(root, (Consumer<Object>) action);
+            }
+        };
+    }
+
+    private static void forEachValue(Node node, Consumer<Object> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Entry) {
+                action.accept(((Entry) slot).value);
+            } else if (slot instanceof Node) {
+                forEachValue((Node) slot, action);
+            } else {
+                for (Entry entry : ((Collision) slot).entries) {
+                    action.accept(entry.value);
+                }
+            }
+        }
+    }
+
+    private static Node put(Node node, int shift, Entry newEntry) {
+        final int bit = bit(newEntry.hash, shift);
+        final int idx = index(node.bitmap, bit);
+        if ((node.bitmap & bit) == 0) {
+            final Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, idx);
+            slots[idx] = newEntry;
+            System.arraycopy(node.slots, idx, slots, idx + 1, node.slots.length - idx);
+            return new Node(node.bitmap | bit, slots);
+        }
+        final Object slot = node.slots[idx];
+        final Object updated;
+        if (slot instanceof Node) {
+            updated = put((Node) slot, shift + BITS, newEntry);
+        } else if (slot instanceof Entry) {
+            final Entry entry = (Entry) slot;
+            if (entry.hash != newEntry.hash) {
+                updated = merge(entry, entry.hash, newEntry, shift + BITS);
+            } else if (entry.key.equals(newEntry.key)) {
+                updated = newEntry;
+            } else {
+                updated = new Collision(entry.hash, new Entry[] {entry, newEntry});
+            }
+        } else {
+            final Collision collision = (Collision) slot;
+            if (collision.hash != newEntry.hash) {
+                updated = merge(collision, collision.hash, newEntry, shift + BITS);
+            } else {
+                updated = putInCollision(collision, newEntry);
+            }
+        }
+        return withSlot(node, idx, updated);
+    }
+
+    private static Collision putInCollision(Collision collision, Entry newEntry) {
+        final Entry[] entries = collision.entries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].key.equals(newEntry.key)) {
+                final Entry[] replaced = entries.clone();
+                replaced[i] = newEntry;
+                return new Collision(collision.hash, replaced);
+            }
+        }
+        final Entry[] added = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, added, 0, entries.length);
+        added[entries.length] = newEntry;
+        return new Collision(collision.hash, added);
+    }
+
+    /**
+     * Create the node that contains an existing slot, an Entry or a Collision, and a new entry with a different hash.
+     */
+    private static Node merge(Object existing, int existingHash, Entry newEntry, int shift) {
+        final int existingBit = bit(existingHash, shift);
+        final int newBit = bit(newEntry.hash, shift);
+        if (existingBit == newBit) {
+            return new Node(existingBit, new Object[] {merge(existing, existingHash, newEntry, shift + BITS)});
+        }
+        final Object[] slots = Integer.compareUnsigned(existingBit, newBit) < 0
+            ? new Object[] {existing, newEntry}
+            : new Object[] {newEntry, existing};
+        return new Node(existingBit | newBit, slots);
+    }
+
+    /**
+     * Remove a key that is known to be present.
+     *
+     * @return the updated node, or null if it remained empty.
+     */
+    private static Node remove(Node node, int shift, int hash, Object key) {
+        final int bit = bit(hash, shift);
+        final int idx = index(node.bitmap, bit);
+        final Object slot = node.slots[idx];
+        final Object updated;
+        if (slot instanceof Node) {
+            final Node child = remove((Node) slot, shift + BITS, hash, key);
+            if (child != null && child.slots.length == 1 && !(child.slots[0] instanceof Node)) {
+                // pull up the last entry, so that the trie doesn't keep chains of single slot nodes
+                updated = child.slots[0];
+            } else {
+                updated = child;
+            }
+        } else if (slot instanceof Entry) {
+            updated = null;
+        } else {
+            updated = removeFromCollision((Collision) slot, key);
+        }
+        if (updated != null) {
+            return withSlot(node, idx, updated);
+        }
+        if (node.slots.length == 1) {
+            return null;
+        }
+        final Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, idx);
+        System.arraycopy(node.slots, idx + 1, slots, idx, slots.length - idx);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    private static Object removeFromCollision(Collision collision, Object key) {
+        final Entry[] entries = collision.entries;
+        if (entries.length == 2) {
+            return entries[0].key.equals(key) ? entries[1] : entries[0];
+        }
+        final Entry[] remaining = new Entry[entries.length - 1];
+        int j = 0;
+        for (Entry entry : entries) {
+            if (!entry.key.equals(key)) {
+                remaining[j++] = entry;
+            }
+        }
+        return new Collision(collision.hash, remaining);
+    }
+
+    private static Node withSlot(Node node, int idx, Object slot) {
+        final Object[] slots = node.slots.clone();
+        slots[idx] = slot;
+        return new Node(node.bitmap, slots);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    /**
+     * Depth first visit of the trie, with an explicit stack of the nodes being traversed.
+     */
+    private static final class ValuesIterator<V> implements Iterator<V> {
+
+        // 32 bits of hash consumed 5 at a time give at most 7 levels of nodes
+        private final Object[][] stack = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth;
+        private Entry[] collisionEntries;
+        private int collisionPosition;
+        private Object next;
+
+        ValuesIterator(Node root) {
+            stack[0] = root.slots;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            if (collisionEntries != null) {
+                if (collisionPosition < collisionEntries.length) {
+                    next = collisionEntries[collisionPosition++].value;
+                    return;
+                }
+                collisionEntries = null;
+            }
+            while (depth >= 0) {
+                final Object[] slots = stack[depth];
+                if (positions[depth] == slots.length) {
+                    depth--;
+                    continue;
+                }
+                final Object slot = slots[positions[depth]++];
+                if (slot instanceof Entry) {
+                    next = ((Entry) slot).value;
+                    return;
+                }
+                if (slot instanceof Node) {
+                    depth++;
+                    stack[depth] = ((Node) slot).slots;
+                    positions[depth] = 0;
+                } else {
+                    collisionEntries = ((Collision) slot).entries;
+                    next = collisionEntries[0].value;
+                    collisionPosition = 1;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final V value = (V) next;
+            advance();
+            return value;
+        }
+    }
+}
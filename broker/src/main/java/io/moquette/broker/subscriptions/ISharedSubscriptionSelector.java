@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+
+/**
+ * Policy that chooses which member of a shared subscription group receives a message.
+ */
+public interface ISharedSubscriptionSelector {
+
+    /**
+     * @param group the group, it has at least one member.
+     * @param topic the topic of the message to deliver.
+     * @return the subscription of the member that receives the message.
+     */
+    Subscription select(SharedGroup group, Topic topic);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Token;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counting Bloom filter of the topic filters in the tree, that tells when a publish topic can't match any of
+ * them without visiting the tree.
+ * <p>
+ * A topic filter is recorded by the tokens that precede its first wildcard, or by all its tokens when it has
+ * no wildcard. A topic can match only if one of its prefixes has been recorded for a wildcard filter, or the
+ * whole topic for an exact one, so the check costs one probe for each level of the topic. False positives
+ * only cost a visit of the tree, counters are decremented when a subscription is removed.
+ */
+final class NoMatchFilter {
+
+    private static final int PROBES = 3;
+    private static final long EXACT = 0x6A09E667F3BCC909L;
+    private static final long WILDCARD = 0xBB67AE8584CAA73BL;
+
+    private final AtomicIntegerArray counters;
+    private final int mask;
+
+    /**
+     * @param size number of counters, rounded up to a power of 2.
+     */
+    NoMatchFilter(int size) {
+        final int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.counters = new AtomicIntegerArray(capacity);
+        this.mask = capacity - 1;
+    }
+
+    void add(List<Token> filterTokens) {
+        update(keyOf(filterTokens), 1);
+    }
+
+    void remove(List<Token> filterTokens) {
+        update(keyOf(filterTokens), -1);
+    }
+
+    /**
+     * @return false if no recorded topic filter matches the topic, true if some may match.
+     */
+    boolean mayMatch(List<Token> topicTokens) {
+        long prefix = 0;
+        for (int level = 0; level < topicTokens.size(); level++) {
+            if (isSet(mix(prefix ^ WILDCARD))) {
+                return true;
+            }
+            prefix = extend(prefix, topicTokens.get(level));
+        }
+        // # matches also the parent level
+        return isSet(mix(prefix ^ WILDCARD)) || isSet(mix(prefix ^ EXACT));
+    }
+
+    private static long keyOf(List<Token> filterTokens) {
+        long prefix = 0;
+        for (Token token : filterTokens) {
+            if (Token.SINGLE.equals(token) || Token.MULTI.equals(token)) {
+                return mix(prefix ^ WILDCARD);
+            }
+            prefix = extend(prefix, token);
+        }
+        return mix(prefix ^ EXACT);
+    }
+
+    private static long extend(long prefix, Token token) {
+        return (prefix + token.hashCode()) * 0x9E3779B97F4A7C15L;
+    }
+
+    private void update(long key, int delta) {
+        final int first = (int) key;
+        final int step = (int) (key >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            counters.addAndGet((first + i * step) & mask, delta);
+        }
+    }
+
+    private boolean isSet(long key) {
+        final int first = (int) key;
+        final int step = (int) (key >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            if (counters.get((first + i * step) & mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of the key over the whole long.
+     */
+    private static long mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
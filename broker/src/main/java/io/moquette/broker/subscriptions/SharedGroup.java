@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The members of a shared subscription group on a topic filter, $share/&lt;group&gt;/&lt;filter&gt;.
+ * <p>
+ * Like the CNode that contains it, a group is never modified: adding or removing a member creates a
+ * new version. All the versions share the same counter, so the rotation among the members continues
+ * when the group changes. Members are sorted by client id, so that their order doesn't depend on the
+ * order of subscription.
+ */
+public final class SharedGroup {
+
+    private final String shareName;
+    private final Subscription[] members;
+    private final AtomicInteger counter;
+
+    private SharedGroup(String shareName, Subscription[] members, AtomicInteger counter) {
+        this.shareName = shareName;
+        this.members = members;
+        this.counter = counter;
+    }
+
+    static SharedGroup of(Subscription member) {
+        return new SharedGroup(member.getTopicFilter().shareName(), new Subscription[] {member}, new AtomicInteger());
+    }
+
+    public String shareName() {
+        return shareName;
+    }
+
+    /**
+     * @return the subscriptions of the group members, one per client, sorted by client id.
+     */
+    public List<Subscription> members() {
+        return Collections.unmodifiableList(Arrays.asList(members));
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public Subscription member(int index) {
+        return members[index];
+    }
+
+    /**
+     * @return a progressive number shared by all the versions of the group, for the policies that rotate among
+     * the members.
+     */
+    public int next() {
+        return counter.getAndIncrement();
+    }
+
+    boolean contains(String clientId) {
+        return indexOf(clientId) >= 0;
+    }
+
+    /**
+     * @return a group with the new member, if the client is already a member keep the subscription with higher QoS.
+     */
+    SharedGroup add(Subscription newMember) {
+        final int idx = indexOf(newMember.getClientId());
+        if (idx >= 0) {
+            if (!members[idx].qosLessThan(newMember)) {
+                return this;
+            }
+            final Subscription[] replaced = members.clone();
+            replaced[idx] = newMember;
+            return new SharedGroup(shareName, replaced, counter);
+        }
+        final int insertion = -(idx + 1);
+        final Subscription[] added = new Subscription[members.length + 1];
+        System.arraycopy(members, 0, added, 0, insertion);
+        added[insertion] = newMember;
+        System.arraycopy(members, insertion, added, insertion + 1, members.length - insertion);
+        return new SharedGroup(shareName, added, counter);
+    }
+
+    /**
+     * @return the group without the client, or null if it was the last member.
+     */
+    SharedGroup remove(String clientId) {
+        final int idx = indexOf(clientId);
+        if (idx < 0) {
+            return this;
+        }
+        if (members.length == 1) {
+            return null;
+        }
+        final Subscription[] remaining = new Subscription[members.length - 1];
+        System.arraycopy(members, 0, remaining, 0, idx);
+        System.arraycopy(members, idx + 1, remaining, idx, remaining.length - idx);
+        return new SharedGroup(shareName, remaining, counter);
+    }
+
+    private int indexOf(String clientId) {
+        int low = 0;
+        int high = members.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = members[mid].getClientId().compareTo(clientId);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
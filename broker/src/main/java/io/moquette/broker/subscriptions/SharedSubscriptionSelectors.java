@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * The selection policies for the shared subscription groups available out of the box.
+ */
+public final class SharedSubscriptionSelectors {
+
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String LEAST_INFLIGHT = "least_inflight";
+    public static final String STICKY_HASH = "sticky_hash";
+
+    private SharedSubscriptionSelectors() {
+    }
+
+    /**
+     * Rotate among the members, so that each one receives the same number of messages.
+     */
+    public static ISharedSubscriptionSelector roundRobin() {
+        return (group, topic) -> group.member(Math.floorMod(group.next(), group.size()));
+    }
+
+    /**
+     * Choose the member with fewer messages waiting for an acknowledge. Among the equally loaded members
+     * rotate like round robin.
+     *
+     * @param inflightCount gives the number of messages in flight for a client id.
+     */
+    public static ISharedSubscriptionSelector leastInflight(ToIntFunction<String> inflightCount) {
+        return (group, topic) -> {
+            final int size = group.size();
+            final int start = Math.floorMod(group.next(), size);
+            Subscription selected = null;
+            int minInflight = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                final Subscription member = group.member((start + i) % size);
+                final int inflight = inflightCount.applyAsInt(member.getClientId());
+                if (inflight < minInflight) {
+                    minInflight = inflight;
+                    selected = member;
+                    if (inflight == 0) {
+                        break;
+                    }
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * Always choose the same member for the same topic, while the group doesn't change, so that the messages
+     * on a topic are received in order.
+     */
+    public static ISharedSubscriptionSelector stickyHash() {
+        return (group, topic) -> group.member(Math.floorMod(topic.hashCode(), group.size()));
+    }
+
+    /**
+     * @param policy one of {@link #ROUND_ROBIN}, {@link #LEAST_INFLIGHT} or {@link #STICKY_HASH}.
+     * @param inflightCount gives the number of messages in flight for a client id, used by least inflight.
+     */
+    public static ISharedSubscriptionSelector forPolicy(String policy, ToIntFunction<String> inflightCount) {
+        switch (policy) {
+            case ROUND_ROBIN:
+                return roundRobin();
+            case LEAST_INFLIGHT:
+                return leastInflight(inflightCount);
+            case STICKY_HASH:
+                return stickyHash();
+            default:
+                throw new IllegalArgumentException("Unknown shared subscription policy: " + policy);
+        }
+    }
+}
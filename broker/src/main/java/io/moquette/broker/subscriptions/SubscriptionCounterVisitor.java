@@ -22,8 +22,8 @@ class SubscriptionCounterVisitor implements CTrie.IVisitor<Integer> {
     private AtomicInteger accumulator = new AtomicInteger(0);
 
     @Override
-    public void visit(CNode node, int deep) {
-        accumulator.addAndGet(node.subscriptions.size());
+    public void visit(Edge edge, CNode node, int deep) {
+        accumulator.addAndGet(node.subscriptionsCount());
     }
 
     @Override
@@ -16,32 +16,16 @@
 package io.moquette.broker.subscriptions;
 
 import io.moquette.api.Subscription;
-import io.moquette.api.Token;
 
 class TNode extends CNode {
 
-    @Override
-    public Token getToken() {
-        throw new IllegalStateException("Can't be invoked on TNode");
-    }
-
-    @Override
-    public void setToken(Token token) {
-        throw new IllegalStateException("Can't be invoked on TNode");
-    }
-
-    @Override
-    INode childOf(Token token) {
-        throw new IllegalStateException("Can't be invoked on TNode");
-    }
-
     @Override
     CNode copy() {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    public void add(INode newINode) {
+    public void add(Edge edge) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -51,22 +35,12 @@ class TNode extends CNode {
     }
 
     @Override
-    boolean containsOnly(String clientId) {
+    boolean contains(String shareName, String clientId) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    public boolean contains(String clientId) {
+    void removeSubscriptionsFor(String shareName, String clientId) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
-
-    @Override
-    void removeSubscriptionsFor(String clientId) {
-        throw new IllegalStateException("Can't be invoked on TNode");
-    }
-
-    @Override
-    boolean anyChildrenMatch(Token token) {
-        return false;
-    }
 }
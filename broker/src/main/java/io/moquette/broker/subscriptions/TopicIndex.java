@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Token;
+import io.moquette.api.Topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trie of topics with a value each, like the retained messages, with a node for every level like the
+ * subscriptions CTrie. A topic filter visits only the subtrees that it matches, instead of testing every topic.
+ * <p>
+ * Readers don't lock. Writers that only add nodes or change a value share the read lock, the write lock
+ * is taken only to prune the nodes left empty by a removal, so that a node is never unlinked while a
+ * concurrent writer is storing a value in it. Children are sorted by level name, so the matching
+ * values come in topic order.
+ */
+public final class TopicIndex<V> {
+
+    private static final class Node<V> {
+        private volatile ConcurrentNavigableMap<String, Node<V>> children;
+        private volatile V value;
+
+        Node<V> child(String name) {
+            final ConcurrentNavigableMap<String, Node<V>> currentChildren = children;
+            return currentChildren == null ? null : currentChildren.get(name);
+        }
+
+        Node<V> childOrCreate(String name) {
+            ConcurrentNavigableMap<String, Node<V>> currentChildren = children;
+            if (currentChildren == null) {
+                synchronized (this) {
+                    currentChildren = children;
+                    if (currentChildren == null) {
+                        currentChildren = new ConcurrentSkipListMap<>();
+                        children = currentChildren;
+                    }
+                }
+            }
+            return currentChildren.computeIfAbsent(name, k -> new Node<>());
+        }
+
+        boolean isEmpty() {
+            final ConcurrentNavigableMap<String, Node<V>> currentChildren = children;
+            return value == null && (currentChildren == null || currentChildren.isEmpty());
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReadWriteLock pruneLock = new ReentrantReadWriteLock();
+
+    /**
+     * Bind the value to the topic, replacing the previous one.
+     */
+    public void put(Topic topic, V value) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return;
+        }
+        pruneLock.readLock().lock();
+        try {
+            Node<V> node = root;
+            for (Token token : tokens) {
+                node = node.childOrCreate(token.toString());
+            }
+            synchronized (node) {
+                if (node.value == null) {
+                    size.incrementAndGet();
+                }
+                node.value = value;
+            }
+        } finally {
+            pruneLock.readLock().unlock();
+        }
+    }
+
+    public void remove(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return;
+        }
+        final Node<V> node;
+        pruneLock.readLock().lock();
+        try {
+            node = lookup(tokens);
+            if (node == null) {
+                return;
+            }
+            synchronized (node) {
+                if (node.value == null) {
+                    return;
+                }
+                node.value = null;
+                size.decrementAndGet();
+            }
+        } finally {
+            pruneLock.readLock().unlock();
+        }
+        if (node.isEmpty()) {
+            prune(tokens);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the values of all the topics matched by the topic filter.
+     */
+    public List<V> match(Topic topicFilter) {
+        final List<V> matching = new ArrayList<>();
+        final List<Token> tokens = topicFilter.getTokens();
+        if (tokens != null) {
+            match(root, tokens, 0, matching);
+        }
+        return matching;
+    }
+
+    private void match(Node<V> node, List<Token> tokens, int level, List<V> matching) {
+        if (level == tokens.size()) {
+            addValue(node, matching);
+            return;
+        }
+        final Token token = tokens.get(level);
+        if (Token.MULTI.equals(token)) {
+            // # matches also the parent level
+            collectAll(node, matching);
+        } else if (Token.SINGLE.equals(token)) {
+            final ConcurrentNavigableMap<String, Node<V>> children = node.children;
+            if (children != null) {
+                for (Node<V> child : children.values()) {
+                    match(child, tokens, level + 1, matching);
+                }
+            }
+        } else {
+            final Node<V> child = node.child(token.toString());
+            if (child != null) {
+                match(child, tokens, level + 1, matching);
+            }
+        }
+    }
+
+    private void collectAll(Node<V> node, List<V> matching) {
+        addValue(node, matching);
+        final ConcurrentNavigableMap<String, Node<V>> children = node.children;
+        if (children != null) {
+            for (Node<V> child : children.values()) {
+                collectAll(child, matching);
+            }
+        }
+    }
+
+    private void addValue(Node<V> node, List<V> matching) {
+        final V value = node.value;
+        if (value != null) {
+            matching.add(value);
+        }
+    }
+
+    private Node<V> lookup(List<Token> tokens) {
+        Node<V> node = root;
+        for (int i = 0; i < tokens.size() && node != null; i++) {
+            node = node.child(tokens.get(i).toString());
+        }
+        return node;
+    }
+
+    /**
+     * Unlink the empty nodes on the path of the topic, from the leaf up.
+     */
+    private void prune(List<Token> tokens) {
+        pruneLock.writeLock().lock();
+        try {
+            final List<Node<V>> path = new ArrayList<>(tokens.size() + 1);
+            Node<V> node = root;
+            path.add(node);
+            for (Token token : tokens) {
+                node = node.child(token.toString());
+                if (node == null) {
+                    return;
+                }
+                path.add(node);
+            }
+            for (int level = tokens.size(); level > 0; level--) {
+                if (!path.get(level).isEmpty()) {
+                    return;
+                }
+                path.get(level - 1).children.remove(tokens.get(level - 1).toString());
+            }
+        } finally {
+            pruneLock.writeLock().unlock();
+        }
+    }
+}
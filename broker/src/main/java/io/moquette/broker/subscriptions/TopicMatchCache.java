@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.MatchedSubscriptions;
+import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache from a publish topic to the QoS sharpened subscriptions that match it.
+ * <p>
+ * The cache is split in segments, each one an access ordered LinkedHashMap guarded by its own lock,
+ * so that publishers on different topics rarely contend. Every change to the subscriptions tree has
+ * to be notified with {@link #invalidate(Topic)}, that drops the cached topics matched by the
+ * changed filter and bumps a generation counter. The cached topics are indexed by level, so an
+ * invalidation visits only the topics the filter matches instead of the whole cache; a topic is
+ * added to and removed from the index under the lock of its segment. A publisher that computed its
+ * result while the tree was changing sees a different generation after storing it and evicts its own
+ * entry, so a stale result never survives a concurrent subscribe or unsubscribe.
+ */
+final class TopicMatchCache {
+
+    private static final int SEGMENTS = 16;
+    private static final Subscription[] EMPTY = new Subscription[0];
+
+    private final Segment[] segments;
+    private final TopicIndex<Topic> cachedTopics = new TopicIndex<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final class Segment extends LinkedHashMap<Topic, Subscription[]> {
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Topic, Subscription[]> eldest) {
+            if (size() > capacity) {
+                cachedTopics.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    TopicMatchCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Match cache size must be positive, was: " + maxSize);
+        }
+        final int segmentsCount = Math.min(SEGMENTS, maxSize);
+        final int segmentCapacity = (maxSize + segmentsCount - 1) / segmentsCount;
+        segments = new Segment[segmentsCount];
+        for (int i = 0; i < segmentsCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put(Topic, MatchedSubscriptions, long)} once the
+     * match for a missed topic has been computed.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Append the cached subscriptions for the topic to the accumulator.
+     *
+     * @return true on cache hit, false if the topic has to be matched against the tree.
+     */
+    boolean matchInto(Topic topic, MatchedSubscriptions matched) {
+        final Segment segment = segmentFor(topic);
+        final Subscription[] cached;
+        synchronized (segment) {
+            cached = segment.get(topic);
+        }
+        if (cached == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        for (Subscription subscription : cached) {
+            matched.add(subscription);
+        }
+        return true;
+    }
+
+    /**
+     * Store the result of a match computed when the cache was at the given generation.
+     */
+    void put(Topic topic, MatchedSubscriptions matched, long computedAt) {
+        final Subscription[] snapshot = snapshot(matched);
+        final Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            if (segment.put(topic, snapshot) == null) {
+                cachedTopics.put(topic, topic);
+            }
+        }
+        if (generation.get() != computedAt) {
+            // the tree changed while matching, the result could miss a subscription or contain a removed one
+            evict(segment, topic);
+        }
+    }
+
+    /**
+     * Drop all the cached topics that the changed topic filter matches.
+     */
+    void invalidate(Topic filter) {
+        invalidate(Collections.singletonList(filter));
+    }
+
+    /**
+     * Drop all the cached topics that any of the changed topic filters matches.
+     */
+    void invalidate(Collection<Topic> filters) {
+        generation.incrementAndGet();
+        for (Topic filter : filters) {
+            // shared subscriptions are matched by the filter after the $share/<group> prefix
+            final Topic matchingFilter = filter.isShared() ? filter.sharedFilter() : filter;
+            for (Topic topic : cachedTopics.match(matchingFilter)) {
+                evict(segmentFor(topic), topic);
+            }
+        }
+    }
+
+    private void evict(Segment segment, Topic topic) {
+        synchronized (segment) {
+            if (segment.remove(topic) != null) {
+                cachedTopics.remove(topic);
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of topics in the index used by the invalidation, always equal to the cache size.
+     */
+    int indexedTopics() {
+        return cachedTopics.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private Segment segmentFor(Topic topic) {
+        final int hash = topic.hashCode();
+        return segments[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % segments.length];
+    }
+
+    private static Subscription[] snapshot(MatchedSubscriptions matched) {
+        if (matched.isEmpty()) {
+            return EMPTY;
+        }
+        final Subscription[] snapshot = new Subscription[matched.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = matched.get(i);
+        }
+        return snapshot;
+    }
+}
@@ -17,9 +17,9 @@ package io.moquette.persistence;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.WriteBuffer;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 
 public final class ByteBufDataType implements org.h2.mvstore.type.DataType {
@@ -52,21 +52,33 @@ public final class ByteBufDataType implements org.h2.mvstore.type.DataType {
         }
     }
 
+    /**
+     * The payload of a heap buffer is a view on it, H2 reads every page in a new buffer. The payload of a
+     * direct buffer, like a mapped file that can be deleted, is copied once.
+     */
     @Override
     public ByteBuf read(ByteBuffer buff) {
         final int payloadSize = buff.getInt();
-        byte[] payload = new byte[payloadSize];
-        buff.get(payload);
-        return Unpooled.wrappedBuffer(payload);
+        final ByteBuffer payload = buff.slice();
+        // through Buffer, the covariant overrides of Java 9 don't exist on Java 8
+        ((Buffer) payload).limit(payloadSize);
+        ((Buffer) buff).position(buff.position() + payloadSize);
+        if (payload.hasArray()) {
+            return Unpooled.wrappedBuffer(payload);
+        }
+        return Unpooled.buffer(payloadSize, payloadSize).writeBytes(payload);
     }
 
+    /**
+     * Copy the readable bytes straight from the buffers behind the payload, without moving its reader index.
+     */
     @Override
     public void write(WriteBuffer buff, Object obj) {
         final ByteBuf casted = (ByteBuf) obj;
         final int payloadSize = casted.readableBytes();
-        byte[] rawBytes = new byte[payloadSize];
-        casted.copy().readBytes(rawBytes).release();
         buff.putInt(payloadSize);
-        buff.put(rawBytes);
+        for (ByteBuffer component : casted.nioBuffers(casted.readerIndex(), payloadSize)) {
+            buff.put(component);
+        }
     }
 }
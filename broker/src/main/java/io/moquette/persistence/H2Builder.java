@@ -10,7 +10,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 public class H2Builder {
 
@@ -18,40 +17,73 @@ public class H2Builder {
 
     private final String storePath;
     private final int autosaveInterval; // in seconds
+    private final H2Committer.Durability durability;
+    private final int groupCommitInterval; // in milliseconds
+    private final int groupCommitMaxWrites;
+    private final int cacheSize; // in MB, 0 for the H2 default
+    private final String compression;
+    private final int autoCompactFillRate; // percentage, -1 for the H2 default
     private final ScheduledExecutorService scheduler;
     private MVStore mvStore;
+    private H2Committer committer;
 
     public H2Builder(IConfig props, ScheduledExecutorService scheduler) {
         this.storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
         final String autosaveProp = props.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30");
         this.autosaveInterval = Integer.parseInt(autosaveProp);
+        this.durability = H2Committer.Durability.of(
+            props.getProperty(BrokerConstants.DURABILITY_PROPERTY_NAME, BrokerConstants.ASYNC_DURABILITY));
+        this.groupCommitInterval = props.intProp(BrokerConstants.GROUP_COMMIT_INTERVAL_PROPERTY_NAME,
+                                                 BrokerConstants.DEFAULT_GROUP_COMMIT_INTERVAL_MS);
+        this.groupCommitMaxWrites = props.intProp(BrokerConstants.GROUP_COMMIT_MAX_WRITES_PROPERTY_NAME,
+                                                  BrokerConstants.DEFAULT_GROUP_COMMIT_MAX_WRITES);
+        this.cacheSize = props.intProp(BrokerConstants.STORE_CACHE_SIZE_PROPERTY_NAME, 0);
+        this.compression = props.getProperty(BrokerConstants.STORE_COMPRESSION_PROPERTY_NAME,
+                                             BrokerConstants.NO_STORE_COMPRESSION);
+        this.autoCompactFillRate = props.intProp(BrokerConstants.STORE_AUTO_COMPACT_FILL_RATE_PROPERTY_NAME, -1);
         this.scheduler = scheduler;
     }
 
-    @SuppressWarnings("FutureReturnValueIgnored")
     public H2Builder initStore() {
         LOG.info("Initializing H2 store");
         if (storePath == null || storePath.isEmpty()) {
             throw new IllegalArgumentException("H2 store path can't be null or empty");
         }
-        mvStore = new MVStore.Builder()
+        final MVStore.Builder builder = new MVStore.Builder()
             .fileName(storePath)
-            .autoCommitDisabled()
-            .open();
+            .autoCommitDisabled();
+        if (cacheSize > 0) {
+            builder.cacheSize(cacheSize);
+        }
+        switch (compression) {
+            case BrokerConstants.NO_STORE_COMPRESSION:
+                break;
+            case BrokerConstants.FAST_STORE_COMPRESSION:
+                builder.compress();
+                break;
+            case BrokerConstants.HIGH_STORE_COMPRESSION:
+                builder.compressHigh();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown H2 store compression: " + compression);
+        }
+        if (autoCompactFillRate >= 0) {
+            builder.autoCompactFillRate(autoCompactFillRate);
+        }
+        mvStore = builder.open();
 
         LOG.trace("Scheduling H2 commit task");
-        scheduler.scheduleWithFixedDelay(() -> {
-            LOG.trace("Committing to H2");
-            mvStore.commit();
-        }, autosaveInterval, autosaveInterval, TimeUnit.SECONDS);
+        committer = new H2Committer(mvStore, durability, groupCommitMaxWrites);
+        committer.start(scheduler, autosaveInterval, groupCommitInterval);
         return this;
     }
 
     public ISubscriptionsRepository subscriptionsRepository() {
-        return new H2SubscriptionsRepository(mvStore);
+        return new H2SubscriptionsRepository(mvStore, committer::writeBatch);
     }
 
     public void closeStore() {
+        committer.flush();
         mvStore.close();
     }
 
@@ -62,4 +94,18 @@ public class H2Builder {
     public IRetainedRepository retainedRepository() {
         return new H2RetainedRepository(mvStore);
     }
+
+    /**
+     * Make the durable modes sync also a store of the queues kept out of H2 before acknowledging.
+     */
+    public void alsoSync(Runnable sync) {
+        committer.alsoSync(sync);
+    }
+
+    /**
+     * @return what makes the acknowledges wait for the durability of the store.
+     */
+    public StoreCommitter committer() {
+        return committer;
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import io.moquette.BrokerConstants;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Commits the H2 store according to the durability mode:
+ * <ul>
+ *     <li>async: every autosave interval, the acknowledges don't wait for it. Up to an interval of changes
+ *     can be lost on a crash.</li>
+ *     <li>group: every few milliseconds or as soon as enough acknowledges are waiting, that are sent when the
+ *     commit that covers them is synced to disk.</li>
+ *     <li>sync: the committer thread commits and syncs the store as soon as an acknowledge waits for it, the
+ *     acknowledges that arrive meanwhile are covered by the following commit.</li>
+ * </ul>
+ * A commit that fails is logged and its acknowledges wait for the next one, that is retried at the next
+ * interval. The writes of a batch are saved all by the same commit.
+ * The latency of the commits is tracked by the "persistence.commit" timer of the "moquette" shared metrics
+ * registry.
+ */
+public final class H2Committer implements StoreCommitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(H2Committer.class);
+
+    public static final String COMMIT_LATENCY_METRIC = "persistence.commit";
+
+    enum Durability {
+        ASYNC, GROUP, SYNC;
+
+        static Durability of(String mode) {
+            switch (mode) {
+                case BrokerConstants.ASYNC_DURABILITY:
+                    return ASYNC;
+                case BrokerConstants.GROUP_DURABILITY:
+                    return GROUP;
+                case BrokerConstants.SYNC_DURABILITY:
+                    return SYNC;
+                default:
+                    throw new IllegalArgumentException("Unknown durability mode: " + mode);
+            }
+        }
+    }
+
+    private final MVStore store;
+    private final Durability durability;
+    private final int maxPendingWrites;
+    private final Timer commitLatency;
+    private final List<Runnable> alsoSynced = new CopyOnWriteArrayList<>();
+    // serializes the commit with its sync, so that a commit finding nothing to save knows it's already durable
+    private final Object commitLock = new Object();
+    // shared by the batches being written, exclusive for the commit, so that no commit saves half a batch
+    private final ReadWriteLock batchLock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService scheduler;
+    // acknowledges waiting for the next commit, guarded by this
+    private List<Runnable> pending = new ArrayList<>();
+    private boolean commitRequested;
+
+    H2Committer(MVStore store, Durability durability, int maxPendingWrites) {
+        this.store = store;
+        this.durability = durability;
+        this.maxPendingWrites = maxPendingWrites;
+        this.commitLatency = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME)
+            .timer(COMMIT_LATENCY_METRIC);
+    }
+
+    /**
+     * @param autosaveInterval seconds between the commits in async mode, and of the changes that no
+     *                         acknowledge waits for in sync mode.
+     * @param groupCommitInterval milliseconds between the commits in group mode.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    void start(ScheduledExecutorService scheduler, int autosaveInterval, int groupCommitInterval) {
+        this.scheduler = scheduler;
+        LOG.info("Committing H2 store in {} durability mode", durability.name().toLowerCase());
+        if (durability == Durability.GROUP) {
+            scheduler.scheduleWithFixedDelay(this::commitPending, groupCommitInterval, groupCommitInterval,
+                                             TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.scheduleWithFixedDelay(this::commitPending, autosaveInterval, autosaveInterval,
+                                             TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Sync also a store kept out of H2 every time the store is synced, so that the acknowledges wait for it too.
+     * Does nothing in async mode.
+     */
+    void alsoSync(Runnable sync) {
+        alsoSynced.add(sync);
+    }
+
+    /**
+     * Run writes that have to be saved by the same commit, the commit waits for them to end.
+     */
+    void writeBatch(Runnable writes) {
+        final Lock lock = batchLock.readLock();
+        lock.lock();
+        try {
+            writes.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void afterCommit(Runnable action) {
+        if (durability == Durability.ASYNC) {
+            action.run();
+            return;
+        }
+        final boolean requestCommit;
+        synchronized (this) {
+            pending.add(action);
+            final int waitFor = durability == Durability.SYNC ? 1 : maxPendingWrites;
+            requestCommit = pending.size() >= waitFor && !commitRequested;
+            if (requestCommit) {
+                commitRequested = true;
+            }
+        }
+        if (requestCommit) {
+            scheduler.execute(this::commitPending);
+        }
+    }
+
+    /**
+     * Commit and run the actions that were waiting for it, also the ones of the changes done meanwhile.
+     * If the commit fails the actions are kept for the next one.
+     */
+    void commitPending() {
+        final List<Runnable> committed;
+        synchronized (this) {
+            committed = pending;
+            pending = new ArrayList<>();
+            commitRequested = false;
+        }
+        try {
+            commit();
+        } catch (RuntimeException ex) {
+            LOG.error("Commit of H2 store failed, {} acknowledges wait for the next one", committed.size(), ex);
+            synchronized (this) {
+                committed.addAll(pending);
+                pending = committed;
+            }
+            return;
+        }
+        for (Runnable action : committed) {
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                LOG.warn("Action after commit failed", ex);
+            }
+        }
+    }
+
+    private void commit() {
+        synchronized (commitLock) {
+            final boolean syncOthers = durability != Durability.ASYNC && !alsoSynced.isEmpty();
+            if (!store.hasUnsavedChanges() && !syncOthers) {
+                return;
+            }
+            LOG.trace("Committing to H2");
+            final long start = System.nanoTime();
+            if (store.hasUnsavedChanges()) {
+                final Lock lock = batchLock.writeLock();
+                lock.lock();
+                try {
+                    store.commit();
+                } finally {
+                    lock.unlock();
+                }
+                if (durability != Durability.ASYNC) {
+                    store.sync();
+                }
+            }
+            if (syncOthers) {
+                for (Runnable sync : alsoSynced) {
+                    sync.run();
+                }
+            }
+            commitLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    Timer commitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Commit the changes still pending before closing the store.
+     */
+    void flush() {
+        commitPending();
+    }
+}
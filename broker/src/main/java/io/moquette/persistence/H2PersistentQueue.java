@@ -23,10 +23,13 @@ import java.util.AbstractQueue;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Queue stored in an MVMap keyed by a progressive number. Head and tail are derived from the keys when the
+ * queue is opened, so enqueue and dequeue are a single operation on the map.
+ */
 class H2PersistentQueue extends AbstractQueue<EnqueuedMessage> {
 
     private final MVMap<Long, EnqueuedMessage> queueMap;
-    private final MVMap<String, Long> metadataMap;
     private final AtomicLong head;
     private final AtomicLong tail;
 
@@ -39,30 +42,27 @@ class H2PersistentQueue extends AbstractQueue<EnqueuedMessage> {
                 .valueType(new EnqueuedMessageValueType());
 
         this.queueMap = store.openMap("queue_" + queueName, messageTypeBuilder);
-        this.metadataMap = store.openMap("queue_" + queueName + "_meta");
 
-        //setup head index
-        long headIdx = 0L;
-        if (this.metadataMap.containsKey("head")) {
-            headIdx = this.metadataMap.get("head");
-        } else {
-            this.metadataMap.put("head", headIdx);
-        }
-        this.head = new AtomicLong(headIdx);
+        // the oldest message is the next to be polled, the newest one was the last offered
+        final Long firstKey = this.queueMap.firstKey();
+        final Long lastKey = this.queueMap.lastKey();
+        this.tail = new AtomicLong(firstKey == null ? 0L : firstKey);
+        this.head = new AtomicLong(lastKey == null ? 0L : lastKey + 1);
+    }
 
-        //setup tail index
-        long tailIdx = 0L;
-        if (this.metadataMap.containsKey("tail")) {
-            tailIdx = this.metadataMap.get("tail");
-        } else {
-            this.metadataMap.put("tail", tailIdx);
-        }
-        this.tail = new AtomicLong(tailIdx);
+    /**
+     * @return true if something was ever enqueued for the queue, without opening its maps.
+     */
+    static boolean exists(MVStore store, String queueName) {
+        return store.hasMap("queue_" + queueName);
     }
 
     static void dropQueue(MVStore store, String queueName) {
         store.removeMap(store.openMap("queue_" + queueName));
-        store.removeMap(store.openMap("queue_" + queueName + "_meta"));
+        // written by the previous versions, that stored head and tail
+        if (store.hasMap("queue_" + queueName + "_meta")) {
+            store.removeMap(store.openMap("queue_" + queueName + "_meta"));
+        }
     }
 
     @Override
@@ -80,27 +80,21 @@ class H2PersistentQueue extends AbstractQueue<EnqueuedMessage> {
         if (t == null) {
             throw new NullPointerException("Inserted element can't be null");
         }
-        final long nextHead = head.getAndIncrement();
-        this.queueMap.put(nextHead, t);
-        this.metadataMap.put("head", nextHead + 1);
+        this.queueMap.put(head.getAndIncrement(), t);
         return true;
     }
 
     @Override
     public EnqueuedMessage poll() {
-        if (head.equals(tail)) {
+        if (head.get() == tail.get()) {
             return null;
         }
-        final long nextTail = tail.getAndIncrement();
-        final EnqueuedMessage tail = this.queueMap.get(nextTail);
-        queueMap.remove(nextTail);
-        this.metadataMap.put("tail", nextTail + 1);
-        return tail;
+        return this.queueMap.remove(tail.getAndIncrement());
     }
 
     @Override
     public EnqueuedMessage peek() {
-        if (head.equals(tail)) {
+        if (head.get() == tail.get()) {
             return null;
         }
         return this.queueMap.get(tail.get());
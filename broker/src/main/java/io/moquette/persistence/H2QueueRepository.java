@@ -17,7 +17,7 @@ package io.moquette.persistence;
 
 import io.moquette.api.EnqueuedMessage;
 import io.moquette.api.IQueueRepository;
-import io.moquette.api.EnqueuedMessage;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
 import java.util.HashMap;
@@ -27,27 +27,55 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class H2QueueRepository implements IQueueRepository {
 
+    // client ids of the persistent queues, also the ones never opened
+    private static final String QUEUES_INDEX_MAP = "persistent_queues";
+
     private MVStore mvStore;
+    private final MVMap<String, Boolean> queuesIndex;
 
     public H2QueueRepository(MVStore mvStore) {
         this.mvStore = mvStore;
+        this.queuesIndex = mvStore.openMap(QUEUES_INDEX_MAP);
     }
 
     @Override
     public Queue<EnqueuedMessage> createQueue(String cli, boolean clean) {
         if (!clean) {
-            return new H2PersistentQueue(mvStore, cli);
+            // most sessions never get a message while offline, don't touch their maps until one comes
+            if (!queuesIndex.containsKey(cli)) {
+                queuesIndex.put(cli, Boolean.TRUE);
+            }
+            return new LazyH2PersistentQueue(mvStore, cli);
         }
         return new ConcurrentLinkedQueue<>();
     }
 
+    /**
+     * Only the client ids of the stored queues are read, every queue is opened on first use.
+     */
     @Override
     public Map<String, Queue<EnqueuedMessage>> listAllQueues() {
         Map<String, Queue<EnqueuedMessage>> result = new HashMap<>();
+        for (String clientId : queuesIndex.keySet()) {
+            result.put(clientId, new LazyH2PersistentQueue(mvStore, clientId));
+        }
+        // the queues of a store written before the index
         mvStore.getMapNames().stream()
             .filter(name -> name.startsWith("queue_") && !name.endsWith("_meta"))
             .map(name -> name.substring("queue_".length()))
-            .forEach(name -> result.put(name, new H2PersistentQueue(mvStore, name)));
+            .filter(name -> !result.containsKey(name))
+            .forEach(name -> result.put(name, new LazyH2PersistentQueue(mvStore, name)));
         return result;
     }
+
+    /**
+     * The session that held the queue gets a new one, nothing uses the dropped maps anymore.
+     */
+    @Override
+    public void dropQueue(String cli) {
+        queuesIndex.remove(cli);
+        if (H2PersistentQueue.exists(mvStore, cli)) {
+            H2PersistentQueue.dropQueue(mvStore, cli);
+        }
+    }
 }
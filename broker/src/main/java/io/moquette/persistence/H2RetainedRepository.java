@@ -3,6 +3,7 @@ package io.moquette.persistence;
 import io.moquette.api.IRetainedRepository;
 import io.moquette.api.RetainedMessage;
 import io.moquette.api.Topic;
+import io.moquette.broker.subscriptions.TopicIndex;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.h2.mvstore.MVMap;
@@ -10,19 +11,24 @@ import org.h2.mvstore.MVStore;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class H2RetainedRepository implements IRetainedRepository {
 
     private final MVMap<Topic, RetainedMessage> queueMap;
+    // index of the stored topics, to not scan the whole store for every subscription
+    private final TopicIndex<Topic> topicsIndex = new TopicIndex<>();
 
     public H2RetainedRepository(MVStore mvStore) {
         this.queueMap = mvStore.openMap("retained_store");
+        for (Topic topic : queueMap.keySet()) {
+            topicsIndex.put(topic, topic);
+        }
     }
 
     @Override
     public void cleanRetained(Topic topic) {
         queueMap.remove(topic);
+        topicsIndex.remove(topic);
     }
 
     @Override
@@ -32,6 +38,7 @@ public class H2RetainedRepository implements IRetainedRepository {
         payload.getBytes(0, rawPayload);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload);
         queueMap.put(topic, toStore);
+        topicsIndex.put(topic, topic);
     }
 
     @Override
@@ -41,12 +48,12 @@ public class H2RetainedRepository implements IRetainedRepository {
 
     @Override
     public List<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : queueMap.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+        final List<Topic> matchingTopics = topicsIndex.match(new Topic(topic));
+        final List<RetainedMessage> matchingMessages = new ArrayList<>(matchingTopics.size());
+        for (Topic matchingTopic : matchingTopics) {
+            final RetainedMessage message = queueMap.get(matchingTopic);
+            if (message != null) {
+                matchingMessages.add(message);
             }
         }
 
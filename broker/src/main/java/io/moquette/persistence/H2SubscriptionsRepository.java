@@ -8,8 +8,10 @@ import org.h2.mvstore.MVStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public class H2SubscriptionsRepository implements ISubscriptionsRepository {
 
@@ -17,9 +19,18 @@ public class H2SubscriptionsRepository implements ISubscriptionsRepository {
     private static final String SUBSCRIPTIONS_MAP = "subscriptions";
 
     private MVMap<String, Subscription> subscriptions;
+    private final Consumer<Runnable> inOneCommit;
 
     H2SubscriptionsRepository(MVStore mvStore) {
+        this(mvStore, Runnable::run);
+    }
+
+    /**
+     * @param inOneCommit runs the writes of a batch so that they are saved by the same commit.
+     */
+    H2SubscriptionsRepository(MVStore mvStore, Consumer<Runnable> inOneCommit) {
         this.subscriptions = mvStore.openMap(SUBSCRIPTIONS_MAP);
+        this.inOneCommit = inOneCommit;
     }
 
     @Override
@@ -27,18 +38,43 @@ public class H2SubscriptionsRepository implements ISubscriptionsRepository {
         LOG.debug("Retrieving existing subscriptions");
 
         Set<Subscription> results = new HashSet<>();
+        forEachSubscription(results::add);
+        LOG.debug("Loaded {} subscriptions", results.size());
+        return results;
+    }
+
+    /**
+     * Walk the map with a cursor, that loads one page of the B-tree at a time.
+     */
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
         Cursor<String, Subscription> mapCursor = subscriptions.cursor(null);
         while (mapCursor.hasNext()) {
-            String subscriptionStr = mapCursor.next();
-            results.add(mapCursor.getValue());
+            mapCursor.next();
+            action.accept(mapCursor.getValue());
         }
-        LOG.debug("Loaded {} subscriptions", results.size());
-        return results;
     }
 
     @Override
     public void addNewSubscription(Subscription subscription) {
-        subscriptions.put(subscription.getTopicFilter() + "-" + subscription.getClientId(), subscription);
+        subscriptions.put(keyOf(subscription), subscription);
+    }
+
+    /**
+     * The subscriptions of a batch are stored in one pass and saved by the same commit, so that a SUBSCRIBE
+     * is never restored with only some of its filters.
+     */
+    @Override
+    public void addNewSubscriptions(Collection<Subscription> newSubscriptions) {
+        inOneCommit.accept(() -> {
+            for (Subscription subscription : newSubscriptions) {
+                subscriptions.put(keyOf(subscription), subscription);
+            }
+        });
+    }
+
+    private static String keyOf(Subscription subscription) {
+        return subscription.getTopicFilter() + "-" + subscription.getClientId();
     }
 
     @Override
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+import org.h2.mvstore.MVStore;
+
+import java.util.AbstractQueue;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Handle of a persistent queue that opens its maps only when needed: on the first enqueue, or when it's read
+ * and something was stored in a previous run. Most of the persistent sessions never receive a message while
+ * offline, so their queues cost nothing on the store and the heap until then.
+ */
+class LazyH2PersistentQueue extends AbstractQueue<EnqueuedMessage> {
+
+    private final MVStore store;
+    private final String queueName;
+    private volatile H2PersistentQueue opened;
+    // the store has no maps for the queue, and only this handle creates them, so it's looked up once
+    private volatile boolean absent;
+
+    LazyH2PersistentQueue(MVStore store, String queueName) {
+        if (queueName == null || queueName.isEmpty()) {
+            throw new IllegalArgumentException("queueName parameter can't be empty or null");
+        }
+        this.store = store;
+        this.queueName = queueName;
+    }
+
+    /**
+     * @return the queue, opened if it already has its maps or if create is true, else null.
+     */
+    private H2PersistentQueue queue(boolean create) {
+        H2PersistentQueue queue = opened;
+        if (queue != null || (!create && absent)) {
+            return queue;
+        }
+        synchronized (this) {
+            if (opened == null) {
+                if (create || H2PersistentQueue.exists(store, queueName)) {
+                    opened = new H2PersistentQueue(store, queueName);
+                } else {
+                    absent = true;
+                }
+            }
+            return opened;
+        }
+    }
+
+    boolean isOpened() {
+        return opened != null;
+    }
+
+    @Override
+    public Iterator<EnqueuedMessage> iterator() {
+        final H2PersistentQueue queue = queue(false);
+        return queue == null ? Collections.emptyIterator() : queue.iterator();
+    }
+
+    @Override
+    public int size() {
+        final H2PersistentQueue queue = queue(false);
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public boolean offer(EnqueuedMessage t) {
+        return queue(true).offer(t);
+    }
+
+    @Override
+    public EnqueuedMessage poll() {
+        final H2PersistentQueue queue = queue(false);
+        return queue == null ? null : queue.poll();
+    }
+
+    @Override
+    public EnqueuedMessage peek() {
+        final H2PersistentQueue queue = queue(false);
+        return queue == null ? null : queue.peek();
+    }
+}
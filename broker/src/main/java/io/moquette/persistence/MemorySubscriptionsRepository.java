@@ -18,9 +18,11 @@ package io.moquette.persistence;
 import io.moquette.api.ISubscriptionsRepository;
 import io.moquette.api.Subscription;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
 
 public class MemorySubscriptionsRepository implements ISubscriptionsRepository {
 
@@ -31,11 +33,21 @@ public class MemorySubscriptionsRepository implements ISubscriptionsRepository {
         return Collections.unmodifiableSet(subscriptions);
     }
 
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
+        subscriptions.forEach(action);
+    }
+
     @Override
     public void addNewSubscription(Subscription subscription) {
         subscriptions.add(subscription);
     }
 
+    @Override
+    public void addNewSubscriptions(Collection<Subscription> newSubscriptions) {
+        subscriptions.addAll(newSubscriptions);
+    }
+
     @Override
     public void removeSubscription(String topic, String clientID) {
         subscriptions.stream()
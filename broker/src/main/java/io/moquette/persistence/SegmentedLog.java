@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of records, in a chain of memory mapped segment files of fixed size.
+ * <p>
+ * A record is addressed by its offset, the id of the segment in the high 32 bits and the position in the
+ * low ones. The records that are still needed are counted per segment, and the segments at the head of the
+ * log are deleted as soon as none of their records is needed anymore. Only the head is deleted, so that a
+ * record is never lost while an older one that it refers to is still replayed on restart. When most of the
+ * head isn't needed anymore its owner can {@link #move(long)} the records still needed to the end of the log,
+ * so that a few of them don't keep alive all the segments after them.
+ * <p>
+ * Every record is the int length of its body, the byte type, the CRC32 of type and body, and the body. The
+ * mapped files start zeroed, so a length of 0 marks the end of the records of a segment. The operating system
+ * writes the dirty pages of a mapping back in any order, so after a power loss only the records appended
+ * before the last {@link #force()} are safe: the replay stops at the first record whose checksum doesn't
+ * match, and the following appends overwrite it.
+ */
+final class SegmentedLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+    // the head is worth compacting when less than this fraction of it is still needed
+    private static final int COMPACTION_RATIO = 4;
+
+    /**
+     * Receives the records replayed on restart.
+     */
+    interface RecordVisitor {
+        /**
+         * @param body the body of the record, valid only during the call.
+         */
+        void visit(long offset, byte type, ByteBuffer body);
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        // records still needed, and their bytes
+        final AtomicInteger live = new AtomicInteger();
+        final AtomicInteger liveBytes = new AtomicInteger();
+        // appended since the last force, guarded by the log
+        boolean unforced;
+
+        Segment(int id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            // the mapping stays valid after the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+            }
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+
+        ByteBuffer slice(int position, int length) {
+            final ByteBuffer view = buffer.duplicate();
+            // through Buffer, the covariant overrides of Java 9 don't exist on Java 8
+            ((Buffer) view).position(position).limit(position + length);
+            return view.slice();
+        }
+
+        int recordSize(int position) {
+            return HEADER_SIZE + buffer.getInt(position);
+        }
+
+        void retain(int position) {
+            live.incrementAndGet();
+            liveBytes.addAndGet(recordSize(position));
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // guarded by this
+    private Segment active;
+    private int writePosition;
+    private volatile boolean rolled;
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * @param segmentSize size in bytes of a new segment, a record that doesn't fit gets a segment of its own.
+     */
+    SegmentedLog(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create segments directory " + directory);
+        }
+    }
+
+    /**
+     * Map the existing segments and push all their records to the visitor, oldest first. Appending starts
+     * after the last record.
+     */
+    synchronized void open(RecordVisitor visitor) {
+        final Map<Integer, File> files = new TreeMap<>();
+        final File[] listed = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+            && name.endsWith(SEGMENT_SUFFIX));
+        if (listed != null) {
+            for (File file : listed) {
+                final String name = file.getName();
+                files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                          name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        for (Map.Entry<Integer, File> entry : files.entrySet()) {
+            final Segment segment = map(entry.getKey(), entry.getValue(), segmentSize);
+            segments.put(segment.id, segment);
+            active = segment;
+            writePosition = replay(segment, visitor);
+        }
+        if (active == null) {
+            roll(segmentSize);
+        }
+        LOG.info("Opened {} log segments in {}", segments.size(), directory);
+    }
+
+    private int replay(Segment segment, RecordVisitor visitor) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER_SIZE <= segment.size()) {
+            final int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            final byte type = buffer.get(position + 4);
+            if (length < 0 || length > segment.size() - position - HEADER_SIZE
+                || buffer.getInt(position + 5) != checksumOf(type, segment.slice(position + HEADER_SIZE, length))) {
+                LOG.warn("Log segment {} is torn at position {}, replayed up to there", segment.file, position);
+                // the next appends mustn't end in front of a stale record
+                for (int i = position; i < segment.size(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            visitor.visit(offsetOf(segment.id, position), type, segment.slice(position + HEADER_SIZE, length));
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private int checksumOf(byte type, ByteBuffer body) {
+        checksum.reset();
+        checksum.update(type);
+        checksum.update(body.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * @param live true if the record is needed until {@link #release(long)}, false if it's needed only while
+     *             the records before it are.
+     * @return the offset of the new record.
+     */
+    synchronized long append(byte type, ByteBuffer body, boolean live) {
+        final int length = body.remaining();
+        if (writePosition + HEADER_SIZE + length > active.size()) {
+            roll(Math.max(segmentSize, HEADER_SIZE + length));
+        }
+        final ByteBuffer buffer = active.buffer;
+        // the length last, so that a record cut by a crash of the process isn't replayed, the checksum covers
+        // a power loss that keeps only some of the pages
+        buffer.put(writePosition + 4, type);
+        buffer.putInt(writePosition + 5, checksumOf(type, body));
+        final ByteBuffer target = buffer.duplicate();
+        ((Buffer) target).position(writePosition + HEADER_SIZE);
+        target.put(body);
+        buffer.putInt(writePosition, length);
+        if (live) {
+            active.retain(writePosition);
+        }
+        active.unforced = true;
+        final long offset = offsetOf(active.id, writePosition);
+        writePosition += HEADER_SIZE + length;
+        return offset;
+    }
+
+    /**
+     * @return the body of the record, a view on the mapped segment.
+     */
+    ByteBuffer read(long offset) {
+        final Segment segment = segments.get(segmentOf(offset));
+        if (segment == null) {
+            throw new IllegalStateException("Segment of record at offset " + offset + " was deleted");
+        }
+        final int position = positionOf(offset);
+        return segment.slice(position + HEADER_SIZE, segment.buffer.getInt(position));
+    }
+
+    /**
+     * Mark as needed a record found while replaying.
+     */
+    void retain(long offset) {
+        segments.get(segmentOf(offset)).retain(positionOf(offset));
+    }
+
+    /**
+     * Mark as no more needed a live record, the segments at the head are deleted when they contain only
+     * records no more needed.
+     */
+    void release(long offset) {
+        final Segment segment = segments.get(segmentOf(offset));
+        segment.liveBytes.addAndGet(-segment.recordSize(positionOf(offset)));
+        if (segment.live.decrementAndGet() == 0 && segment.id == segments.firstKey()) {
+            deleteUnusedSegments();
+        }
+    }
+
+    /**
+     * Append a copy of a live record and release the original one.
+     *
+     * @return the offset of the copy.
+     */
+    synchronized long move(long offset) {
+        final Segment segment = segments.get(segmentOf(offset));
+        final byte type = segment.buffer.get(positionOf(offset) + 4);
+        final long moved = append(type, read(offset), true);
+        release(offset);
+        return moved;
+    }
+
+    /**
+     * @return the id of the segment at the head of the log if most of it isn't needed anymore, so that
+     * moving its records is cheap and lets it be deleted, else -1.
+     */
+    synchronized int sparseHead() {
+        final Segment head = segments.firstEntry().getValue();
+        if (head == active || (long) head.liveBytes.get() * COMPACTION_RATIO >= head.size()) {
+            return -1;
+        }
+        return head.id;
+    }
+
+    /**
+     * @return true if a new segment was started since the last call.
+     */
+    boolean pollRolled() {
+        if (!rolled) {
+            return false;
+        }
+        rolled = false;
+        return true;
+    }
+
+    /**
+     * Delete the segments at the head of the log that don't contain any record still needed.
+     */
+    synchronized void deleteUnusedSegments() {
+        while (!segments.isEmpty()) {
+            final Segment head = segments.firstEntry().getValue();
+            if (head == active || head.live.get() > 0) {
+                return;
+            }
+            segments.remove(head.id);
+            // nothing reads a segment without needed records, unmap it now instead of when it's collected
+            PlatformDependent.freeDirectBuffer(head.buffer);
+            if (!head.file.delete()) {
+                LOG.warn("Can't delete log segment {}", head.file);
+            }
+            LOG.debug("Deleted log segment {}", head.file);
+        }
+    }
+
+    /**
+     * Sync to disk the segments appended to since the last time.
+     */
+    synchronized void force() {
+        for (Segment segment : segments.values()) {
+            if (segment.unforced) {
+                segment.buffer.force();
+                segment.unforced = false;
+            }
+        }
+    }
+
+    int segmentsCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flush the segments to disk, the log can't be used anymore.
+     */
+    synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+
+    private void roll(int size) {
+        final int id = active == null ? 0 : active.id + 1;
+        final Segment segment = map(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), size);
+        segments.put(id, segment);
+        active = segment;
+        writePosition = 0;
+        rolled = true;
+    }
+
+    private static Segment map(int id, File file, int size) {
+        try {
+            return new Segment(id, file, size);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Can't map log segment " + file, ex);
+        }
+    }
+
+    private static long offsetOf(int segmentId, int position) {
+        return ((long) segmentId << 32) | position;
+    }
+
+    static int segmentOf(long offset) {
+        return (int) (offset >>> 32);
+    }
+
+    private static int positionOf(long offset) {
+        return (int) offset;
+    }
+}
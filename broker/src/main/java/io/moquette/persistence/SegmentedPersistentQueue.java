@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Queue of a session stored in the {@link SegmentedLog} shared by all the queues: the messages are records
+ * of the log, the queue keeps only their offsets.
+ * <p>
+ * Every message has a sequence number in the queue, because the compaction of the log can move it after
+ * messages that come later in the queue.
+ */
+class SegmentedPersistentQueue extends AbstractQueue<EnqueuedMessage> {
+
+    private static final class Stored {
+        final long sequence;
+        long offset;
+
+        Stored(long sequence, long offset) {
+            this.sequence = sequence;
+            this.offset = offset;
+        }
+    }
+
+    private final String clientId;
+    private final SegmentedQueueRepository repository;
+    // guarded by this
+    private final ArrayDeque<Stored> messages = new ArrayDeque<>();
+    private long nextSequence;
+    // the offsets of the messages found while replaying the log by sequence, null when not replaying
+    private TreeMap<Long, Long> replayed;
+
+    SegmentedPersistentQueue(String clientId, SegmentedQueueRepository repository) {
+        this.clientId = clientId;
+        this.repository = repository;
+    }
+
+    /**
+     * Add a message found while replaying the log, a message found again is the copy made by a compaction.
+     */
+    synchronized void replayEnqueued(long sequence, long offset) {
+        if (replayed == null) {
+            replayed = new TreeMap<>();
+        }
+        replayed.put(sequence, offset);
+        nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+
+    /**
+     * Remove a message consumed before the restart, if its segment wasn't deleted.
+     */
+    synchronized void replayConsumed(long sequence) {
+        if (replayed != null) {
+            replayed.remove(sequence);
+        }
+        nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+
+    /**
+     * Forget the messages replayed so far, the queue was dropped after them.
+     */
+    synchronized void replayDropped() {
+        replayed = null;
+    }
+
+    /**
+     * Queue the replayed messages in their order.
+     */
+    synchronized void endReplay() {
+        if (replayed == null) {
+            return;
+        }
+        for (Map.Entry<Long, Long> message : replayed.entrySet()) {
+            messages.addLast(new Stored(message.getKey(), message.getValue()));
+        }
+        replayed = null;
+    }
+
+    synchronized List<Long> offsets() {
+        final List<Long> offsets = new ArrayList<>(messages.size());
+        for (Stored stored : messages) {
+            offsets.add(stored.offset);
+        }
+        return offsets;
+    }
+
+    /**
+     * Move to the end of the log the messages stored in the segment, so that it can be deleted.
+     */
+    synchronized void moveOutOf(int segment) {
+        for (Stored stored : messages) {
+            if (SegmentedLog.segmentOf(stored.offset) == segment) {
+                stored.offset = repository.move(stored.offset);
+            }
+        }
+    }
+
+    /**
+     * Release all the messages, the log already records that the queue was dropped.
+     */
+    synchronized void drop() {
+        for (Stored stored : messages) {
+            repository.release(stored.offset);
+        }
+        messages.clear();
+    }
+
+    @Override
+    public Iterator<EnqueuedMessage> iterator() {
+        return null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    @Override
+    public boolean offer(EnqueuedMessage message) {
+        if (message == null) {
+            throw new NullPointerException("Inserted element can't be null");
+        }
+        synchronized (this) {
+            final long sequence = nextSequence++;
+            messages.addLast(new Stored(sequence, repository.appendEnqueued(clientId, sequence, message)));
+        }
+        // out of the lock, the compaction locks the queues one after the other
+        repository.compactIfDue();
+        return true;
+    }
+
+    @Override
+    public synchronized EnqueuedMessage poll() {
+        final Stored stored = messages.pollFirst();
+        if (stored == null) {
+            return null;
+        }
+        final EnqueuedMessage message = repository.read(stored.offset);
+        repository.appendConsumed(clientId, stored.sequence, stored.offset);
+        return message;
+    }
+
+    @Override
+    public synchronized EnqueuedMessage peek() {
+        final Stored stored = messages.peekFirst();
+        return stored == null ? null : repository.read(stored.offset);
+    }
+}
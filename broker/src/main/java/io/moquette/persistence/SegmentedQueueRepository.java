@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+import io.moquette.api.IQueueRepository;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.StringDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues of the persistent sessions stored in a single {@link SegmentedLog} for the whole broker, instead of
+ * a B-tree per session: an enqueue appends the message, a dequeue appends a small record with the sequence of
+ * the consumed message in its queue. On restart the log is replayed to rebuild every queue.
+ * <p>
+ * Every time the log starts a new segment, the messages still queued in the head segment are moved to the
+ * end of the log if most of the head was consumed, so that a session that doesn't consume its queue doesn't
+ * keep alive all the segments written after its messages.
+ * <p>
+ * The ids of the clients with a persistent queue are appended to a separate file, so that also the queues
+ * that never had a message are known after a restart.
+ */
+public class SegmentedQueueRepository implements IQueueRepository {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedQueueRepository.class);
+
+    private static final byte ENQUEUED = 1;
+    private static final byte CONSUMED = 2;
+    private static final byte DROPPED = 3;
+    private static final String CLIENTS_FILE = "queues.clients";
+
+    private final SegmentedLog log;
+    private final File clientsFile;
+    // guarded by this
+    private final Set<String> clientIds = new HashSet<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ConcurrentMap<String, SegmentedPersistentQueue> queues = new ConcurrentHashMap<>();
+    private final StringDataType stringDataType = new StringDataType();
+    private final EnqueuedMessageValueType messageDataType = new EnqueuedMessageValueType();
+    // records are copied in the log, so the serialization buffer is reused
+    private final ThreadLocal<WriteBuffer> writeBuffer = ThreadLocal.withInitial(WriteBuffer::new);
+
+    /**
+     * @param segmentSize size in bytes of the segment files.
+     */
+    public SegmentedQueueRepository(File directory, int segmentSize) {
+        this.log = new SegmentedLog(directory, segmentSize);
+        this.clientsFile = new File(directory, CLIENTS_FILE);
+        reload();
+    }
+
+    private void reload() {
+        final long start = System.currentTimeMillis();
+        if (clientsFile.exists()) {
+            try {
+                for (String clientId : Files.readAllLines(clientsFile.toPath(), StandardCharsets.UTF_8)) {
+                    if (!clientId.isEmpty()) {
+                        clientIds.add(clientId);
+                        queues.put(clientId, new SegmentedPersistentQueue(clientId, this));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Can't read the clients of the queues", ex);
+            }
+        }
+        log.open((offset, type, body) -> {
+            final String clientId = stringDataType.read(body);
+            final SegmentedPersistentQueue queue =
+                queues.computeIfAbsent(clientId, id -> new SegmentedPersistentQueue(id, this));
+            if (type == ENQUEUED) {
+                queue.replayEnqueued(body.getLong(), offset);
+            } else if (type == CONSUMED) {
+                queue.replayConsumed(body.getLong());
+            } else if (type == DROPPED) {
+                queue.replayDropped();
+            }
+        });
+        // only the clients still in the clients file have a queue, whatever the log still holds for the others
+        queues.keySet().retainAll(clientIds);
+        int messages = 0;
+        for (SegmentedPersistentQueue queue : queues.values()) {
+            queue.endReplay();
+            for (Long offset : queue.offsets()) {
+                log.retain(offset);
+                messages++;
+            }
+        }
+        log.deleteUnusedSegments();
+        compact();
+        LOG.info("Reloaded {} queues with {} messages in {} ms", queues.size(), messages,
+                 System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public Queue<EnqueuedMessage> createQueue(String cli, boolean clean) {
+        if (clean) {
+            return new ConcurrentLinkedQueue<>();
+        }
+        return queues.computeIfAbsent(cli, clientId -> {
+            appendClient(clientId);
+            return new SegmentedPersistentQueue(clientId, this);
+        });
+    }
+
+    private synchronized void appendClient(String clientId) {
+        try {
+            Files.write(clientsFile.toPath(), Collections.singletonList(clientId), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Can't store the client of the queue " + clientId, ex);
+        }
+        clientIds.add(clientId);
+    }
+
+    /**
+     * The queue is dropped in the log before its messages are released, so that they aren't replayed if
+     * their segments survive a crash.
+     */
+    @Override
+    public void dropQueue(String cli) {
+        final SegmentedPersistentQueue queue = queues.remove(cli);
+        if (queue == null) {
+            return;
+        }
+        final WriteBuffer buffer = writeBuffer.get().clear();
+        stringDataType.write(buffer, cli);
+        log.append(DROPPED, flipped(buffer), false);
+        queue.drop();
+        removeClient(cli);
+    }
+
+    private synchronized void removeClient(String clientId) {
+        clientIds.remove(clientId);
+        final File rewritten = new File(clientsFile.getPath() + ".tmp");
+        try {
+            Files.write(rewritten.toPath(), clientIds, StandardCharsets.UTF_8);
+            Files.move(rewritten.toPath(), clientsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Can't remove the client of the queue " + clientId, ex);
+        }
+    }
+
+    @Override
+    public Map<String, Queue<EnqueuedMessage>> listAllQueues() {
+        return new HashMap<>(queues);
+    }
+
+    long appendEnqueued(String clientId, long sequence, EnqueuedMessage message) {
+        final WriteBuffer buffer = writeBuffer.get().clear();
+        stringDataType.write(buffer, clientId);
+        buffer.putLong(sequence);
+        messageDataType.write(buffer, message);
+        return log.append(ENQUEUED, flipped(buffer), true);
+    }
+
+    void appendConsumed(String clientId, long sequence, long offset) {
+        final WriteBuffer buffer = writeBuffer.get().clear();
+        stringDataType.write(buffer, clientId);
+        buffer.putLong(sequence);
+        log.append(CONSUMED, flipped(buffer), false);
+        log.release(offset);
+    }
+
+    EnqueuedMessage read(long offset) {
+        final ByteBuffer body = log.read(offset);
+        // skip the client id and the sequence
+        stringDataType.read(body);
+        body.getLong();
+        return (EnqueuedMessage) messageDataType.read(body);
+    }
+
+    long move(long offset) {
+        return log.move(offset);
+    }
+
+    void release(long offset) {
+        log.release(offset);
+    }
+
+    void compactIfDue() {
+        if (log.pollRolled()) {
+            compact();
+        }
+    }
+
+    /**
+     * Move the messages still queued in the head segment to the end of the log, while most of the head was
+     * consumed. Runs in one thread at a time, the others don't wait for it.
+     */
+    void compact() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // a head with only consumed or dropped records is freed by no release
+            log.deleteUnusedSegments();
+            int head = log.sparseHead();
+            while (head >= 0) {
+                for (SegmentedPersistentQueue queue : queues.values()) {
+                    queue.moveOutOf(head);
+                }
+                final int next = log.sparseHead();
+                if (next == head) {
+                    LOG.warn("Log segment {} still has records that no queue refers to", head);
+                    return;
+                }
+                head = next;
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private static ByteBuffer flipped(WriteBuffer buffer) {
+        final ByteBuffer written = buffer.getBuffer();
+        ((Buffer) written).flip();
+        return written;
+    }
+
+    /**
+     * Sync to disk the messages stored so far, for the durability modes that acknowledge once stored.
+     */
+    public void force() {
+        log.force();
+    }
+
+    int segmentsCount() {
+        return log.segmentsCount();
+    }
+
+    /**
+     * Flush the queues to disk, the repository can't be used anymore.
+     */
+    public void close() {
+        log.close();
+    }
+}
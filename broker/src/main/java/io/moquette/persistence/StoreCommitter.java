@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+/**
+ * Lets the protocol wait for the store before acknowledging a message, according to the durability the
+ * store is configured for.
+ */
+public interface StoreCommitter {
+
+    /**
+     * The store doesn't make the acknowledges wait, like the memory one or H2 in async mode.
+     */
+    StoreCommitter NO_WAIT = Runnable::run;
+
+    /**
+     * Run the action once the changes made to the store so far are durable.
+     *
+     * @param action run immediately or later by the thread that commits the store.
+     */
+    void afterCommit(Runnable action);
+}
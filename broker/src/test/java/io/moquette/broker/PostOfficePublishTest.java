@@ -19,21 +19,29 @@ import io.moquette.api.*;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.StoreCommitter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.*;
+import io.netty.util.concurrent.EventExecutor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.moquette.broker.PostOfficeUnsubscribeTest.CONFIG;
 import static io.netty.handler.codec.mqtt.MqttQoS.*;
@@ -85,6 +93,14 @@ public class PostOfficePublishTest {
     }
 
     private SessionRegistry initPostOfficeAndSubsystems() {
+        return initPostOfficeAndSubsystems(0);
+    }
+
+    private SessionRegistry initPostOfficeAndSubsystems(int parallelFanOutThreshold) {
+        return initPostOfficeAndSubsystems(parallelFanOutThreshold, StoreCommitter.NO_WAIT);
+    }
+
+    private SessionRegistry initPostOfficeAndSubsystems(int parallelFanOutThreshold, StoreCommitter committer) {
         subscriptions = new CTrieSubscriptionDirectory();
         ISubscriptionsRepository subscriptionsRepository = new MemorySubscriptionsRepository();
         subscriptions.init(subscriptionsRepository);
@@ -95,7 +111,8 @@ public class PostOfficePublishTest {
         final Authorizator permitAll = new Authorizator(authorizatorPolicy);
         SessionRegistry sessionRegistry = new SessionRegistry(subscriptions, queueRepository, permitAll);
         sut = new PostOffice(subscriptions, retainedRepository, sessionRegistry,
-                             ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll);
+                             ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, parallelFanOutThreshold,
+                             committer);
         return sessionRegistry;
     }
 
@@ -188,6 +205,151 @@ public class PostOfficePublishTest {
         assertEquals(expectedSubscription, onlyMatchedSubscription);
     }
 
+    @Test
+    public void givenFanOutOverThresholdThenEverySubscriberReceivesThePublish() {
+        sessionRegistry = initPostOfficeAndSubsystems(2);
+        final List<EmbeddedChannel> channels = new ArrayList<>();
+        for (String clientId : Arrays.asList("subscriber1", "subscriber2", "subscriber3")) {
+            final MQTTConnection subscriber = connectAs(clientId);
+            final EmbeddedChannel subscriberChannel = (EmbeddedChannel) subscriber.channel;
+            sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+                .addSubscription(AT_MOST_ONCE, NEWS_TOPIC)
+                .messageId(1)
+                .build(), clientId, null, subscriber);
+            assertTrue(subscriberChannel.readOutbound() instanceof MqttSubAckMessage);
+            channels.add(subscriberChannel);
+        }
+
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(new Topic(NEWS_TOPIC), TEST_USER, FAKE_CLIENT_ID,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build());
+
+        for (EmbeddedChannel subscriberChannel : channels) {
+            ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello world!");
+        }
+    }
+
+    /**
+     * An embedded channel whose handlers run on a loop of a real group once the session is connected, like the
+     * channels accepted by the broker.
+     */
+    private static final class LoopBoundChannel extends EmbeddedChannel {
+        private volatile EventLoop servingLoop;
+
+        @Override
+        public EventLoop eventLoop() {
+            final EventLoop loop = servingLoop;
+            return loop != null ? loop : super.eventLoop();
+        }
+    }
+
+    @Test
+    public void givenFanOutOverThresholdWhenSubscribersAreOnOtherLoopsThenBatchesDeliverAndReleaseThePayload()
+            throws Exception {
+        sessionRegistry = initPostOfficeAndSubsystems(2);
+        final DefaultEventLoopGroup loops = new DefaultEventLoopGroup(2);
+        try {
+            final List<LoopBoundChannel> channels = new ArrayList<>();
+            for (String clientId : Arrays.asList("subscriber1", "subscriber2", "subscriber3")) {
+                final LoopBoundChannel subscriberChannel = new LoopBoundChannel();
+                final MQTTConnection subscriber = createMQTTConnection(CONFIG, subscriberChannel);
+                subscriber.processConnect(ConnectionTestUtils.buildConnect(clientId));
+                ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+                sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+                    .addSubscription(AT_MOST_ONCE, NEWS_TOPIC)
+                    .messageId(1)
+                    .build(), clientId, null, subscriber);
+                assertTrue(subscriberChannel.readOutbound() instanceof MqttSubAckMessage);
+                subscriberChannel.servingLoop = loops.next();
+                channels.add(subscriberChannel);
+            }
+
+            // Exercise
+            final MqttPublishMessage publish = MqttMessageBuilders.publish()
+                .payload(Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset()))
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build();
+            sut.receivedPublishQos0(new Topic(NEWS_TOPIC), TEST_USER, FAKE_CLIENT_ID, publish);
+            for (EventExecutor loop : loops) {
+                // the batches are queued before, so they're done when this runs
+                loop.submit(() -> { }).get(5, TimeUnit.SECONDS);
+            }
+
+            // Verify
+            for (LoopBoundChannel subscriberChannel : channels) {
+                // back to the embedded loop, to flush on this thread
+                subscriberChannel.servingLoop = null;
+                final MqttPublishMessage received = subscriberChannel.flushOutbound().readOutbound();
+                assertNotNull(received, "Expecting a PUBLISH message");
+                assertEquals("Hello world!", DebugUtils.payload2Str(received.payload()));
+                received.release();
+            }
+            assertEquals(1, publish.refCnt(), "Only the publisher's handler still holds the payload");
+            publish.release();
+        } finally {
+            loops.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    @Test
+    public void givenFanOutOverThresholdWhenPublishingQos1ThenTheAckWaitsForTheBatchesOfTheOtherLoops()
+            throws Exception {
+        final AtomicInteger waitingAcks = new AtomicInteger();
+        sessionRegistry = initPostOfficeAndSubsystems(2, action -> waitingAcks.incrementAndGet());
+        final DefaultEventLoopGroup loops = new DefaultEventLoopGroup(2);
+        try {
+            for (String clientId : Arrays.asList("subscriber1", "subscriber2", "subscriber3")) {
+                final LoopBoundChannel subscriberChannel = new LoopBoundChannel();
+                final MQTTConnection subscriber = createMQTTConnection(CONFIG, subscriberChannel);
+                subscriber.processConnect(ConnectionTestUtils.buildConnect(clientId));
+                ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+                sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+                    .addSubscription(AT_MOST_ONCE, NEWS_TOPIC)
+                    .messageId(1)
+                    .build(), clientId, null, subscriber);
+                assertTrue(subscriberChannel.readOutbound() instanceof MqttSubAckMessage);
+                subscriberChannel.servingLoop = loops.next();
+            }
+            connection = createMQTTConnection(CONFIG);
+            connection.processConnect(connectMessage);
+            ConnectionTestUtils.assertConnectAccepted(channel);
+            // the batches wait behind this on every loop
+            final CountDownLatch loopsBusy = new CountDownLatch(1);
+            for (EventExecutor loop : loops) {
+                loop.execute(() -> {
+                    try {
+                        loopsBusy.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            // Exercise
+            sut.receivedPublishQos1(connection, new Topic(NEWS_TOPIC), TEST_USER, 1,
+                MqttMessageBuilders.publish()
+                    .payload(Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset()))
+                    .qos(MqttQoS.AT_LEAST_ONCE)
+                    .retained(false)
+                    .topicName(NEWS_TOPIC).build());
+
+            // Verify
+            assertEquals(0, waitingAcks.get(), "The PUBACK can't wait for messages not yet queued");
+            loopsBusy.countDown();
+            for (EventExecutor loop : loops) {
+                loop.submit(() -> { }).get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(1, waitingAcks.get());
+        } finally {
+            loops.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
     @Test
     public void testPublishToMultipleSubscribers() {
         final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2));
@@ -16,15 +16,18 @@
 package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
+import io.moquette.api.EnqueuedMessage;
 import io.moquette.api.ISubscriptionsDirectory;
 import io.moquette.api.ISubscriptionsRepository;
 import io.moquette.api.PublishedMessage;
+import io.moquette.api.Subscription;
 import io.moquette.api.Topic;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.persistence.EnqueuedMessageValueType;
 import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.SegmentedQueueRepository;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
@@ -37,9 +40,12 @@ import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
 
 import static io.moquette.broker.NettyChannelAssertions.assertEqualsConnAck;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_ACCEPTED;
@@ -115,6 +121,80 @@ public class SessionRegistryTest {
         assertTrue(anotherChannel.isOpen(), "Connection is accepted and therefore should remain open");
     }
 
+    @Test
+    public void givenPersistentSessionWhenReconnectedCleanThenItsStoredQueueIsDropped() {
+        final MqttConnectMessage persistent = connMsg.clientId(FAKE_CLIENT_ID).cleanSession(false).build();
+        final Session session = sut.createOrReopenSession(persistent, FAKE_CLIENT_ID, null).session;
+        session.completeConnection();
+        session.disconnect();
+        assertTrue(queueRepository.listAllQueues().containsKey(FAKE_CLIENT_ID));
+
+        // Exercise
+        final MqttConnectMessage clean = MqttMessageBuilders.connect()
+            .clientId(FAKE_CLIENT_ID)
+            .protocolVersion(MqttVersion.MQTT_3_1)
+            .cleanSession(true)
+            .build();
+        final SessionRegistry.SessionCreationResult result = sut.createOrReopenSession(clean, FAKE_CLIENT_ID, null);
+
+        // Verify
+        assertEquals(SessionRegistry.CreationModeEnum.CREATED_CLEAN_NEW, result.mode);
+        assertFalse(queueRepository.listAllQueues().containsKey(FAKE_CLIENT_ID));
+    }
+
+    @Test
+    public void givenSegmentedQueuesWhenReconnectedCleanThenNewMessagesDontReachTheLog(@TempDir File segmentsDir) {
+        final ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, 1024);
+        final SessionRegistry registry = new SessionRegistry(subscriptions, repository,
+            new Authorizator(new PermitAllAuthorizatorPolicy()));
+        final Topic topic = Topic.asTopic("/temp");
+        final MqttConnectMessage persistent = connMsg.clientId(FAKE_CLIENT_ID).cleanSession(false).build();
+        final Session session = registry.createOrReopenSession(persistent, FAKE_CLIENT_ID, null).session;
+        session.completeConnection();
+        session.disconnect();
+        for (int i = 0; i < 50; i++) {
+            session.sendPublishOnSessionAtQos(topic, MqttQoS.EXACTLY_ONCE, payload("stored" + i));
+        }
+        final MqttConnectMessage clean = MqttMessageBuilders.connect()
+            .clientId(FAKE_CLIENT_ID)
+            .protocolVersion(MqttVersion.MQTT_3_1)
+            .cleanSession(true)
+            .build();
+        final Session cleanSession = registry.createOrReopenSession(clean, FAKE_CLIENT_ID, null).session;
+
+        // Exercise, the clean session queues while not connected, another client fills the log
+        for (int i = 0; i < 50; i++) {
+            cleanSession.sendPublishOnSessionAtQos(topic, MqttQoS.EXACTLY_ONCE, payload("volatile" + i));
+        }
+        final Queue<EnqueuedMessage> other = repository.createQueue("other", false);
+        for (int i = 0; i < 100; i++) {
+            other.offer(new PublishedMessage(topic, MqttQoS.AT_LEAST_ONCE, payload("other" + i)));
+            other.poll().release();
+        }
+        other.offer(new PublishedMessage(topic, MqttQoS.AT_LEAST_ONCE, payload("pending")));
+
+        // Verify
+        assertTrue(segmentFiles(segmentsDir) <= 2, "Nothing pins the segments written before the reconnect");
+        repository.close();
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, 1024);
+        final Map<String, Queue<EnqueuedMessage>> reloaded = reloadedRepository.listAllQueues();
+        assertEquals(singleton("other"), reloaded.keySet());
+        assertEquals(1, reloaded.get("other").size());
+        assertEquals(1, segmentFiles(segmentsDir));
+        reloadedRepository.close();
+    }
+
+    private static ByteBuf payload(String content) {
+        return Unpooled.wrappedBuffer(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int segmentFiles(File segmentsDir) {
+        final File[] segments = segmentsDir.listFiles((dir, name) -> name.endsWith(".log"));
+        return segments == null ? 0 : segments.length;
+    }
+
     @Test
     public void connectWithCleanSessionUpdateClientSession() {
         // first connect with clean session true
@@ -141,6 +221,25 @@ public class SessionRegistryTest {
         assertFalse(session.isClean());
     }
 
+    @Test
+    public void givenSubscriptionWithHandleWhenSessionLeavesThenRecycledHandleDoesNotReachOtherClient() {
+        MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID).build();
+        final Session session = sut.createOrReopenSession(msg, FAKE_CLIENT_ID, null).session;
+        final Subscription subscription = new Subscription(FAKE_CLIENT_ID, Topic.asTopic("/temp"),
+            MqttQoS.AT_MOST_ONCE, session.handle());
+        assertNotEquals(Subscription.NO_CLIENT_HANDLE, session.handle());
+        assertSame(session, sut.retrieve(subscription));
+
+        //Exercise
+        sut.remove(session);
+        MqttConnectMessage otherMsg = connMsg.clientId("other").build();
+        final Session otherSession = sut.createOrReopenSession(otherMsg, "other", null).session;
+
+        //Verify
+        assertEquals(session.handle(), otherSession.handle(), "Handle of the removed session is recycled");
+        assertNull(sut.retrieve(subscription));
+    }
+
     @Test
     public void testSerializabilityOfPublishedMessage() {
         MVStore mvStore = new MVStore.Builder()
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+import io.moquette.api.Subscription;
+import io.moquette.api.Token;
+import io.moquette.api.Topic;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static io.moquette.api.Topic.asTopic;
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Matching rules that every implementation of the subscriptions directory has to respect.
+ */
+public abstract class AbstractSubscriptionsDirectoryConformanceTest {
+
+    private ISubscriptionsDirectory sut;
+
+    abstract ISubscriptionsDirectory createDirectory();
+
+    @BeforeEach
+    public void setUp() {
+        sut = createDirectory();
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    @Test
+    public void givenFiltersWithWildcardsThenOnlyTheMatchingOnesAreSelected() {
+        final Subscription exact = clientSubOnTopic("Sensor1", "plant/line1/alarm");
+        final Subscription single = clientSubOnTopic("Sensor2", "+/+/alarm");
+        final Subscription singleAndMulti = clientSubOnTopic("Sensor3", "+/+/alarm/#");
+        final Subscription multi = clientSubOnTopic("Sensor4", "plant/#");
+        final Subscription everything = clientSubOnTopic("Sensor5", "#");
+        final Subscription other = clientSubOnTopic("Sensor6", "+/line2/alarm");
+        final Subscription longer = clientSubOnTopic("Sensor7", "plant/+/alarm/+");
+        for (Subscription sub : new Subscription[] {exact, single, singleAndMulti, multi, everything, other, longer}) {
+            sut.add(sub);
+        }
+
+        assertThat(sut.matchWithoutQosSharpening(asTopic("plant/line1/alarm")))
+            .containsExactlyInAnyOrder(exact, single, singleAndMulti, multi, everything);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("plant/line1/alarm/fire")))
+            .containsExactlyInAnyOrder(singleAndMulti, multi, everything, longer);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("plant")))
+            .containsExactlyInAnyOrder(multi, everything);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("office/line1/status")))
+            .containsExactly(everything);
+    }
+
+    @Test
+    public void givenSameClientOnOverlappingFiltersThenHigherQosIsSelected() {
+        sut.add(new Subscription("Sensor1", asTopic("plant/+"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("Sensor1", asTopic("plant/#"), MqttQoS.EXACTLY_ONCE));
+        sut.add(new Subscription("Sensor2", asTopic("plant/line1"), MqttQoS.AT_LEAST_ONCE));
+
+        final Set<Subscription> matched = sut.matchQosSharpening(asTopic("plant/line1"));
+
+        assertEquals(2, matched.size());
+        for (Subscription subscription : matched) {
+            final MqttQoS expected = "Sensor1".equals(subscription.getClientId())
+                ? MqttQoS.EXACTLY_ONCE
+                : MqttQoS.AT_LEAST_ONCE;
+            assertEquals(expected, subscription.getRequestedQos());
+        }
+    }
+
+    @Test
+    public void givenRemovedSubscriptionsThenTheyAreNotMatchedAnymore() {
+        sut.add(clientSubOnTopic("Sensor1", "plant/+/alarm"));
+        final Subscription remaining = clientSubOnTopic("Sensor2", "plant/+/alarm");
+        sut.add(remaining);
+        sut.add(clientSubOnTopic("Sensor1", "plant/#"));
+
+        sut.removeSubscription(asTopic("plant/+/alarm"), "Sensor1");
+        sut.removeSubscription(asTopic("plant/#"), "Sensor1");
+        sut.removeSubscription(asTopic("plant/#"), "Sensor1");
+
+        assertThat(sut.matchWithoutQosSharpening(asTopic("plant/line1/alarm"))).containsExactly(remaining);
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void givenSharedGroupsThenOneMemberForGroupIsSelected() {
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Auditor1", "$share/auditors/jobs/#"));
+        final Subscription monitor = clientSubOnTopic("Monitor", "jobs/+");
+        sut.add(monitor);
+
+        final Set<Subscription> matched = sut.matchWithoutQosSharpening(asTopic("jobs/1"));
+
+        assertEquals(3, matched.size());
+        assertThat(matched).contains(monitor, clientSubOnTopic("Auditor1", "$share/auditors/jobs/#"));
+        assertEquals(4, sut.size());
+    }
+
+    @Test
+    public void givenRandomFiltersThenMatchingIsSameAsBruteForce() {
+        final Random random = new Random(42);
+        final List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            final Subscription subscription = new Subscription("client" + i, asTopic(randomPath(random, true)),
+                                                               MqttQoS.AT_MOST_ONCE);
+            subscriptions.add(subscription);
+            sut.add(subscription);
+        }
+        for (int i = 0; i < 500; i += 3) {
+            sut.removeSubscription(subscriptions.get(i).getTopicFilter(), subscriptions.get(i).getClientId());
+            subscriptions.set(i, null);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            final Topic topic = asTopic(randomPath(random, false));
+            final Set<Subscription> expected = new HashSet<>();
+            for (Subscription subscription : subscriptions) {
+                if (subscription != null && matches(subscription.getTopicFilter(), topic)) {
+                    expected.add(subscription);
+                }
+            }
+            assertEquals(expected, sut.matchWithoutQosSharpening(topic), "Matching " + topic);
+            if (!expected.isEmpty()) {
+                assertTrue(sut.mayMatch(topic), "Pre-check of " + topic);
+            }
+        }
+    }
+
+    /**
+     * Plain MQTT matching, where + consumes exactly one level and # also the parent level.
+     */
+    private static boolean matches(Topic filter, Topic topic) {
+        final List<Token> filterTokens = filter.getTokens();
+        final List<Token> topicTokens = topic.getTokens();
+        for (int i = 0; i < filterTokens.size(); i++) {
+            final Token token = filterTokens.get(i);
+            if (Token.MULTI.equals(token)) {
+                return true;
+            }
+            if (i >= topicTokens.size() || !(Token.SINGLE.equals(token) || token.equals(topicTokens.get(i)))) {
+                return false;
+            }
+        }
+        return filterTokens.size() == topicTokens.size();
+    }
+
+    private static String randomPath(Random random, boolean wildcards) {
+        final String[] levels = {"a", "b", "c"};
+        final int length = 1 + random.nextInt(5);
+        final StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < length; level++) {
+            if (level > 0) {
+                sb.append('/');
+            }
+            final int choice = random.nextInt(wildcards ? 5 : 3);
+            if (choice == 4) {
+                return sb.append('#').toString();
+            }
+            sb.append(choice == 3 ? "+" : levels[choice]);
+        }
+        return sb.toString();
+    }
+}
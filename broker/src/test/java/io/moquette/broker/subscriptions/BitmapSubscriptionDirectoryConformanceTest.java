@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+
+public class BitmapSubscriptionDirectoryConformanceTest extends AbstractSubscriptionsDirectoryConformanceTest {
+
+    @Override
+    ISubscriptionsDirectory createDirectory() {
+        return new BitmapSubscriptionDirectory();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+import io.moquette.api.Subscription;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.moquette.api.Topic.asTopic;
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CTriePartitionedSubscriptionDirectoryConformanceTest extends AbstractSubscriptionsDirectoryConformanceTest {
+
+    private CTrieSubscriptionDirectory directory;
+
+    @Override
+    ISubscriptionsDirectory createDirectory() {
+        directory = new CTrieSubscriptionDirectory(0, 1024, true, SharedSubscriptionSelectors.roundRobin());
+        return directory;
+    }
+
+    @Test
+    public void givenTenantsWithOwnPrefixThenEachOneHasItsPartition() {
+        final Subscription tenant1 = clientSubOnTopic("Sensor1", "tenant1/+/temp");
+        final Subscription tenant2 = clientSubOnTopic("Sensor2", "tenant2/line1/temp");
+        final Subscription everyTenant = clientSubOnTopic("Auditor", "+/line1/temp");
+        directory.add(tenant1);
+        directory.add(tenant2);
+        directory.add(clientSubOnTopic("Sensor2", "tenant2/#"));
+        directory.add(everyTenant);
+
+        assertThat(directory.matchWithoutQosSharpening(asTopic("tenant1/line1/temp")))
+            .containsExactlyInAnyOrder(tenant1, everyTenant);
+        assertThat(directory.partitionsSizes()).containsEntry("tenant1", 1).containsEntry("tenant2", 2).hasSize(2);
+        assertEquals(4, directory.size());
+        assertEquals(3, directory.clientsCount());
+        assertEquals(3, directory.wildcardSubscriptionsCount());
+    }
+
+    @Test
+    public void givenPartitionsThenTheDumpLooksLikeASingleTree() {
+        directory.add(clientSubOnTopic("Sensor1", "tenant2/temp"));
+        directory.add(clientSubOnTopic("Sensor1", "tenant1/temp"));
+        directory.add(clientSubOnTopic("Auditor", "#"));
+
+        final List<String> lines = new ArrayList<>();
+        final int pushed = directory.dumpTree(1, 2, lines::add);
+
+        assertEquals(2, pushed);
+        assertThat(lines.get(0)).startsWith("    |-#");
+        assertThat(lines.get(1)).startsWith("    |-tenant1/temp");
+        assertThat(directory.dumpTree().split("\n")).hasSize(4);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.ISubscriptionsDirectory;
+
+public class CTrieSubscriptionDirectoryConformanceTest extends AbstractSubscriptionsDirectoryConformanceTest {
+
+    @Override
+    ISubscriptionsDirectory createDirectory() {
+        // small no match filter, so that its false positives are exercised too
+        return new CTrieSubscriptionDirectory(0, 1024, SharedSubscriptionSelectors.roundRobin());
+    }
+}
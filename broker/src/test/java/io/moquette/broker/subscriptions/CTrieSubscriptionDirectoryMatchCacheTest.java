@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.MatchedSubscriptions;
+import io.moquette.api.Subscription;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.api.Topic.asTopic;
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CTrieSubscriptionDirectoryMatchCacheTest {
+
+    private CTrieSubscriptionDirectory sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory(4);
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    @Test
+    public void givenRepeatedPublishOnSameTopicThenOnlyFirstMatchWalksTheTree() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "devices/+/telemetry");
+        sut.add(sensorSub);
+
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub);
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub);
+
+        assertEquals(1, sut.matchCacheMisses());
+        assertEquals(1, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenCachedTopicWhenMatchingFilterIsAddedThenItIsVisibleToNextPublish() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "devices/dev-1/telemetry");
+        sut.add(sensorSub);
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub);
+
+        final Subscription anySub = clientSubOnTopic("TempSensor2", "devices/#");
+        sut.add(anySub);
+
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub, anySub);
+        assertEquals(2, sut.matchCacheMisses());
+    }
+
+    @Test
+    public void givenCachedTopicWhenMatchingFilterIsRemovedThenItIsNotMatchedAnymore() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "devices/dev-1/telemetry");
+        sut.add(sensorSub);
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub);
+
+        sut.removeSubscription(asTopic("devices/dev-1/telemetry"), "TempSensor1");
+
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).isEmpty();
+    }
+
+    @Test
+    public void givenCachedTopicWhenNotMatchingFilterChangesThenCachedResultIsKept() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "devices/dev-1/telemetry");
+        sut.add(sensorSub);
+        sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"));
+
+        sut.add(clientSubOnTopic("TempSensor2", "devices/dev-2/telemetry"));
+
+        assertThat(sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"))).containsOnly(sensorSub);
+        assertEquals(1, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenCachedTopicThenQosIsSharpenedLikeTheTreeMatch() {
+        sut.add(new Subscription("TempSensor1", asTopic("devices/+/telemetry"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("TempSensor1", asTopic("devices/#"), MqttQoS.EXACTLY_ONCE));
+
+        final MatchedSubscriptions matched = new MatchedSubscriptions();
+        sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"), matched);
+        matched.clear();
+        sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"), matched);
+
+        assertEquals(1, sut.matchCacheHits());
+        assertEquals(1, matched.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, matched.get(0).getRequestedQos());
+    }
+
+    @Test
+    public void givenMoreTopicsThanCacheSizeThenResultsAreStillCorrect() {
+        final Subscription anySub = clientSubOnTopic("TempSensor1", "devices/#");
+        sut.add(anySub);
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertThat(sut.matchQosSharpening(asTopic("devices/dev-" + i))).containsOnly(anySub);
+            }
+        }
+        assertEquals(40, sut.matchCacheHits() + sut.matchCacheMisses());
+    }
+
+    @Test
+    public void givenCachedTopicWhenSharedFilterIsAddedThenItIsVisibleToNextPublish() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "devices/dev-1/telemetry");
+        sut.add(sensorSub);
+        sut.matchQosSharpening(asTopic("devices/dev-1/telemetry"));
+
+        sut.add(clientSubOnTopic("Collector1", "$share/collectors/devices/+/telemetry"));
+
+        assertEquals(2, sut.matchQosSharpening(asTopic("devices/dev-1/telemetry")).size());
+        assertEquals(0, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenEvictedTopicsThenOnlyCachedOnesAreIndexedForInvalidation() {
+        final TopicMatchCache cache = new TopicMatchCache(4);
+        final MatchedSubscriptions matched = new MatchedSubscriptions();
+        matched.add(clientSubOnTopic("TempSensor1", "devices/#"));
+        for (int i = 0; i < 20; i++) {
+            cache.put(asTopic("devices/dev-" + i), matched, cache.generation());
+        }
+        assertEquals(cache.size(), cache.indexedTopics());
+
+        cache.invalidate(asTopic("devices/+"));
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.indexedTopics());
+    }
+
+    @Test
+    public void givenDisabledCacheThenNoMetricsAreCollected() {
+        sut = new CTrieSubscriptionDirectory();
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(clientSubOnTopic("TempSensor1", "devices/#"));
+
+        sut.matchQosSharpening(asTopic("devices/dev-1"));
+
+        assertEquals(0, sut.matchCacheHits());
+        assertEquals(0, sut.matchCacheMisses());
+    }
+}
@@ -17,12 +17,14 @@ package io.moquette.broker.subscriptions;
 
 
 import io.moquette.api.ISubscriptionsRepository;
+import io.moquette.api.MatchedSubscriptions;
 import io.moquette.api.Subscription;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.Set;
 
@@ -269,4 +271,51 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         // client1SubQoS2 should override client1SubQoS0
         assertThat(client1Sub.getRequestedQos()).isEqualTo(client1SubQoS2.getRequestedQos());
     }
+
+    @Test
+    public void givenOverlappingFiltersWhenMatchIntoAccumulatorThenOneSubscriptionPerClient() {
+        Subscription client1SubQoS0 = new Subscription("client1", asTopic("client/test/b"), MqttQoS.AT_MOST_ONCE);
+        Subscription client1SubQoS1 = new Subscription("client1", asTopic("client/+/b"), MqttQoS.AT_LEAST_ONCE);
+        Subscription client2Sub = new Subscription("client2", asTopic("client/#"), MqttQoS.AT_MOST_ONCE);
+        this.sut.add(client1SubQoS0);
+        this.sut.add(client1SubQoS1);
+        this.sut.add(client2Sub);
+
+        // Exercise
+        final MatchedSubscriptions matched = new MatchedSubscriptions();
+        this.sut.matchQosSharpening(asTopic("client/test/b"), matched);
+
+        // Verify
+        assertEquals(2, matched.size());
+        assertThat(Arrays.asList(matched.get(0), matched.get(1))).containsExactlyInAnyOrder(client1SubQoS1, client2Sub);
+    }
+
+    @Test
+    public void givenClientWithManySubscriptionsWhenRemovedInBulkThenAlsoRepositoryIsCleaned() {
+        sut.add(clientSubOnTopic("TempSensor1", "temp/1"));
+        sut.add(clientSubOnTopic("TempSensor1", "humidity/#"));
+        final Subscription otherClientSub = clientSubOnTopic("TempSensor2", "temp/1");
+        sut.add(otherClientSub);
+
+        sut.removeAllForClient("TempSensor1", Arrays.asList(asTopic("temp/1"), asTopic("humidity/#")));
+
+        assertThat(sut.matchWithoutQosSharpening(asTopic("temp/1"))).containsExactly(otherClientSub);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("humidity/1"))).isEmpty();
+        assertThat(sessionsRepository.listAllSubscriptions()).containsExactly(otherClientSub);
+    }
+
+    @Test
+    public void givenStoredSubscriptionsWhenInitializedThenTheyAreReloadedWithTheirClients() {
+        sessionsRepository.addNewSubscription(clientSubOnTopic("TempSensor1", "temp/1"));
+        sessionsRepository.addNewSubscription(clientSubOnTopic("TempSensor1", "humidity/#"));
+        final Subscription otherClientSub = clientSubOnTopic("TempSensor2", "temp/+");
+        sessionsRepository.addNewSubscription(otherClientSub);
+
+        final CTrieSubscriptionDirectory reloaded = new CTrieSubscriptionDirectory();
+        reloaded.init(sessionsRepository);
+
+        assertEquals(3, reloaded.size());
+        assertThat(reloaded.matchWithoutQosSharpening(asTopic("temp/2"))).containsExactly(otherClientSub);
+        assertThat(reloaded.listAllSessionIds()).containsExactlyInAnyOrder("TempSensor1", "TempSensor2");
+    }
 }
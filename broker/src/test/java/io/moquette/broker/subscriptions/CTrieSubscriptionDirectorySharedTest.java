@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Subscription;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.moquette.api.Topic.asTopic;
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CTrieSubscriptionDirectorySharedTest {
+
+    private CTrieSubscriptionDirectory sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory();
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    @Test
+    public void givenSharedGroupWhenPublishThenOnlyOneMemberReceivesIt() {
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+        final Subscription monitorSub = clientSubOnTopic("Monitor", "jobs/#");
+        sut.add(monitorSub);
+
+        final Set<Subscription> matched = sut.matchQosSharpening(asTopic("jobs/1"));
+
+        assertEquals(2, matched.size());
+        assertThat(matched).contains(monitorSub);
+    }
+
+    @Test
+    public void givenRoundRobinPolicyThenMessagesAreSpreadEvenly() {
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer3", "$share/workers/jobs/+"));
+
+        final Map<String, Integer> received = receivedPerClient("jobs/1", 300);
+
+        assertThat(received).containsOnlyKeys("Consumer1", "Consumer2", "Consumer3");
+        assertThat(received.values()).containsOnly(100);
+    }
+
+    @Test
+    public void givenDifferentGroupsOnSameFilterThenEachGroupReceivesTheMessage() {
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Auditor1", "$share/auditors/jobs/+"));
+
+        final Set<Subscription> matched = sut.matchQosSharpening(asTopic("jobs/1"));
+
+        assertThat(matched).containsExactlyInAnyOrder(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"),
+                                                      clientSubOnTopic("Auditor1", "$share/auditors/jobs/+"));
+    }
+
+    @Test
+    public void givenMemberUnsubscribedThenItDoesNotReceiveMessagesAnymore() {
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+
+        sut.removeSubscription(asTopic("$share/workers/jobs/+"), "Consumer1");
+
+        assertThat(receivedPerClient("jobs/1", 10)).containsOnlyKeys("Consumer2");
+        sut.removeSubscription(asTopic("$share/workers/jobs/+"), "Consumer2");
+        assertThat(sut.matchQosSharpening(asTopic("jobs/1"))).isEmpty();
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void givenStickyHashPolicyThenSameTopicGoesToSameMember() {
+        sut = new CTrieSubscriptionDirectory(0, SharedSubscriptionSelectors.stickyHash());
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+
+        assertThat(receivedPerClient("jobs/1", 10)).hasSize(1);
+        assertThat(receivedPerClient("jobs/2", 10)).hasSize(1);
+    }
+
+    @Test
+    public void givenLeastInflightPolicyThenTheLessBusyMemberIsChosen() {
+        final Map<String, Integer> inflight = new HashMap<>();
+        inflight.put("Consumer1", 5);
+        inflight.put("Consumer2", 1);
+        inflight.put("Consumer3", 3);
+        sut = new CTrieSubscriptionDirectory(0, SharedSubscriptionSelectors.leastInflight(inflight::get));
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer3", "$share/workers/jobs/+"));
+
+        assertThat(receivedPerClient("jobs/1", 10)).containsOnlyKeys("Consumer2");
+    }
+
+    @Test
+    public void givenMatchCacheThenSharedGroupsAreStillBalanced() {
+        sut = new CTrieSubscriptionDirectory(16);
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(clientSubOnTopic("Consumer1", "$share/workers/jobs/+"));
+        sut.add(clientSubOnTopic("Consumer2", "$share/workers/jobs/+"));
+
+        assertThat(receivedPerClient("jobs/1", 10)).containsOnlyKeys("Consumer1", "Consumer2");
+        assertEquals(0, sut.matchCacheHits());
+    }
+
+    private Map<String, Integer> receivedPerClient(String topic, int messages) {
+        final Map<String, Integer> received = new HashMap<>();
+        for (int i = 0; i < messages; i++) {
+            final List<Subscription> matched = new ArrayList<>(sut.matchQosSharpening(asTopic(topic)));
+            for (Subscription subscription : matched) {
+                received.merge(subscription.getClientId(), 1, Integer::sum);
+            }
+        }
+        return received;
+    }
+}
@@ -17,12 +17,21 @@ package io.moquette.broker.subscriptions;
 
 
 import io.moquette.api.Subscription;
+import io.moquette.api.Topic;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static io.moquette.api.Topic.asTopic;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -45,17 +54,14 @@ public class CTrieTest {
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/"));
         assertTrue(matchedNode.isPresent(), "Node on path / must be present");
-        //verify structure, only root INode and the first CNode should be present
-        assertThat(this.sut.root.mainNode().subscriptions).isEmpty();
-        assertThat(this.sut.root.mainNode().allChildren()).isNotEmpty();
-
-        INode firstLayer = this.sut.root.mainNode().allChildren().get(0);
-        assertThat(firstLayer.mainNode().subscriptions).isEmpty();
-        assertThat(firstLayer.mainNode().allChildren()).isNotEmpty();
-
-        INode secondLayer = firstLayer.mainNode().allChildren().get(0);
-        assertThat(secondLayer.mainNode().subscriptions).isNotEmpty();
-        assertThat(secondLayer.mainNode().allChildren()).isEmpty();
+        //verify structure, the two empty levels are collapsed in a single edge from the root
+        assertThat(this.sut.root.mainNode().subscriptions()).isEmpty();
+        assertThat(this.sut.root.mainNode().allChildren()).hasSize(1);
+
+        Edge firstLayer = this.sut.root.mainNode().allChildren().get(0);
+        assertEquals(2, firstLayer.length());
+        assertThat(firstLayer.node().mainNode().subscriptions()).isNotEmpty();
+        assertThat(firstLayer.node().mainNode().allChildren()).isEmpty();
     }
 
     @Test
@@ -66,7 +72,7 @@ public class CTrieTest {
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/temp"));
         assertTrue(matchedNode.isPresent(), "Node on path /temp must be present");
-        assertFalse(matchedNode.get().subscriptions.isEmpty());
+        assertFalse(matchedNode.get().subscriptions().isEmpty());
     }
 
     @Test
@@ -93,7 +99,7 @@ public class CTrieTest {
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/temp"));
         assertTrue(matchedNode.isPresent(), "Node on path /temp must be present");
-        final Set<Subscription> subscriptions = matchedNode.get().subscriptions;
+        final Collection<Subscription> subscriptions = matchedNode.get().subscriptions();
         assertTrue(subscriptions.contains(newSubscription));
     }
 
@@ -108,7 +114,7 @@ public class CTrieTest {
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/italy/happiness"));
         assertTrue(matchedNode.isPresent(), "Node on path /italy/happiness must be present");
-        final Set<Subscription> subscriptions = matchedNode.get().subscriptions;
+        final Collection<Subscription> subscriptions = matchedNode.get().subscriptions();
         assertTrue(subscriptions.contains(happinessSensor));
     }
 
@@ -301,4 +307,376 @@ public class CTrieTest {
         assertThat(matchingSubs3).contains(expectedMatchingsub1);
         assertThat(matchingSubs4).doesNotContain(expectedMatchingsub2);
     }
+
+    @Test
+    public void givenWideLevelWithWildcardSiblingsWhenMatchThenOnlyMatchingChildrenAreSelected() {
+        for (int i = 0; i < 1000; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "devices/" + i + "/temp"));
+        }
+        final Subscription singleWildcard = clientSubOnTopic("Monitor", "devices/+/temp");
+        final Subscription multiWildcard = clientSubOnTopic("Logger", "devices/#");
+        sut.addToTree(singleWildcard);
+        sut.addToTree(multiWildcard);
+
+        //Exercise
+        final Set<Subscription> matchingSubs = sut.recursiveMatch(asTopic("devices/42/temp"));
+
+        //Verify
+        assertThat(matchingSubs).containsExactlyInAnyOrder(clientSubOnTopic("Device42", "devices/42/temp"),
+            singleWildcard, multiWildcard);
+        assertThat(sut.recursiveMatch(asTopic("devices"))).containsExactly(multiWildcard);
+    }
+
+    @Test
+    public void givenTombedChildWhenSubscribeAgainThenTombIsReplaced() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/+"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/1"));
+        sut.removeFromTree(asTopic("temp/+"), "TempSensor1");
+
+        //Exercise
+        sut.addToTree(clientSubOnTopic("TempSensor2", "temp/+"));
+
+        //Verify
+        final CNode tempNode = sut.lookup(asTopic("temp")).get();
+        assertEquals(2, tempNode.allChildren().size());
+        assertThat(sut.recursiveMatch(asTopic("temp/1"))).containsExactlyInAnyOrder(
+            clientSubOnTopic("TempSensor1", "temp/1"), clientSubOnTopic("TempSensor2", "temp/+"));
+    }
+
+    @Test
+    public void givenFilterWithLevelNamedAsRootWhenMatchThenTheLevelIsNotSkipped() {
+        final Subscription rootSub = clientSubOnTopic("TempSensor1", "root/temp");
+        sut.addToTree(rootSub);
+
+        assertThat(sut.recursiveMatch(asTopic("temp"))).isEmpty();
+        assertThat(sut.recursiveMatch(asTopic("root/temp"))).containsExactly(rootSub);
+    }
+
+    @Test
+    public void givenClientWithManyFiltersWhenRemovedInBulkThenOnlyItsSubscriptionsAreGone() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/1"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/+"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "humidity/#"));
+        final Subscription otherClientSub = clientSubOnTopic("TempSensor2", "temp/1");
+        sut.addToTree(otherClientSub);
+
+        //Exercise
+        sut.removeFromTree("TempSensor1", Arrays.asList(asTopic("temp/1"), asTopic("temp/+"), asTopic("humidity/#")));
+
+        //Verify
+        assertThat(sut.recursiveMatch(asTopic("temp/1"))).containsExactly(otherClientSub);
+        assertThat(sut.recursiveMatch(asTopic("humidity/1"))).isEmpty();
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void givenClientWithPlainAndSharedFiltersWhenRemovedInBulkThenTheEmptiedNodesArePruned() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/1"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "$share/group/temp/1"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/1/max"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp"));
+
+        //Exercise
+        sut.removeFromTree("TempSensor1", Arrays.asList(asTopic("temp/1/max"), asTopic("$share/group/temp/1"),
+                                                        asTopic("temp"), asTopic("temp/1"), asTopic("temp/2")));
+
+        //Verify
+        assertEquals(0, sut.size());
+        assertThat(sut.recursiveMatch(asTopic("temp/1"))).isEmpty();
+        assertThat(sut.root.mainNode().allChildren()).isEmpty();
+    }
+
+    @Test
+    public void givenManyClientsOnSameFilterWhenRemovedConcurrentlyThenNoSubscriptionIsLeft() throws Exception {
+        final int clients = 1000;
+        for (int i = 0; i < clients; i++) {
+            sut.addToTree(clientSubOnTopic("TempSensor" + i, "alerts/#"));
+        }
+
+        //Exercise
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<?>> removals = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final String clientId = "TempSensor" + i;
+            removals.add(pool.submit(() -> sut.removeFromTree(asTopic("alerts/#"), clientId)));
+        }
+        for (Future<?> removal : removals) {
+            removal.get();
+        }
+        pool.shutdown();
+
+        //Verify
+        assertThat(sut.recursiveMatch(asTopic("alerts/fire"))).isEmpty();
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void givenSubscriptionsRemovedRightAfterTheAddOnAnotherThreadThenNoClientIsLeft() throws Exception {
+        final int filters = 2000;
+
+        //Exercise
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final Future<?> removals = pool.submit(() -> {
+            for (int i = 0; i < filters; i++) {
+                final Topic filter = asTopic("alerts/" + i);
+                while (sut.recursiveMatch(filter).isEmpty()) {
+                    Thread.yield();
+                }
+                sut.removeFromTree(filter, "TempSensor1");
+            }
+        });
+        for (int i = 0; i < filters; i++) {
+            sut.addToTree(clientSubOnTopic("TempSensor1", "alerts/" + i));
+        }
+        removals.get();
+        pool.shutdown();
+
+        //Verify
+        assertEquals(0, sut.size());
+        assertEquals(0, sut.clientsCount());
+        assertThat(sut.clientIds()).isEmpty();
+    }
+
+    @Test
+    public void givenChainOfSingleChildLevelsThenTheyAreCollapsedInOneEdge() {
+        final Subscription sensorSub = clientSubOnTopic("TempSensor1", "org/acme/region/eu/site/42/sensor/temp");
+
+        //Exercise
+        sut.addToTree(sensorSub);
+
+        //Verify
+        assertThat(sut.root.mainNode().allChildren()).hasSize(1);
+        assertEquals(8, sut.root.mainNode().allChildren().get(0).length());
+        assertFalse(sut.lookup(asTopic("org/acme")).isPresent(), "No node in the middle of an edge");
+        assertThat(sut.recursiveMatch(asTopic("org/acme/region/eu/site/42/sensor/temp"))).containsExactly(sensorSub);
+        assertThat(sut.recursiveMatch(asTopic("org/acme/region/eu/site/42/sensor"))).isEmpty();
+        assertThat(sut.recursiveMatch(asTopic("org/acme/region/eu/site/42/sensor/temp/raw"))).isEmpty();
+    }
+
+    @Test
+    public void givenCollapsedChainWhenBranchAppearsThenEdgeIsSplit() {
+        final Subscription euSub = clientSubOnTopic("TempSensor1", "org/acme/region/eu");
+        sut.addToTree(euSub);
+
+        //Exercise
+        final Subscription usSub = clientSubOnTopic("TempSensor2", "org/acme/region/us");
+        final Subscription acmeSub = clientSubOnTopic("TempSensor3", "org/acme");
+        final Subscription wildcardSub = clientSubOnTopic("TempSensor4", "org/+/region/eu");
+        final Subscription multiSub = clientSubOnTopic("TempSensor5", "org/acme/#");
+        sut.addToTree(usSub);
+        sut.addToTree(acmeSub);
+        sut.addToTree(wildcardSub);
+        sut.addToTree(multiSub);
+
+        //Verify
+        assertEquals(2, sut.lookup(asTopic("org/acme/region")).get().allChildren().size());
+        assertThat(sut.lookup(asTopic("org/acme")).get().subscriptions()).containsExactly(acmeSub);
+        assertThat(sut.recursiveMatch(asTopic("org/acme/region/eu"))).containsExactlyInAnyOrder(
+            euSub, wildcardSub, multiSub);
+        assertThat(sut.recursiveMatch(asTopic("org/acme/region/us"))).containsExactlyInAnyOrder(usSub, multiSub);
+        assertThat(sut.recursiveMatch(asTopic("org/acme"))).containsExactlyInAnyOrder(acmeSub, multiSub);
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void givenConcurrentSubscriptionsSplittingSameEdgesThenNoneIsLost() throws Exception {
+        final List<String> topics = new ArrayList<>();
+        for (int site = 0; site < 20; site++) {
+            for (int sensor = 0; sensor < 20; sensor++) {
+                topics.add("org/acme/site/" + site + "/line/1/sensor/" + sensor);
+            }
+            topics.add("org/acme/site/" + site);
+        }
+
+        //Exercise
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<?>> subscriptions = new ArrayList<>();
+        for (String topic : topics) {
+            subscriptions.add(pool.submit(() -> sut.addToTree(clientSubOnTopic("TempSensor1", topic))));
+        }
+        for (Future<?> subscription : subscriptions) {
+            subscription.get();
+        }
+
+        //Verify
+        assertEquals(topics.size(), sut.size());
+        assertEquals(topics.size(), sut.countSubscriptions());
+        for (String topic : topics) {
+            assertThat(sut.recursiveMatch(asTopic(topic))).containsExactly(clientSubOnTopic("TempSensor1", topic));
+        }
+
+        final List<Future<?>> removals = new ArrayList<>();
+        for (String topic : topics) {
+            removals.add(pool.submit(() -> sut.removeFromTree(asTopic(topic), "TempSensor1")));
+        }
+        for (Future<?> removal : removals) {
+            removal.get();
+        }
+        pool.shutdown();
+        assertEquals(0, sut.size());
+        for (String topic : topics) {
+            assertThat(sut.recursiveMatch(asTopic(topic))).isEmpty();
+        }
+    }
+
+    @Test
+    public void givenBatchOfFiltersWithCommonPrefixesThenTreeIsSameAsAddingOneByOne() {
+        final CTrie oneByOne = new CTrie();
+        final List<Subscription> existing = Arrays.asList(
+            gatewaySub("gw/1/dev/1/cmd"),
+            gatewaySub("gw/1/status"));
+        final List<Subscription> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(gatewaySub("gw/1/dev/" + i + "/cmd"));
+            batch.add(gatewaySub("gw/1/dev/" + i + "/config/#"));
+        }
+        batch.add(gatewaySub("gw/1"));
+        batch.add(gatewaySub("gw/+/broadcast"));
+        batch.add(gatewaySub("$share/gateways/gw/all/#"));
+        batch.add(new Subscription("Gateway1", asTopic("gw/1/status"), MqttQoS.AT_LEAST_ONCE));
+        for (Subscription subscription : existing) {
+            sut.addToTree(subscription);
+            oneByOne.addToTree(subscription);
+        }
+
+        //Exercise
+        sut.addAllToTree(batch);
+
+        //Verify
+        for (Subscription subscription : batch) {
+            oneByOne.addToTree(subscription);
+        }
+        assertEquals(oneByOne.dumpTree(), sut.dumpTree());
+        assertEquals(44, sut.size());
+        assertEquals(sut.countSubscriptions(), sut.size());
+        assertEquals(22, sut.exactSubscriptionsCount());
+        assertThat(sut.recursiveMatch(asTopic("gw/1/dev/7/config/limits")))
+            .containsExactly(gatewaySub("gw/1/dev/7/config/#"));
+    }
+
+    private static Subscription gatewaySub(String topicFilter) {
+        return new Subscription("Gateway1", asTopic(topicFilter), MqttQoS.AT_MOST_ONCE);
+    }
+
+    @Test
+    public void givenRandomBatchesThenMatchingIsSameAsAddingOneByOne() {
+        final Random random = new Random(42);
+        final CTrie oneByOne = new CTrie();
+        for (int round = 0; round < 20; round++) {
+            final List<Subscription> batch = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                final StringBuilder filter = new StringBuilder("l" + random.nextInt(3));
+                final int levels = random.nextInt(4);
+                for (int level = 0; level < levels; level++) {
+                    final int choice = random.nextInt(5);
+                    filter.append('/').append(choice == 3 ? "+" : choice == 4 ? "#" : "l" + choice);
+                    if (choice == 4) {
+                        break;
+                    }
+                }
+                final MqttQoS qos = MqttQoS.valueOf(random.nextInt(3));
+                batch.add(new Subscription("client" + random.nextInt(10), asTopic(filter.toString()), qos));
+            }
+
+            //Exercise
+            sut.addAllToTree(batch);
+            for (Subscription subscription : batch) {
+                oneByOne.addToTree(subscription);
+            }
+        }
+
+        //Verify
+        assertEquals(oneByOne.dumpTree(), sut.dumpTree());
+        assertEquals(oneByOne.size(), sut.size());
+        assertEquals(sut.countSubscriptions(), sut.size());
+    }
+
+    @Test
+    public void givenManyStoredSubscriptionsWhenBulkLoadedThenTreeIsSameAsAddingOneByOne() {
+        final Random random = new Random(42);
+        final List<Subscription> stored = new ArrayList<>();
+        // enough filters below the same levels to build some subtrees in parallel
+        for (int i = 0; i < 20_000; i++) {
+            final StringBuilder filter = new StringBuilder(random.nextInt(10) == 0 ? "+" : "site" + random.nextInt(2));
+            final int levels = 1 + random.nextInt(4);
+            for (int level = 0; level < levels; level++) {
+                final int choice = random.nextInt(20);
+                filter.append('/').append(choice == 0 ? "+" : choice == 1 ? "#" : "l" + choice);
+                if (choice == 1) {
+                    break;
+                }
+            }
+            final MqttQoS qos = MqttQoS.valueOf(random.nextInt(3));
+            stored.add(new Subscription("client" + random.nextInt(100), asTopic(filter.toString()), qos));
+        }
+        final CTrie oneByOne = new CTrie();
+        for (Subscription subscription : stored) {
+            oneByOne.addToTree(subscription);
+        }
+
+        //Exercise
+        sut.bulkLoad(stored);
+
+        //Verify
+        assertEquals(oneByOne.dumpTree(), sut.dumpTree());
+        assertEquals(oneByOne.size(), sut.size());
+        assertEquals(oneByOne.exactSubscriptionsCount(), sut.exactSubscriptionsCount());
+        assertEquals(oneByOne.clientIds(), sut.clientIds());
+        assertEquals(sut.countSubscriptions(), sut.size());
+    }
+
+    @Test
+    public void givenNotEmptyTreeWhenBulkLoadedThenSubscriptionsAreAdded() {
+        sut.addToTree(gatewaySub("temp/1"));
+
+        //Exercise
+        sut.bulkLoad(Arrays.asList(gatewaySub("temp/2"), gatewaySub("temp/+")));
+
+        //Verify
+        assertEquals(3, sut.size());
+        assertTrue(sut.lookup(asTopic("temp/1")).isPresent());
+        assertTrue(sut.lookup(asTopic("temp/2")).isPresent());
+    }
+
+    @Test
+    public void givenSubscriptionsAddedAndRemovedThenStatisticsAreUpToDate() {
+        sut.addToTree(new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.AT_MOST_ONCE));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp/+"));
+        sut.addToTree(new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.EXACTLY_ONCE));
+        sut.addToTree(clientSubOnTopic("TempSensor2", "temp/#"));
+        sut.addToTree(clientSubOnTopic("TempSensor3", "$share/group/temp/1"));
+        sut.addToTree(clientSubOnTopic("TempSensor4", "$share/group/temp/1"));
+
+        //Exercise
+        sut.removeFromTree(asTopic("temp/+"), "TempSensor1");
+        sut.removeFromTree(asTopic("temp/+"), "TempSensor1");
+        sut.removeFromTree(asTopic("$share/group/temp/1"), "TempSensor4");
+
+        //Verify
+        assertEquals(3, sut.size());
+        assertEquals(sut.countSubscriptions(), sut.size());
+        assertEquals(2, sut.exactSubscriptionsCount());
+        assertEquals(1, sut.wildcardSubscriptionsCount());
+        assertEquals(3, sut.clientsCount());
+    }
+
+    @Test
+    public void givenBigTreeWhenDumpedInPagesThenPagesComposeTheWholeDump() {
+        for (int i = 0; i < 50; i++) {
+            sut.addToTree(clientSubOnTopic("TempSensor" + i, "site/" + (i % 5) + "/sensor/" + i));
+        }
+
+        //Exercise
+        final List<String> pages = new ArrayList<>();
+        int offset = 0;
+        int pushed;
+        do {
+            pushed = sut.dumpTree(offset, 7, pages::add);
+            offset += pushed;
+        } while (pushed == 7);
+
+        //Verify
+        assertEquals(sut.dumpTree(), String.join("\n", pages) + "\n");
+        assertThat(pages.get(0)).isEqualTo("root");
+    }
 }
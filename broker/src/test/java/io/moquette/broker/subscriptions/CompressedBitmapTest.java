@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressedBitmapTest {
+
+    @Test
+    public void givenRandomUpdatesThenBehavesLikeSortedSet() {
+        final Random random = new Random(42);
+        final TreeSet<Integer> expected = new TreeSet<>();
+        final CompressedBitmap bitmap = new CompressedBitmap();
+
+        // dense enough in the first 64k values to switch between array and bitmap containers
+        for (int i = 0; i < 200_000; i++) {
+            final int value = random.nextInt(3) == 0 ? random.nextInt(1_000_000) : random.nextInt(10_000);
+            if (random.nextInt(4) == 0) {
+                expected.remove(value);
+                bitmap.remove(value);
+            } else {
+                expected.add(value);
+                bitmap.add(value);
+            }
+        }
+
+        assertEquals(new ArrayList<>(expected), values(bitmap));
+        assertEquals(expected.size(), bitmap.cardinality());
+        for (int i = 0; i < 1000; i++) {
+            final int value = random.nextInt(1_000_000);
+            assertEquals(expected.contains(value), bitmap.contains(value));
+        }
+    }
+
+    @Test
+    public void givenSparseAndDenseBitmapsThenAndOrAreLikeSets() {
+        final Random random = new Random(7);
+        final TreeSet<Integer> leftValues = new TreeSet<>();
+        final TreeSet<Integer> rightValues = new TreeSet<>();
+        final CompressedBitmap left = new CompressedBitmap();
+        final CompressedBitmap right = new CompressedBitmap();
+        for (int i = 0; i < 50_000; i++) {
+            final int dense = random.nextInt(20_000);
+            leftValues.add(dense);
+            left.add(dense);
+        }
+        for (int i = 0; i < 3_000; i++) {
+            final int sparse = random.nextInt(200_000);
+            rightValues.add(sparse);
+            right.add(sparse);
+        }
+
+        final TreeSet<Integer> intersection = new TreeSet<>(leftValues);
+        intersection.retainAll(rightValues);
+        final TreeSet<Integer> union = new TreeSet<>(leftValues);
+        union.addAll(rightValues);
+
+        assertEquals(new ArrayList<>(intersection), values(CompressedBitmap.and(left, right)));
+        assertEquals(new ArrayList<>(intersection), values(CompressedBitmap.and(right, left)));
+        assertEquals(new ArrayList<>(union), values(CompressedBitmap.or(left, right)));
+        assertEquals(new ArrayList<>(leftValues), values(CompressedBitmap.and(left, left)));
+        assertEquals(new ArrayList<>(rightValues), values(CompressedBitmap.or(null, right)));
+        assertTrue(CompressedBitmap.and(left, null).isEmpty());
+        // operands are not modified
+        assertEquals(new ArrayList<>(leftValues), values(left));
+    }
+
+    @Test
+    public void givenAllValuesRemovedThenBitmapIsEmpty() {
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < 100_000; i++) {
+            bitmap.add(i);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            bitmap.remove(i);
+        }
+
+        assertTrue(bitmap.isEmpty());
+        assertFalse(bitmap.contains(42));
+    }
+
+    private static List<Integer> values(CompressedBitmap bitmap) {
+        final List<Integer> values = new ArrayList<>();
+        bitmap.forEach(values::add);
+        return values;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class HashTrieMapTest {
+
+    @Test
+    public void givenUpdatedMapThenOriginalIsUnchanged() {
+        final HashTrieMap<String, String> original = HashTrieMap.<String, String>empty().put("client1", "a");
+
+        final HashTrieMap<String, String> updated = original.put("client2", "b").remove("client1");
+
+        assertEquals("a", original.get("client1"));
+        assertNull(original.get("client2"));
+        assertEquals(1, original.size());
+        assertNull(updated.get("client1"));
+        assertEquals("b", updated.get("client2"));
+        assertEquals(1, updated.size());
+    }
+
+    @Test
+    public void givenKeysWithSameHashThenBothAreKept() {
+        // "Aa" and "BB" have the same hashCode
+        HashTrieMap<String, String> map = HashTrieMap.<String, String>empty()
+            .put("Aa", "first")
+            .put("BB", "second");
+
+        assertEquals("first", map.get("Aa"));
+        assertEquals("second", map.get("BB"));
+        assertThat(map.values()).containsExactlyInAnyOrder("first", "second");
+
+        map = map.remove("Aa");
+        assertNull(map.get("Aa"));
+        assertEquals("second", map.get("BB"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void givenCollidingAndNotCollidingKeysThenAllAreReachable() {
+        // all the combinations of "Aa" and "BB" share the same hashCode
+        final String[] colliding = {"AaAa", "AaBB", "BBAa", "BBBB"};
+        HashTrieMap<String, String> map = HashTrieMap.empty();
+        for (String key : colliding) {
+            map = map.put(key, key);
+        }
+        for (int i = 0; i < 100; i++) {
+            map = map.put("client" + i, "client" + i);
+        }
+
+        map = map.remove("AaBB").put("BBBB", "replaced");
+
+        assertEquals(103, map.size());
+        assertNull(map.get("AaBB"));
+        assertEquals("AaAa", map.get("AaAa"));
+        assertEquals("BBAa", map.get("BBAa"));
+        assertEquals("replaced", map.get("BBBB"));
+        assertEquals("client42", map.get("client42"));
+        assertThat(map.values()).hasSize(103).contains("replaced", "AaAa", "BBAa");
+    }
+
+    @Test
+    public void givenUnchangedUpdateThenSameMapIsReturned() {
+        final HashTrieMap<String, String> map = HashTrieMap.<String, String>empty().put("client1", "a");
+
+        assertSame(map, map.remove("client2"));
+        assertSame(map, map.put("client1", map.get("client1")));
+    }
+
+    @Test
+    public void givenRandomUpdatesThenBehavesLikeHashMap() {
+        final Random random = new Random(42);
+        final Map<String, Integer> expected = new HashMap<>();
+        HashTrieMap<String, Integer> map = HashTrieMap.empty();
+
+        for (int i = 0; i < 50_000; i++) {
+            // short keys so that some of them collide
+            final String key = "k" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        final List<Integer> iterated = new ArrayList<>(map.values());
+        assertThat(iterated).hasSize(expected.size()).containsOnlyElementsOf(expected.values());
+        final List<Integer> visited = new ArrayList<>();
+        map.forEachValue(visited::add);
+        assertThat(visited).hasSize(expected.size()).containsOnlyElementsOf(expected.values());
+    }
+
+    @Test
+    public void givenAllKeysRemovedThenMapIsEmpty() {
+        HashTrieMap<Integer, Integer> map = HashTrieMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put(i, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            map = map.remove(i);
+        }
+
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.values()).isEmpty();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.MatchedSubscriptions;
+import io.moquette.api.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static io.moquette.api.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MatchedSubscriptionsTest {
+
+    private MatchedSubscriptions sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new MatchedSubscriptions();
+    }
+
+    @Test
+    public void givenSubscriptionsOfSameClientThenKeepsTheHighestQos() {
+        final Subscription qos1 = new Subscription("client", asTopic("a/+"), MqttQoS.AT_LEAST_ONCE);
+        final Subscription qos2 = new Subscription("client", asTopic("a/#"), MqttQoS.EXACTLY_ONCE);
+        final Subscription qos0 = new Subscription("client", asTopic("a/b"), MqttQoS.AT_MOST_ONCE);
+
+        sut.add(qos1);
+        sut.add(qos2);
+        sut.add(qos0);
+
+        assertEquals(1, sut.size());
+        assertThat(sut.get(0)).isSameAs(qos2);
+    }
+
+    @Test
+    public void givenManyClientsThenAllAreCollectedAfterGrowing() {
+        final Set<Subscription> expected = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            final Subscription sub = new Subscription("client" + i, asTopic("a/b"), MqttQoS.AT_MOST_ONCE);
+            expected.add(sub);
+            sut.add(sub);
+        }
+
+        final Set<Subscription> collected = new HashSet<>();
+        for (int i = 0; i < sut.size(); i++) {
+            collected.add(sut.get(i));
+        }
+        assertEquals(expected, collected);
+    }
+
+    @Test
+    public void givenFilledAccumulatorWhenClearedThenCanBeReused() {
+        sut.add(new Subscription("client1", asTopic("a/b"), MqttQoS.EXACTLY_ONCE));
+        sut.add(new Subscription("client2", asTopic("a/b"), MqttQoS.AT_MOST_ONCE));
+
+        sut.clear();
+
+        assertTrue(sut.isEmpty());
+        final Subscription lowQos = new Subscription("client1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE);
+        sut.add(lowQos);
+        assertEquals(1, sut.size());
+        assertThat(sut.get(0)).isSameAs(lowQos);
+    }
+}
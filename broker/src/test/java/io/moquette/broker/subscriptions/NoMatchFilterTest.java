@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Token;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static io.moquette.api.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NoMatchFilterTest {
+
+    private final NoMatchFilter sut = new NoMatchFilter(1 << 16);
+
+    @Test
+    public void givenNoFiltersThenNothingMatches() {
+        assertFalse(sut.mayMatch(tokens("a/b")));
+        assertFalse(sut.mayMatch(tokens("a")));
+    }
+
+    @Test
+    public void givenExactFilterThenOnlyThatTopicMatches() {
+        sut.add(tokens("plant/line1/temp"));
+
+        assertTrue(sut.mayMatch(tokens("plant/line1/temp")));
+        assertFalse(sut.mayMatch(tokens("plant/line1")));
+        assertFalse(sut.mayMatch(tokens("plant/line2/temp")));
+        assertFalse(sut.mayMatch(tokens("plant/line1/temp/max")));
+    }
+
+    @Test
+    public void givenWildcardFiltersThenTopicsWithTheSamePrefixMatch() {
+        sut.add(tokens("plant/+/temp"));
+        sut.add(tokens("office/#"));
+
+        assertTrue(sut.mayMatch(tokens("plant/line1/temp")));
+        assertTrue(sut.mayMatch(tokens("office")));
+        assertTrue(sut.mayMatch(tokens("office/floor1/light")));
+        assertFalse(sut.mayMatch(tokens("warehouse/line1/temp")));
+    }
+
+    @Test
+    public void givenRemovedFiltersThenTheyDontMatchAnymore() {
+        sut.add(tokens("plant/+/temp"));
+        sut.add(tokens("plant/+/temp"));
+        sut.add(tokens("office/light"));
+
+        sut.remove(tokens("plant/+/temp"));
+        assertTrue(sut.mayMatch(tokens("plant/line1/temp")));
+
+        sut.remove(tokens("plant/+/temp"));
+        sut.remove(tokens("office/light"));
+        assertFalse(sut.mayMatch(tokens("plant/line1/temp")));
+        assertFalse(sut.mayMatch(tokens("office/light")));
+    }
+
+    @Test
+    public void givenRandomFiltersThenThereAreNoFalseNegatives() {
+        final Random random = new Random(42);
+        final List<String> filters = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final String filter = randomPath(random, true);
+            filters.add(filter);
+            sut.add(tokens(filter));
+        }
+        for (int i = 0; i < 100; i++) {
+            sut.remove(tokens(filters.remove(0)));
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            final String topic = randomPath(random, false);
+            for (String filter : filters) {
+                if (topicMatchesFilter(topic, filter)) {
+                    assertTrue(sut.mayMatch(tokens(topic)), topic + " matches " + filter);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean topicMatchesFilter(String topic, String filter) {
+        final String[] topicLevels = topic.split("/");
+        final String[] filterLevels = filter.split("/");
+        for (int i = 0; i < filterLevels.length; i++) {
+            if ("#".equals(filterLevels[i])) {
+                return true;
+            }
+            if (i >= topicLevels.length || !("+".equals(filterLevels[i]) || filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private static String randomPath(Random random, boolean wildcards) {
+        final int length = 1 + random.nextInt(4);
+        final StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < length; level++) {
+            if (level > 0) {
+                sb.append('/');
+            }
+            final int choice = random.nextInt(wildcards ? 12 : 10);
+            if (choice == 11) {
+                return sb.append('#').toString();
+            }
+            sb.append(choice == 10 ? "+" : "l" + choice);
+        }
+        return sb.toString();
+    }
+
+    private static List<Token> tokens(String topic) {
+        return asTopic(topic).getTokens();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.api.Topic;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.api.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopicIndexTest {
+
+    private TopicIndex<String> sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new TopicIndex<>();
+        for (String topic : new String[] {"site/1/sensor/temp", "site/1/sensor/hum", "site/2/sensor/temp",
+                                           "site/2/actuator/valve", "site", "/site"}) {
+            sut.put(asTopic(topic), topic);
+        }
+    }
+
+    @Test
+    public void givenExactFilterThenOnlyThatTopicIsMatched() {
+        assertThat(sut.match(asTopic("site/1/sensor/temp"))).containsExactly("site/1/sensor/temp");
+        assertThat(sut.match(asTopic("site/1/sensor"))).isEmpty();
+        assertThat(sut.match(asTopic("site/3/sensor/temp"))).isEmpty();
+    }
+
+    @Test
+    public void givenWildcardsFilterThenOnlyMatchingSubtreesAreSelected() {
+        assertThat(sut.match(asTopic("site/+/sensor/#")))
+            .containsExactly("site/1/sensor/hum", "site/1/sensor/temp", "site/2/sensor/temp");
+        assertThat(sut.match(asTopic("site/+/+/temp"))).containsExactly("site/1/sensor/temp", "site/2/sensor/temp");
+        assertThat(sut.match(asTopic("+/site"))).containsExactly("/site");
+    }
+
+    @Test
+    public void givenMultiLevelWildcardThenAlsoParentLevelIsMatched() {
+        assertThat(sut.match(asTopic("site/#"))).hasSize(5).contains("site");
+        assertThat(sut.match(asTopic("#"))).hasSize(6);
+    }
+
+    @Test
+    public void givenReplacedTopicThenOnlyLastValueIsKept() {
+        sut.put(asTopic("site/1/sensor/temp"), "updated");
+
+        assertThat(sut.match(asTopic("site/1/sensor/temp"))).containsExactly("updated");
+        assertEquals(6, sut.size());
+    }
+
+    @Test
+    public void givenAllTopicsRemovedThenIndexIsEmpty() {
+        for (String topic : sut.match(asTopic("#"))) {
+            sut.remove(new Topic(topic));
+        }
+        sut.remove(asTopic("not/present"));
+
+        assertTrue(sut.isEmpty());
+        assertThat(sut.match(asTopic("#"))).isEmpty();
+    }
+
+    @Test
+    public void givenRemovedLeafThenSiblingsAndParentsAreKept() {
+        sut.remove(asTopic("site/2/actuator/valve"));
+
+        assertThat(sut.match(asTopic("site/2/#"))).containsExactly("site/2/sensor/temp");
+        assertThat(sut.match(asTopic("site"))).containsExactly("site");
+        assertEquals(5, sut.size());
+    }
+}
@@ -32,6 +32,8 @@ public class TopicTest {
         assertThat(new Topic("/finance/stock/ibm")).containsToken(Token.EMPTY, "finance", "stock", "ibm");
 
         assertThat(new Topic("/")).containsToken(Token.EMPTY, Token.EMPTY);
+
+        assertThat(new Topic("finance//")).containsToken("finance", Token.EMPTY, Token.EMPTY);
     }
 
     @Test
@@ -118,10 +120,44 @@ public class TopicTest {
         assertThat(new Topic("foo/bar/")).matches("foo/bar/+");
     }
 
+    @Test
+    public void testSameLevelNamesShareTheTokenOfTheStoredFilter() {
+        final Token financeFromFilter = new Topic("finance/+").internedTokens().get(0);
+        final Token financeFromStock = new Topic("finance/stock").getTokens().get(0);
+        final Token financeFromBonds = new Topic("/finance/bonds").getTokens().get(1);
+
+        Assertions.assertThat(financeFromStock).isSameAs(financeFromFilter);
+        Assertions.assertThat(financeFromBonds).isSameAs(financeFromFilter);
+        assertEquals(new Token("finance"), financeFromStock);
+    }
+
+    @Test
+    public void testLevelNamesOfPublishedTopicsAreNotInterned() {
+        final Token first = new Topic("devices/sensor-8a4f/temp").getTokens().get(1);
+        final Token second = new Topic("devices/sensor-8a4f/temp").getTokens().get(1);
+
+        Assertions.assertThat(first).isNotSameAs(second);
+        assertEquals(first, second);
+    }
+
     @Test
     public void exceptHeadToken() {
         assertEquals(Topic.asTopic("token"), Topic.asTopic("/token").exceptHeadToken());
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
+        assertEquals(Topic.asTopic("b"), Topic.asTopic("/a/b").exceptHeadToken().exceptHeadToken());
+        assertEquals(Topic.asTopic("b").hashCode(), Topic.asTopic("a/b").exceptHeadToken().hashCode());
+    }
+
+    @Test
+    public void testSharedSubscriptionFilter() {
+        final Topic shared = Topic.asTopic("$share/workers/jobs/#");
+        Assertions.assertThat(shared.isShared()).isTrue();
+        assertEquals("workers", shared.shareName());
+        assertEquals(Topic.asTopic("jobs/#"), shared.sharedFilter());
+
+        Assertions.assertThat(Topic.asTopic("$share/workers").isShared()).isFalse();
+        Assertions.assertThat(Topic.asTopic("$share/+/jobs").isShared()).isFalse();
+        Assertions.assertThat(Topic.asTopic("jobs/$share/workers").isShared()).isFalse();
     }
 
     public static TopicAssert assertThat(Topic topic) {
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.h2.mvstore.WriteBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteBufDataTypeTest {
+
+    private final ByteBufDataType sut = new ByteBufDataType();
+
+    @Test
+    public void givenCompositePayloadThenAllTheReadableBytesAreWrittenWithoutConsumingThem() {
+        final CompositeByteBuf payload = Unpooled.compositeBuffer();
+        payload.addComponent(true, Unpooled.directBuffer().writeBytes(bytes("xxHello ")));
+        payload.addComponent(true, Unpooled.wrappedBuffer(bytes("world")));
+        payload.skipBytes(2);
+
+        final ByteBuffer written = write(payload);
+
+        assertEquals(2, payload.readerIndex());
+        assertEquals("Hello world", sut.read(written).toString(StandardCharsets.UTF_8));
+        assertFalse(written.hasRemaining());
+        payload.release();
+    }
+
+    @Test
+    public void givenHeapBufferThenThePayloadIsReadAsView() {
+        final ByteBuffer written = write(Unpooled.wrappedBuffer(bytes("Hello")));
+        final ByteBuffer heap = ByteBuffer.allocate(written.remaining() + 1);
+        heap.put(written).put((byte) '!');
+        ((Buffer) heap).flip();
+
+        final ByteBuf read = sut.read(heap);
+
+        assertEquals("Hello", read.toString(StandardCharsets.UTF_8));
+        assertEquals(1, heap.remaining());
+        heap.put(4, (byte) 'J');
+        assertEquals("Jello", read.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void givenDirectBufferThenThePayloadIsCopied() {
+        final ByteBuffer written = write(Unpooled.wrappedBuffer(bytes("Hello")));
+        final ByteBuffer direct = ByteBuffer.allocateDirect(written.remaining());
+        direct.put(written);
+        ((Buffer) direct).flip();
+
+        final ByteBuf read = sut.read(direct);
+
+        assertFalse(direct.hasRemaining());
+        direct.put(4, (byte) 'J');
+        assertEquals("Hello", read.toString(StandardCharsets.UTF_8));
+    }
+
+    private ByteBuffer write(ByteBuf payload) {
+        final WriteBuffer buffer = new WriteBuffer();
+        sut.write(buffer, payload);
+        final ByteBuffer written = buffer.getBuffer();
+        ((Buffer) written).flip();
+        return written;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class H2CommitterTest {
+
+    private MVStore mvStore;
+    private MVMap<String, String> map;
+    private ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        this.mvStore = new MVStore.Builder()
+            .fileName(BrokerConstants.DEFAULT_PERSISTENT_PATH)
+            .autoCommitDisabled()
+            .open();
+        this.map = mvStore.openMap("test");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.shutdownNow();
+        mvStore.close();
+        File dbFile = new File(BrokerConstants.DEFAULT_PERSISTENT_PATH);
+        if (dbFile.exists()) {
+            dbFile.delete();
+        }
+        assertFalse(dbFile.exists());
+    }
+
+    @Test
+    public void givenAsyncModeThenActionsDontWaitForTheCommit() {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.ASYNC, 10);
+        sut.start(scheduler, 3600, 10);
+        final AtomicInteger acked = new AtomicInteger();
+
+        map.put("key", "value");
+        sut.afterCommit(acked::incrementAndGet);
+
+        assertEquals(1, acked.get());
+        assertTrue(mvStore.hasUnsavedChanges());
+    }
+
+    @Test
+    public void givenSyncModeThenTheStoreIsCommittedBeforeTheAction() throws InterruptedException {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.SYNC, 10);
+        sut.start(scheduler, 3600, 10);
+        final long commitsBefore = sut.commitLatency().getCount();
+        final CountDownLatch acked = new CountDownLatch(1);
+        final AtomicBoolean savedWhenAcked = new AtomicBoolean();
+
+        map.put("key", "value");
+        sut.afterCommit(() -> {
+            savedWhenAcked.set(!mvStore.hasUnsavedChanges());
+            acked.countDown();
+        });
+
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+        assertTrue(savedWhenAcked.get());
+        assertEquals(commitsBefore + 1, sut.commitLatency().getCount());
+    }
+
+    @Test
+    public void givenSyncModeWhenThreadsWriteConcurrentlyThenEveryActionFollowsACommitOfItsWrite()
+            throws Exception {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.SYNC, 10);
+        sut.start(scheduler, 3600, 10);
+        final int threads = 4;
+        final int writes = 200;
+        final CountDownLatch acked = new CountDownLatch(threads * writes);
+        final AtomicInteger notCommitted = new AtomicInteger();
+        final AtomicInteger ackedByWriter = new AtomicInteger();
+        final ExecutorService writers = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int writer = t;
+                done.add(writers.submit(() -> {
+                    final Thread writerThread = Thread.currentThread();
+                    for (int i = 0; i < writes; i++) {
+                        final long version = mvStore.getCurrentVersion();
+                        map.put("key" + writer + "_" + i, "value");
+                        sut.afterCommit(() -> {
+                            if (mvStore.getCurrentVersion() <= version) {
+                                notCommitted.incrementAndGet();
+                            }
+                            if (Thread.currentThread() == writerThread) {
+                                ackedByWriter.incrementAndGet();
+                            }
+                            acked.countDown();
+                        });
+                    }
+                }));
+            }
+            for (Future<?> writer : done) {
+                writer.get(5, TimeUnit.SECONDS);
+            }
+
+            assertTrue(acked.await(5, TimeUnit.SECONDS));
+            assertEquals(0, notCommitted.get());
+            assertEquals(0, ackedByWriter.get(), "The writers must not wait for the disk");
+            assertFalse(mvStore.hasUnsavedChanges());
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void givenSyncModeThenTheOtherStoresAreSyncedBeforeTheAction() throws InterruptedException {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.SYNC, 10);
+        final AtomicInteger otherSyncs = new AtomicInteger();
+        sut.alsoSync(otherSyncs::incrementAndGet);
+        sut.start(scheduler, 3600, 10);
+        final CountDownLatch acked = new CountDownLatch(1);
+        final AtomicInteger syncsWhenAcked = new AtomicInteger();
+
+        // nothing changed in H2, the other store could have
+        sut.afterCommit(() -> {
+            syncsWhenAcked.set(otherSyncs.get());
+            acked.countDown();
+        });
+
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+        assertEquals(1, syncsWhenAcked.get());
+    }
+
+    @Test
+    public void givenGroupModeWhenACommitFailsThenTheActionsWaitForTheNextOne() {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.GROUP, 10);
+        final AtomicInteger failures = new AtomicInteger(1);
+        sut.alsoSync(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("Simulated disk failure");
+            }
+        });
+        sut.start(scheduler, 3600, 3_600_000);
+        final AtomicInteger acked = new AtomicInteger();
+
+        map.put("key", "value");
+        sut.afterCommit(acked::incrementAndGet);
+        sut.commitPending();
+        assertEquals(0, acked.get());
+
+        sut.afterCommit(acked::incrementAndGet);
+        sut.commitPending();
+
+        assertEquals(2, acked.get());
+    }
+
+    @Test
+    public void givenGroupModeWhenAScheduledCommitFailsThenTheNextOneStillRuns() throws InterruptedException {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.GROUP, 1000);
+        final AtomicInteger failures = new AtomicInteger(1);
+        sut.alsoSync(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("Simulated disk failure");
+            }
+        });
+        final CountDownLatch acked = new CountDownLatch(1);
+
+        map.put("key", "value");
+        sut.afterCommit(acked::countDown);
+        sut.start(scheduler, 3600, 10);
+
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+        assertFalse(mvStore.hasUnsavedChanges());
+    }
+
+    @Test
+    public void givenGroupModeThenActionsWaitForTheCoveringCommit() {
+        // the scheduled commits are far away, the test commits explicitly
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.GROUP, 10);
+        sut.start(scheduler, 3600, 3_600_000);
+        final AtomicInteger acked = new AtomicInteger();
+
+        map.put("key", "value");
+        sut.afterCommit(acked::incrementAndGet);
+        sut.afterCommit(acked::incrementAndGet);
+        assertEquals(0, acked.get());
+
+        sut.commitPending();
+
+        assertEquals(2, acked.get());
+        assertFalse(mvStore.hasUnsavedChanges());
+    }
+
+    @Test
+    public void givenGroupModeWhenEnoughWritesAreWaitingThenTheCommitStarts() throws InterruptedException {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.GROUP, 3);
+        sut.start(scheduler, 3600, 3_600_000);
+        final CountDownLatch acked = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            map.put("key" + i, "value");
+            sut.afterCommit(acked::countDown);
+        }
+
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+        assertFalse(mvStore.hasUnsavedChanges());
+    }
+
+    @Test
+    public void givenBatchBeingWrittenThenTheCommitWaitsForItsEnd() throws Exception {
+        final H2Committer sut = new H2Committer(mvStore, H2Committer.Durability.ASYNC, 10);
+        final CountDownLatch firstWritten = new CountDownLatch(1);
+        final CountDownLatch writeTheRest = new CountDownLatch(1);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        final Future<?> batch = writer.submit(() -> sut.writeBatch(() -> {
+            map.put("key1", "value");
+            firstWritten.countDown();
+            try {
+                writeTheRest.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            map.put("key2", "value");
+        }));
+        assertTrue(firstWritten.await(5, TimeUnit.SECONDS));
+
+        final Future<?> commit = scheduler.submit(sut::commitPending);
+        assertThrows(TimeoutException.class, () -> commit.get(200, TimeUnit.MILLISECONDS));
+        writeTheRest.countDown();
+        commit.get(5, TimeUnit.SECONDS);
+        batch.get(5, TimeUnit.SECONDS);
+        writer.shutdown();
+
+        // both the writes were saved by the commit
+        assertFalse(mvStore.hasUnsavedChanges());
+    }
+}
@@ -121,4 +121,18 @@ public class H2PersistentQueueTest {
         assertEquals("world", ((PublishedMessage) after.poll()).getTopic().toString());
         assertTrue(after.isEmpty(), "should be empty");
     }
+
+    @Test
+    public void givenDrainedQueueWhenPolledAgainThenItStaysEmpty() {
+        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        sut.add(createMessage("Hello"));
+        sut.poll();
+
+        assertNull(sut.poll());
+        assertNull(sut.peek());
+        assertEquals(0, sut.size());
+
+        sut.add(createMessage("world"));
+        assertEquals("world", ((PublishedMessage) sut.poll()).getTopic().toString());
+    }
 }
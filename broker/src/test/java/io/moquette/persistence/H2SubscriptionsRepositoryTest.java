@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.api.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.moquette.api.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class H2SubscriptionsRepositoryTest {
+
+    private MVStore mvStore;
+    private H2SubscriptionsRepository sut;
+
+    @BeforeEach
+    public void setUp() {
+        this.mvStore = new MVStore.Builder()
+            .fileName(BrokerConstants.DEFAULT_PERSISTENT_PATH)
+            .autoCommitDisabled()
+            .open();
+        this.sut = new H2SubscriptionsRepository(mvStore);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+        File dbFile = new File(BrokerConstants.DEFAULT_PERSISTENT_PATH);
+        if (dbFile.exists()) {
+            dbFile.delete();
+        }
+        assertFalse(dbFile.exists());
+    }
+
+    @Test
+    public void givenStoredSubscriptionsThenEveryOneIsVisited() {
+        final Subscription tempSub = new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.AT_LEAST_ONCE);
+        final Subscription humiditySub = new Subscription("TempSensor1", asTopic("humidity/#"), MqttQoS.AT_MOST_ONCE);
+        final Subscription otherClientSub = new Subscription("TempSensor2", asTopic("temp/+"), MqttQoS.AT_MOST_ONCE);
+        sut.addNewSubscription(tempSub);
+        sut.addNewSubscription(humiditySub);
+        sut.addNewSubscription(otherClientSub);
+        sut.removeSubscription("temp/1", "TempSensor1");
+
+        final List<Subscription> visited = new ArrayList<>();
+        sut.forEachSubscription(visited::add);
+
+        assertThat(visited).containsExactlyInAnyOrder(humiditySub, otherClientSub);
+    }
+
+    @Test
+    public void givenClientWithManySubscriptionsThenItsIdIsVisitedOnce() {
+        sut.addNewSubscription(new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.AT_LEAST_ONCE));
+        sut.addNewSubscription(new Subscription("TempSensor1", asTopic("humidity/#"), MqttQoS.AT_MOST_ONCE));
+        sut.addNewSubscription(new Subscription("TempSensor2", asTopic("temp/+"), MqttQoS.AT_MOST_ONCE));
+
+        final List<String> clientIds = new ArrayList<>();
+        sut.forEachClientId(clientIds::add);
+
+        assertThat(clientIds).containsExactlyInAnyOrder("TempSensor1", "TempSensor2");
+    }
+
+    @Test
+    public void givenBatchOfSubscriptionsThenItRunsAsOneWriteAndReplacesTheExistingOnes() {
+        final List<Runnable> batches = new ArrayList<>();
+        sut = new H2SubscriptionsRepository(mvStore, batch -> {
+            batches.add(batch);
+            batch.run();
+        });
+        sut.addNewSubscription(new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.AT_MOST_ONCE));
+        final Subscription tempSub = new Subscription("TempSensor1", asTopic("temp/1"), MqttQoS.AT_LEAST_ONCE);
+        final Subscription humiditySub = new Subscription("TempSensor1", asTopic("humidity/#"), MqttQoS.AT_MOST_ONCE);
+
+        sut.addNewSubscriptions(Arrays.asList(tempSub, humiditySub));
+
+        assertThat(batches).hasSize(1);
+        final List<Subscription> visited = new ArrayList<>();
+        sut.forEachSubscription(visited::add);
+        assertThat(visited).containsExactlyInAnyOrder(tempSub, humiditySub);
+        assertThat(visited).extracting(Subscription::getRequestedQos)
+            .containsExactlyInAnyOrder(MqttQoS.AT_LEAST_ONCE, MqttQoS.AT_MOST_ONCE);
+    }
+}
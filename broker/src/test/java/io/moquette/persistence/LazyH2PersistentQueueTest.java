@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.api.EnqueuedMessage;
+import io.moquette.api.PublishedMessage;
+import io.moquette.api.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LazyH2PersistentQueueTest {
+
+    private MVStore mvStore;
+
+    @BeforeEach
+    public void setUp() {
+        this.mvStore = new MVStore.Builder()
+            .fileName(BrokerConstants.DEFAULT_PERSISTENT_PATH)
+            .autoCommitDisabled()
+            .open();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+        File dbFile = new File(BrokerConstants.DEFAULT_PERSISTENT_PATH);
+        if (dbFile.exists()) {
+            dbFile.delete();
+        }
+        assertFalse(dbFile.exists());
+    }
+
+    @Test
+    public void givenNothingEnqueuedWhenDrainedThenTheStoreIsNotTouched() {
+        LazyH2PersistentQueue sut = new LazyH2PersistentQueue(this.mvStore, "idle");
+
+        assertNull(sut.poll());
+        assertNull(sut.peek());
+        assertTrue(sut.isEmpty());
+
+        assertFalse(sut.isOpened());
+        assertFalse(H2PersistentQueue.exists(mvStore, "idle"));
+    }
+
+    @Test
+    public void givenQueueKnownAbsentThenTheStoreIsLookedUpOnlyOnce() {
+        LazyH2PersistentQueue sut = new LazyH2PersistentQueue(this.mvStore, "idle");
+        assertTrue(sut.isEmpty());
+
+        // only the handle creates the maps of its queue, a map appearing behind it isn't looked up anymore
+        new H2PersistentQueue(mvStore, "idle").offer(createMessage("Hello"));
+
+        assertTrue(sut.isEmpty());
+        assertFalse(sut.isOpened());
+    }
+
+    @Test
+    public void givenQueueKnownAbsentWhenMessageEnqueuedThenItIsDrained() {
+        LazyH2PersistentQueue sut = new LazyH2PersistentQueue(this.mvStore, "idle");
+        assertNull(sut.poll());
+
+        sut.offer(createMessage("Hello"));
+
+        assertEquals(1, sut.size());
+        assertEquals("Hello", ((PublishedMessage) sut.poll()).getTopic().toString());
+    }
+
+    @Test
+    public void givenMessageEnqueuedThenTheQueueIsOpened() {
+        LazyH2PersistentQueue sut = new LazyH2PersistentQueue(this.mvStore, "test");
+
+        sut.offer(createMessage("Hello"));
+
+        assertTrue(sut.isOpened());
+        assertEquals(1, sut.size());
+        assertEquals("Hello", ((PublishedMessage) sut.poll()).getTopic().toString());
+    }
+
+    @Test
+    public void givenStoredMessagesWhenReloadedThenTheyAreDrained() {
+        final H2QueueRepository repository = new H2QueueRepository(mvStore);
+        repository.createQueue("test", false).offer(createMessage("Hello"));
+        repository.createQueue("idle", false);
+        repository.createQueue("clean", true);
+
+        final H2QueueRepository reloadedRepository = new H2QueueRepository(mvStore);
+        final Map<String, Queue<EnqueuedMessage>> reloaded = reloadedRepository.listAllQueues();
+
+        assertEquals(new HashSet<>(Arrays.asList("test", "idle")), reloaded.keySet());
+        final LazyH2PersistentQueue reloadedQueue = (LazyH2PersistentQueue) reloaded.get("test");
+        assertFalse(reloadedQueue.isOpened());
+        assertEquals("Hello", ((PublishedMessage) reloadedQueue.poll()).getTopic().toString());
+        assertTrue(reloadedQueue.isEmpty());
+        assertFalse(H2PersistentQueue.exists(mvStore, "idle"));
+    }
+
+    @Test
+    public void givenDroppedQueueThenItsMapsAndIndexEntryAreGone() {
+        final H2QueueRepository repository = new H2QueueRepository(mvStore);
+        repository.createQueue("test", false).offer(createMessage("Hello"));
+
+        repository.dropQueue("test");
+
+        assertFalse(H2PersistentQueue.exists(mvStore, "test"));
+        assertTrue(new H2QueueRepository(mvStore).listAllQueues().isEmpty());
+    }
+
+    private PublishedMessage createMessage(String name) {
+        final ByteBuf payload = Unpooled.wrappedBuffer(name.getBytes(StandardCharsets.UTF_8));
+        return new PublishedMessage(Topic.asTopic(name), MqttQoS.AT_LEAST_ONCE, payload);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.api.EnqueuedMessage;
+import io.moquette.api.PublishedMessage;
+import io.moquette.api.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedQueueRepositoryTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @TempDir
+    File segmentsDir;
+
+    @Test
+    public void testMessagesAreDequeuedInOrder() {
+        final SegmentedQueueRepository sut = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> queue = sut.createQueue("test", false);
+
+        queue.offer(createMessage("Hello"));
+        queue.offer(createMessage("world"));
+
+        assertEquals(2, queue.size());
+        assertEquals("Hello", topicOf(queue.peek()));
+        assertEquals("Hello", topicOf(queue.poll()));
+        assertEquals("world", topicOf(queue.poll()));
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        sut.close();
+    }
+
+    @Test
+    public void givenQueuesWhenReloadedThenOnlyTheMessagesNotConsumedAreBack() {
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> queue = repository.createQueue("test", false);
+        queue.offer(createMessage("first"));
+        queue.offer(createMessage("second"));
+        queue.offer(createMessage("third"));
+        queue.poll();
+        repository.createQueue("idle", false);
+        repository.createQueue("clean", true).offer(createMessage("lost"));
+        repository.close();
+
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Map<String, Queue<EnqueuedMessage>> reloaded = reloadedRepository.listAllQueues();
+
+        assertEquals(new HashSet<>(Arrays.asList("test", "idle")), reloaded.keySet());
+        assertTrue(reloaded.get("idle").isEmpty());
+        final Queue<EnqueuedMessage> reloadedQueue = reloaded.get("test");
+        assertEquals(2, reloadedQueue.size());
+        assertEquals("second", topicOf(reloadedQueue.poll()));
+        assertEquals("third", topicOf(reloadedQueue.poll()));
+        assertTrue(reloadedQueue.isEmpty());
+        reloadedRepository.close();
+    }
+
+    @Test
+    public void givenAllMessagesConsumedThenTheOldSegmentsAreDeleted() {
+        final SegmentedQueueRepository sut = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> queue = sut.createQueue("test", false);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(createMessage("message" + i));
+        }
+        assertTrue(sut.segmentsCount() > 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message" + i, topicOf(queue.poll()));
+        }
+
+        assertEquals(1, sut.segmentsCount());
+        sut.close();
+    }
+
+    @Test
+    public void givenOldMessageStillQueuedThenItIsMovedAndDoesntKeepTheLaterSegments() {
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> slow = repository.createQueue("slow", false);
+        final Queue<EnqueuedMessage> fast = repository.createQueue("fast", false);
+        slow.offer(createMessage("pending"));
+        for (int i = 0; i < 100; i++) {
+            fast.offer(createMessage("message" + i));
+            fast.poll();
+        }
+
+        assertTrue(repository.segmentsCount() <= 2, "The segment of the pending message was compacted");
+        repository.close();
+
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Map<String, Queue<EnqueuedMessage>> reloaded = reloadedRepository.listAllQueues();
+
+        assertTrue(reloaded.get("fast").isEmpty());
+        assertEquals("pending", topicOf(reloaded.get("slow").poll()));
+        assertEquals(1, reloadedRepository.segmentsCount());
+        reloadedRepository.close();
+    }
+
+    @Test
+    public void givenMessageMovedAfterALaterOneThenTheQueueKeepsItsOrderOnRestart() {
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> slow = repository.createQueue("slow", false);
+        final Queue<EnqueuedMessage> fast = repository.createQueue("fast", false);
+        final Queue<EnqueuedMessage> keeper = repository.createQueue("keeper", false);
+        // the first segment is still needed by fast when the log rolls
+        slow.offer(createMessage("first"));
+        fillSegment(repository, fast);
+        // the second one is needed by keeper, so it's never compacted
+        slow.offer(createMessage("second"));
+        fillSegment(repository, keeper);
+        while (!fast.isEmpty()) {
+            fast.poll();
+        }
+
+        // at the next segment only first is needed in the head, and is moved after second
+        fillSegment(repository, keeper);
+        repository.close();
+
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> reloaded = reloadedRepository.listAllQueues().get("slow");
+        assertEquals("first", topicOf(reloaded.poll()));
+        assertEquals("second", topicOf(reloaded.poll()));
+        assertTrue(reloaded.isEmpty());
+        reloadedRepository.close();
+    }
+
+    private void fillSegment(SegmentedQueueRepository repository, Queue<EnqueuedMessage> queue) {
+        final int segments = repository.segmentsCount();
+        for (int i = 0; repository.segmentsCount() == segments; i++) {
+            queue.offer(createMessage("message" + i));
+        }
+    }
+
+    @Test
+    public void givenDroppedQueueThenItsMessagesAreNotReloaded() {
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> dropped = repository.createQueue("dropped", false);
+        final Queue<EnqueuedMessage> kept = repository.createQueue("kept", false);
+        for (int i = 0; i < 100; i++) {
+            dropped.offer(createMessage("message" + i));
+        }
+        kept.offer(createMessage("kept"));
+
+        repository.dropQueue("dropped");
+
+        assertFalse(repository.listAllQueues().containsKey("dropped"));
+        assertEquals(1, repository.segmentsCount(), "The segments of the dropped messages are deleted");
+        repository.close();
+
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Map<String, Queue<EnqueuedMessage>> reloaded = reloadedRepository.listAllQueues();
+        assertEquals(Collections.singleton("kept"), reloaded.keySet());
+        assertEquals("kept", topicOf(reloaded.get("kept").poll()));
+        reloadedRepository.close();
+    }
+
+    @Test
+    public void givenRecordTornByAPowerLossThenTheReplayStopsBeforeIt() throws IOException {
+        final SegmentedQueueRepository repository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> queue = repository.createQueue("test", false);
+        queue.offer(createMessage("first"));
+        queue.offer(createMessage("second"));
+        repository.close();
+        // the length of the record reached the disk, a page of its body didn't
+        final Path segment = new File(segmentsDir, "segment-0.log").toPath();
+        final byte[] content = Files.readAllBytes(segment);
+        final int secondTopic = new String(content, StandardCharsets.ISO_8859_1).indexOf("second");
+        content[secondTopic] = 0;
+        Files.write(segment, content);
+
+        final SegmentedQueueRepository reloadedRepository = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> reloaded = reloadedRepository.listAllQueues().get("test");
+        assertEquals(1, reloaded.size());
+        reloaded.offer(createMessage("third"));
+        reloadedRepository.close();
+
+        final SegmentedQueueRepository again = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> replayed = again.listAllQueues().get("test");
+        assertEquals("first", topicOf(replayed.poll()));
+        assertEquals("third", topicOf(replayed.poll()));
+        assertTrue(replayed.isEmpty());
+        again.close();
+    }
+
+    @Test
+    public void testMessageBiggerThanSegment() {
+        final SegmentedQueueRepository sut = new SegmentedQueueRepository(segmentsDir, SEGMENT_SIZE);
+        final Queue<EnqueuedMessage> queue = sut.createQueue("test", false);
+        final byte[] payload = new byte[SEGMENT_SIZE * 3];
+        Arrays.fill(payload, (byte) 'a');
+
+        queue.offer(new PublishedMessage(Topic.asTopic("big"), MqttQoS.AT_LEAST_ONCE, Unpooled.wrappedBuffer(payload)));
+        queue.offer(createMessage("small"));
+
+        final PublishedMessage big = (PublishedMessage) queue.poll();
+        assertEquals(payload.length, big.getPayload().readableBytes());
+        assertEquals("small", topicOf(queue.poll()));
+        sut.close();
+    }
+
+    private static String topicOf(EnqueuedMessage message) {
+        return ((PublishedMessage) message).getTopic().toString();
+    }
+
+    private PublishedMessage createMessage(String name) {
+        final ByteBuf payload = Unpooled.wrappedBuffer(name.getBytes(StandardCharsets.UTF_8));
+        return new PublishedMessage(Topic.asTopic(name), MqttQoS.AT_LEAST_ONCE, payload);
+    }
+}
@@ -24,6 +24,26 @@ public final class BrokerConstants {
     public static final String BROKER_INTERCEPTOR_THREAD_POOL_SIZE = "intercept.thread_pool.size";
     public static final String PERSISTENT_STORE_PROPERTY_NAME = "persistent_store";
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
+    public static final String DURABILITY_PROPERTY_NAME = "persistence.durability";
+    public static final String ASYNC_DURABILITY = "async";
+    public static final String GROUP_DURABILITY = "group";
+    public static final String SYNC_DURABILITY = "sync";
+    public static final String GROUP_COMMIT_INTERVAL_PROPERTY_NAME = "persistence.group_commit.interval_ms";
+    public static final int DEFAULT_GROUP_COMMIT_INTERVAL_MS = 10;
+    public static final String GROUP_COMMIT_MAX_WRITES_PROPERTY_NAME = "persistence.group_commit.max_writes";
+    public static final int DEFAULT_GROUP_COMMIT_MAX_WRITES = 1000;
+    public static final String STORE_CACHE_SIZE_PROPERTY_NAME = "persistence.cache_size_mb";
+    public static final String STORE_COMPRESSION_PROPERTY_NAME = "persistence.compression";
+    public static final String NO_STORE_COMPRESSION = "none";
+    public static final String FAST_STORE_COMPRESSION = "fast";
+    public static final String HIGH_STORE_COMPRESSION = "high";
+    public static final String STORE_AUTO_COMPACT_FILL_RATE_PROPERTY_NAME = "persistence.auto_compact_fill_rate";
+    public static final String QUEUES_STORE_PROPERTY_NAME = "persistence.queues";
+    public static final String H2_QUEUES_STORE = "h2";
+    public static final String SEGMENTS_QUEUES_STORE = "segments";
+    public static final String SEGMENTS_PATH_PROPERTY_NAME = "persistence.segments.path";
+    public static final String SEGMENT_SIZE_PROPERTY_NAME = "persistence.segments.size_mb";
+    public static final int DEFAULT_SEGMENT_SIZE_MB = 64;
     public static final String PASSWORD_FILE_PROPERTY_NAME = "password_file";
     public static final String PORT_PROPERTY_NAME = "port";
     public static final String HOST_PROPERTY_NAME = "host";
@@ -72,10 +92,23 @@ public final class BrokerConstants {
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = "netty.mqtt.message_size";
     public static final int DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE = 8092;
     public static final String IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME = "immediate_buffer_flush";
+    public static final String MATCH_CACHE_SIZE_PROPERTY_NAME = "subscriptions.match_cache.size";
+    public static final String NO_MATCH_FILTER_SIZE_PROPERTY_NAME = "subscriptions.no_match_filter.size";
+    public static final int DEFAULT_NO_MATCH_FILTER_SIZE = 1 << 20;
+    public static final String PARALLEL_FAN_OUT_THRESHOLD_PROPERTY_NAME = "subscriptions.parallel_fan_out.threshold";
+    public static final String SUBSCRIPTIONS_PARTITIONING_PROPERTY_NAME = "subscriptions.partitioning";
+    public static final String NO_SUBSCRIPTIONS_PARTITIONING = "none";
+    public static final String FIRST_LEVEL_SUBSCRIPTIONS_PARTITIONING = "first_level";
+    public static final String SHARED_SUBSCRIPTION_POLICY_PROPERTY_NAME = "subscriptions.shared.policy";
+    public static final String SUBSCRIPTIONS_MATCHER_PROPERTY_NAME = "subscriptions.matcher";
+    public static final String CTRIE_SUBSCRIPTIONS_MATCHER = "ctrie";
+    public static final String BITMAP_SUBSCRIPTIONS_MATCHER = "bitmap";
     public static final String METRICS_ENABLE_PROPERTY_NAME = "use_metrics";
     public static final String METRICS_LIBRATO_EMAIL_PROPERTY_NAME = "metrics.librato.email";
     public static final String METRICS_LIBRATO_TOKEN_PROPERTY_NAME = "metrics.librato.token";
     public static final String METRICS_LIBRATO_SOURCE_PROPERTY_NAME = "metrics.librato.source";
+    // the Dropwizard shared registry of the metrics kept by the broker
+    public static final String METRICS_REGISTRY_NAME = "moquette";
 
     public static final String BUGSNAG_ENABLE_PROPERTY_NAME = "use_bugsnag";
     public static final String BUGSNAG_TOKEN_PROPERTY_NAME = "bugsnag.token";
@@ -8,4 +8,10 @@ public interface IQueueRepository {
     Queue<EnqueuedMessage> createQueue(String cli, boolean clean);
 
     Map<String, Queue<EnqueuedMessage>> listAllQueues();
+
+    /**
+     * Drop the persistent queue of the client with its messages, when it reconnects with a clean session.
+     */
+    default void dropQueue(String cli) {
+    }
 }
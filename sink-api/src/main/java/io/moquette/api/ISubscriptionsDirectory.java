@@ -15,7 +15,10 @@
  */
 package io.moquette.api;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface ISubscriptionsDirectory {
 
@@ -25,13 +28,87 @@ public interface ISubscriptionsDirectory {
 
     Set<Subscription> matchWithoutQosSharpening(Topic topic);
 
+    /**
+     * Quick check that lets a publish skip the matching when nobody is subscribed. It can give false positives
+     * but never false negatives.
+     *
+     * @param topic the publish topic.
+     * @return false if no subscription matches the topic.
+     */
+    default boolean mayMatch(Topic topic) {
+        return true;
+    }
+
     Set<Subscription> matchQosSharpening(Topic topic);
 
+    /**
+     * Push every subscription that matches the topic to the visitor, without creating intermediate
+     * collections.
+     *
+     * @param topic the publish topic.
+     * @param visitor the receiver of the matched subscriptions.
+     */
+    default void matchWithoutQosSharpening(Topic topic, Consumer<Subscription> visitor) {
+        matchWithoutQosSharpening(topic).forEach(visitor);
+    }
+
+    /**
+     * Collect the subscriptions that match the topic, one per client with the highest QoS.
+     *
+     * @param topic the publish topic.
+     * @param matched the accumulator to fill, the caller is in charge of clearing it.
+     */
+    default void matchQosSharpening(Topic topic, MatchedSubscriptions matched) {
+        matchWithoutQosSharpening(topic, matched);
+    }
+
     void add(Subscription newSubscription);
 
+    /**
+     * Add many subscriptions in one shot, like the ones of a SUBSCRIBE with many topic filters.
+     *
+     * @param newSubscriptions the subscriptions to add, in the order of the request.
+     */
+    default void addAll(List<Subscription> newSubscriptions) {
+        for (Subscription subscription : newSubscriptions) {
+            add(subscription);
+        }
+    }
+
     void removeSubscription(Topic topic, String clientID);
 
+    /**
+     * Remove in one shot all the subscriptions of a client, for example when it reconnects with a clean session.
+     *
+     * @param clientID the Id of client owning the subscriptions.
+     * @param topicFilters the topic filters of the subscriptions to remove.
+     */
+    default void removeAllForClient(String clientID, Collection<Topic> topicFilters) {
+        for (Topic topicFilter : topicFilters) {
+            removeSubscription(topicFilter, clientID);
+        }
+    }
+
     int size();
 
     String dumpTree();
+
+    /**
+     * Stream a page of the dump of the subscriptions tree, one line per node, so that big trees can be
+     * exported without building a single string.
+     *
+     * @param offset the number of lines to skip.
+     * @param limit the maximum number of lines to push.
+     * @param lines the receiver of the lines.
+     * @return the number of lines pushed, less than limit if the end of the tree has been reached.
+     */
+    default int dumpTree(int offset, int limit, Consumer<String> lines) {
+        final String[] dump = dumpTree().split("\n");
+        int pushed = 0;
+        for (int i = offset; i < dump.length && pushed < limit; i++) {
+            lines.accept(dump[i]);
+            pushed++;
+        }
+        return pushed;
+    }
 }
@@ -15,13 +15,44 @@
  */
 package io.moquette.api;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface ISubscriptionsRepository {
 
     Set<Subscription> listAllSubscriptions();
 
+    /**
+     * Push every stored subscription to the action, without collecting all of them in memory first.
+     */
+    default void forEachSubscription(Consumer<Subscription> action) {
+        listAllSubscriptions().forEach(action);
+    }
+
+    /**
+     * Push once the id of every client with a stored subscription to the action.
+     */
+    default void forEachClientId(Consumer<String> action) {
+        final Set<String> clientIds = new HashSet<>();
+        forEachSubscription(subscription -> {
+            if (clientIds.add(subscription.getClientId())) {
+                action.accept(subscription.getClientId());
+            }
+        });
+    }
+
     void addNewSubscription(Subscription subscription);
 
+    /**
+     * Store many subscriptions in one shot, like the ones of a SUBSCRIBE with many topic filters.
+     */
+    default void addNewSubscriptions(Collection<Subscription> subscriptions) {
+        for (Subscription subscription : subscriptions) {
+            addNewSubscription(subscription);
+        }
+    }
+
     void removeSubscription(String topic, String clientID);
 }
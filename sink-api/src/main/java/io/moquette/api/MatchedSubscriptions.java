@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.api;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Accumulator of the subscriptions that match a publish. Keeps one subscription per client, the one with
+ * the highest QoS (QoS sharpening), while the matches are pushed in.
+ *
+ * It's meant to be reused across publishes by the same thread, {@link #clear()} empties it without releasing
+ * the memory. Not thread safe.
+ */
+public final class MatchedSubscriptions implements Consumer<Subscription> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // open addressing table keyed by client id, with linear probing
+    private Subscription[] table = new Subscription[INITIAL_CAPACITY];
+    // slots of the table in use, in insertion order
+    private int[] usedSlots = new int[INITIAL_CAPACITY / 2];
+    private int size;
+
+    @Override
+    public void accept(Subscription subscription) {
+        add(subscription);
+    }
+
+    /**
+     * Add the subscription, replacing the one of the same client if it has a lower QoS.
+     */
+    public void add(Subscription subscription) {
+        final int slot = slotOf(table, subscription.getClientId());
+        final Subscription existing = table[slot];
+        if (existing == null) {
+            table[slot] = subscription;
+            usedSlots[size++] = slot;
+            if (size == usedSlots.length) {
+                grow();
+            }
+        } else if (existing.qosLessThan(subscription)) {
+            table[slot] = subscription;
+        }
+    }
+
+    /**
+     * @param index position in range [0, size()).
+     * @return the index-th matched subscription.
+     */
+    public Subscription get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return table[usedSlots[index]];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            table[usedSlots[i]] = null;
+        }
+        size = 0;
+    }
+
+    private static int slotOf(Subscription[] table, String clientId) {
+        final int mask = table.length - 1;
+        final int hash = clientId.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != null && !table[slot].getClientId().equals(clientId)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        // keep the load factor at most 1/2
+        final Subscription[] newTable = new Subscription[table.length * 2];
+        for (int i = 0; i < size; i++) {
+            final Subscription subscription = table[usedSlots[i]];
+            final int slot = slotOf(newTable, subscription.getClientId());
+            newTable[slot] = subscription;
+            usedSlots[i] = slot;
+        }
+        table = newTable;
+        usedSlots = Arrays.copyOf(usedSlots, newTable.length / 2);
+    }
+}
@@ -26,26 +26,48 @@ import java.io.Serializable;
 public final class Subscription implements Serializable, Comparable<Subscription> {
 
     private static final long serialVersionUID = -3383457629635732794L;
+
+    /**
+     * Handle of the subscriptions not bound to a session, like the ones reloaded from the storage.
+     */
+    public static final int NO_CLIENT_HANDLE = 0;
+
     private final MqttQoS requestedQos; // max QoS acceptable
     final String clientId;
     final Topic topicFilter;
+    // index of the session of the client in the broker, valid only for the life of the broker
+    private final transient int clientHandle;
 
     public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos) {
+        this(clientId, topicFilter, requestedQos, NO_CLIENT_HANDLE);
+    }
+
+    public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos, int clientHandle) {
         this.requestedQos = requestedQos;
         this.clientId = clientId;
         this.topicFilter = topicFilter;
+        this.clientHandle = clientHandle;
     }
 
     public Subscription(Subscription orig) {
         this.requestedQos = orig.requestedQos;
         this.clientId = orig.clientId;
         this.topicFilter = orig.topicFilter;
+        this.clientHandle = orig.clientHandle;
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    /**
+     * @return the handle of the session that subscribed, to look it up without hashing the client id, or
+     * {@link #NO_CLIENT_HANDLE}. Not part of the identity of the subscription.
+     */
+    public int getClientHandle() {
+        return clientHandle;
+    }
+
     public MqttQoS getRequestedQos() {
         return requestedQos;
     }
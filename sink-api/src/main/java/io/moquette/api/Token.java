@@ -25,9 +25,11 @@ public class Token {
     public static final Token MULTI = new Token("#");
     public static final Token SINGLE = new Token("+");
     final String name;
+    private final int hash;
 
     public Token(String s) {
         name = s;
+        hash = 29 * 7 + (s != null ? s.hashCode() : 0);
     }
 
     protected String name() {
@@ -48,13 +50,15 @@ public class Token {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 29 * hash + (this.name != null ? this.name.hashCode() : 0);
         return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            // the common case for the interned tokens
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -62,6 +66,9 @@ public class Token {
             return false;
         }
         final Token other = (Token) obj;
+        if (this.hash != other.hash) {
+            return false;
+        }
         if ((this.name == null) ? (other.name != null) : !this.name.equals(other.name)) {
             return false;
         }
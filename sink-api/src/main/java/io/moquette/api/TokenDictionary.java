@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2021 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.api;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Broker wide table of the tokens of the subscribed topic filters, so that the same level name is
+ * represented by the same Token instance and the comparisons in the subscriptions tree resolve by reference.
+ * <p>
+ * Only the filters are interned, the topics of the publishes look up their levels without adding them, so
+ * the table doesn't grow with names that no subscription contains. The tokens are weakly referenced, an
+ * entry goes away once the token isn't used by any filter anymore.
+ */
+final class TokenDictionary {
+
+    /**
+     * A level name, or the range of a topic that is being parsed, so that the lookup doesn't copy it.
+     */
+    private static final class Name {
+        private final String source;
+        private final int start;
+        private final int end;
+        private final int hash;
+
+        Name(String source, int start, int end, int hash) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Name)) {
+                return false;
+            }
+            final Name other = (Name) obj;
+            final int length = end - start;
+            return hash == other.hash && length == other.end - other.start
+                && source.regionMatches(start, other.source, other.start, length);
+        }
+    }
+
+    private static final class TokenReference extends WeakReference<Token> {
+        private final Name name;
+
+        TokenReference(Token token, Name name) {
+            super(token, COLLECTED);
+            this.name = name;
+        }
+    }
+
+    private static final ConcurrentMap<Name, TokenReference> TOKENS = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Token> COLLECTED = new ReferenceQueue<>();
+
+    private TokenDictionary() {
+    }
+
+    /**
+     * @return the interned token of the level name in the [start, end) range of the topic, or a new one if the
+     * name isn't interned.
+     */
+    static Token lookup(String topic, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + topic.charAt(i);
+        }
+        final TokenReference reference = TOKENS.get(new Name(topic, start, end, hash));
+        final Token interned = reference == null ? null : reference.get();
+        return interned != null ? interned : new Token(topic.substring(start, end));
+    }
+
+    /**
+     * @return the interned token equal to the one passed, that becomes the interned one if there isn't any.
+     */
+    static Token intern(Token token) {
+        expungeCollected();
+        final String name = token.name;
+        final Name key = new Name(name, 0, name.length(), name.hashCode());
+        while (true) {
+            final TokenReference existing = TOKENS.get(key);
+            if (existing == null) {
+                if (TOKENS.putIfAbsent(key, new TokenReference(token, key)) == null) {
+                    return token;
+                }
+                continue;
+            }
+            final Token interned = existing.get();
+            if (interned != null) {
+                return interned;
+            }
+            if (TOKENS.replace(key, existing, new TokenReference(token, key))) {
+                return token;
+            }
+        }
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends Token> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            final TokenReference reference = (TokenReference) collected;
+            TOKENS.remove(reference.name, reference);
+        }
+    }
+
+    static int size() {
+        expungeCollected();
+        return TOKENS.size();
+    }
+}
@@ -16,6 +16,8 @@
 
 package io.moquette.api;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -33,7 +35,10 @@ public class Topic implements Serializable, Comparable<Topic> {
 
     private static final long serialVersionUID = 2438799283749822L;
 
-    private final String topic;
+    private static final String SHARED_SUBSCRIPTION_PREFIX = "$share";
+
+    // rendered lazily for the topics created from a list of tokens
+    private String topic;
 
     private transient List<Token> tokens;
 
@@ -55,8 +60,6 @@ public class Topic implements Serializable, Comparable<Topic> {
 
     Topic(List<Token> tokens) {
         this.tokens = tokens;
-        List<String> strTokens = tokens.stream().map(Token::toString).collect(Collectors.toList());
-        this.topic = String.join("/", strTokens);
         this.valid = true;
     }
 
@@ -80,50 +83,73 @@ public class Topic implements Serializable, Comparable<Topic> {
                                      "this was empty", 0);
         }
         List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
-        }
-
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
-        }
-
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
-                res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
-                // check that multi is the last symbol
-                if (i != splitted.length - 1) {
-                    throw new ParseException(
-                            "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
-                            i);
-                }
-                res.add(Token.MULTI);
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
-                res.add(Token.SINGLE);
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else {
-                res.add(new Token(s));
+        int start = 0;
+        int level = 0;
+        boolean last = false;
+        while (!last) {
+            int end = topic.indexOf('/', start);
+            last = end == -1;
+            if (last) {
+                end = topic.length();
             }
+            res.add(parseToken(topic, start, end, last, level));
+            start = end + 1;
+            level++;
         }
 
         return res;
     }
 
+    /**
+     * Parse the level of the topic string contained in [start, end) range, with no intermediate copies
+     * other than the name of plain tokens.
+     * */
+    private static Token parseToken(String topic, int start, int end, boolean last, int level)
+            throws ParseException {
+        final int length = end - start;
+        if (length == 0) {
+            return Token.EMPTY;
+        }
+        if (length == 1 && topic.charAt(start) == '#') {
+            // check that multi is the last symbol
+            if (!last) {
+                throw new ParseException(
+                        "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
+                        level);
+            }
+            return Token.MULTI;
+        }
+        if (length == 1 && topic.charAt(start) == '+') {
+            return Token.SINGLE;
+        }
+        for (int i = start; i < end; i++) {
+            final char c = topic.charAt(i);
+            if (c == '#' || c == '+') {
+                throw new ParseException("Bad format of topic, invalid subtopic name: " +
+                                         topic.substring(start, end), level);
+            }
+        }
+        return TokenDictionary.lookup(topic, start, end);
+    }
+
+    /**
+     * @return the tokens of this topic filter, with the level names replaced by the broker wide interned
+     * tokens. To be used when the filter is stored, the topics of the publishes only look up the interned
+     * tokens while parsing.
+     * */
+    public List<Token> internedTokens() {
+        final List<Token> tokens = getTokens();
+        if (tokens == null) {
+            return null;
+        }
+        final List<Token> interned = new ArrayList<>(tokens.size());
+        for (Token token : tokens) {
+            final boolean special = token == Token.EMPTY || token == Token.MULTI || token == Token.SINGLE;
+            interned.add(special ? token : TokenDictionary.intern(token));
+        }
+        return interned;
+    }
+
     public Token headToken() {
         final List<Token> tokens = getTokens();
         if (tokens.isEmpty()) {
@@ -139,16 +165,43 @@ public class Topic implements Serializable, Comparable<Topic> {
     }
 
     /**
-     * @return a new Topic corresponding to this less than the head token
+     * @return a new Topic corresponding to this less than the head token, it's a view that shares the tokens
+     * of this topic.
      * */
     public Topic exceptHeadToken() {
         List<Token> tokens = getTokens();
         if (tokens.isEmpty()) {
             return new Topic(Collections.emptyList());
         }
-        List<Token> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        return new Topic(tokens.subList(1, tokens.size()));
+    }
+
+    /**
+     * @return true if this is a shared subscription filter in the form $share/&lt;group&gt;/&lt;filter&gt;.
+     * */
+    public boolean isShared() {
+        final List<Token> tokens = getTokens();
+        if (tokens == null || tokens.size() < 3 || !SHARED_SUBSCRIPTION_PREFIX.equals(tokens.get(0).name)) {
+            return false;
+        }
+        final Token shareName = tokens.get(1);
+        return !shareName.name.isEmpty() && !Token.MULTI.equals(shareName) && !Token.SINGLE.equals(shareName);
+    }
+
+    /**
+     * @return the name of the group of a shared subscription filter.
+     * */
+    public String shareName() {
+        return getTokens().get(1).name;
+    }
+
+    /**
+     * @return the filter a shared subscription applies to, without the $share/&lt;group&gt; prefix. It's a view
+     * that shares the tokens of this topic.
+     * */
+    public Topic sharedFilter() {
+        final List<Token> tokens = getTokens();
+        return new Topic(tokens.subList(2, tokens.size()));
     }
 
     public boolean isValid() {
@@ -194,9 +247,18 @@ public class Topic implements Serializable, Comparable<Topic> {
 
     @Override
     public String toString() {
+        if (topic == null) {
+            topic = tokens.stream().map(Token::toString).collect(Collectors.joining("/"));
+        }
         return topic;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // render the string of the topics created from tokens
+        toString();
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -207,16 +269,16 @@ public class Topic implements Serializable, Comparable<Topic> {
         }
         Topic other = (Topic) obj;
 
-        return Objects.equals(this.topic, other.topic);
+        return Objects.equals(toString(), other.toString());
     }
 
     @Override
     public int hashCode() {
-        return topic.hashCode();
+        return toString().hashCode();
     }
 
     @Override
     public int compareTo(Topic o) {
-        return topic.compareTo(o.topic);
+        return toString().compareTo(o.toString());
     }
 }